@@ -0,0 +1,54 @@
+/*
+ *   Copyright (c) 2015 Program Analysis Group, Georgia Tech
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package edu.gatech.sqltutor.clustering;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Rewrites that must normalize to the same form, as they are accepted without running them.
+ */
+public class QueryEquivalenceTest {
+	private final QueryNormalizer normalizer = new QueryNormalizer();
+
+	private void assertEquivalent(String expected, String actual) {
+		Assert.assertEquals(normalizer.normalize(expected), normalizer.normalize(actual));
+	}
+
+	@Test
+	public void testComparisonDirection() {
+		assertEquivalent("SELECT name FROM employee WHERE salary > 3000",
+				"select name from employee where 3000 < salary;");
+	}
+
+	@Test
+	public void testOperandOrder() {
+		assertEquivalent("SELECT e.name FROM employee e, department d WHERE e.dno = d.dnumber AND e.salary * 2 > 100",
+				"SELECT e.name FROM employee e, department d WHERE d.dnumber = e.dno AND 100 < 2 * e.salary");
+	}
+
+	@Test
+	public void testNegation() {
+		assertEquivalent("SELECT name FROM employee WHERE NOT (salary >= 3000 OR dno = 5)",
+				"SELECT name FROM employee WHERE salary < 3000 AND dno <> 5");
+	}
+
+	@Test
+	public void testDifferentQueries() {
+		Assert.assertNotEquals(normalizer.normalize("SELECT name FROM employee WHERE salary > 3000"),
+				normalizer.normalize("SELECT name FROM employee WHERE salary >= 3000"));
+	}
+}
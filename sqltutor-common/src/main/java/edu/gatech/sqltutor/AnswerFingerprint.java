@@ -0,0 +1,127 @@
+/*
+ *   Copyright (c) 2015 Program Analysis Group, Georgia Tech
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package edu.gatech.sqltutor;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.common.hash.HashCode;
+
+/**
+ * A summary of the result of a stored answer, computed when the question is
+ * saved, which student results are checked against without running the answer.
+ * <p>
+ * A fingerprint holds the names and types of the answer's columns, its number
+ * of rows, digests of its {@link ResultComparator.Fingerprints row fingerprints} 
+ * in order and in any order, and the time the answer took to execute, as a 
+ * baseline for the performance leniency of the question.  Row fingerprints 
+ * depend on whether column order matters, so a fingerprint is computed for one 
+ * or the other.
+ * </p><p>
+ * Fingerprints are immutable.
+ * </p>
+ */
+public final class AnswerFingerprint implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final List<String> columns;
+	private final List<String> columnTypes;
+	private final int rowCount;
+	private final boolean columnOrderMatters;
+	private final byte[] orderedDigest;
+	private final byte[] unorderedDigest;
+	private final long executionTime;
+
+	/**
+	 * Creates the fingerprint of a result.
+	 *
+	 * @param columns		the names of the columns
+	 * @param columnTypes	the database type names of the columns
+	 * @param rows			the fingerprints of all rows of the result
+	 * @param executionTime	the query execution time in milliseconds
+	 */
+	public AnswerFingerprint(List<String> columns, List<String> columnTypes, ResultComparator.Fingerprints rows,
+			long executionTime) {
+		this(columns, columnTypes, rows.getRowCount(), rows.isColumnOrderMatters(), 
+				rows.getOrderedDigest().asBytes(), rows.getUnorderedDigest().asBytes(), executionTime);
+	}
+
+	/**
+	 * Creates a fingerprint from its stored parts.
+	 */
+	public AnswerFingerprint(List<String> columns, List<String> columnTypes, int rowCount, boolean columnOrderMatters,
+			byte[] orderedDigest, byte[] unorderedDigest, long executionTime) {
+		if( columns.size() != columnTypes.size() )
+			throw new IllegalArgumentException("Expected " + columns.size() + " column types, but got " + columnTypes.size());
+		this.columns = Collections.unmodifiableList(new ArrayList<String>(columns));
+		this.columnTypes = Collections.unmodifiableList(new ArrayList<String>(columnTypes));
+		this.rowCount = rowCount;
+		this.columnOrderMatters = columnOrderMatters;
+		this.orderedDigest = orderedDigest.clone();
+		this.unorderedDigest = unorderedDigest.clone();
+		this.executionTime = executionTime;
+	}
+
+	/**
+	 * Returns whether a result, of which the row fingerprints were kept, has the
+	 * same rows as the fingerprinted result.
+	 *
+	 * @param actual			the fingerprints of all rows of the result
+	 * @param rowOrderMatters	whether the rows must be in the same order
+	 * @throws IllegalArgumentException if the fingerprints ignore column order and this fingerprint does not, or vice versa
+	 */
+	public boolean matches(ResultComparator.Fingerprints actual, boolean rowOrderMatters) {
+		if( actual.isColumnOrderMatters() != columnOrderMatters )
+			throw new IllegalArgumentException("fingerprints do not match the column order of the answer fingerprint");
+		if( actual.getColumnCount() != columns.size() || actual.getRowCount() != rowCount )
+			return false;
+		HashCode digest = rowOrderMatters ? actual.getOrderedDigest() : actual.getUnorderedDigest();
+		return digest.equals(HashCode.fromBytes(rowOrderMatters ? orderedDigest : unorderedDigest));
+	}
+
+	public List<String> getColumns() {
+		return columns;
+	}
+
+	public List<String> getColumnTypes() {
+		return columnTypes;
+	}
+
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	public boolean isColumnOrderMatters() {
+		return columnOrderMatters;
+	}
+
+	/** Returns the digest of the row fingerprints in order. */
+	public byte[] getOrderedDigest() {
+		return orderedDigest.clone();
+	}
+
+	/** Returns the digest of the row fingerprints in any order. */
+	public byte[] getUnorderedDigest() {
+		return unorderedDigest.clone();
+	}
+
+	/** Returns the execution time of the answer in milliseconds, when it was fingerprinted. */
+	public long getExecutionTime() {
+		return executionTime;
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ *   Copyright (c) 2015 Program Analysis Group, Georgia Tech
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package edu.gatech.sqltutor;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+
+/**
+ * Primitives of the compact binary form of results.  Counts and lengths are
+ * written as variable-length integers, signed values zigzag-encoded, and 
+ * strings as their length and UTF-8 bytes, so that they are not limited
+ * in size as with {@link DataOutput#writeUTF(String)}.
+ */
+final class BinaryCodec {
+	private BinaryCodec() {}
+
+	/** Writes a non-negative integer in 7-bit groups, low groups first. */
+	public static void writeVarInt(DataOutput out, int value) throws IOException {
+		if( value < 0 )
+			throw new IllegalArgumentException("negative: " + value);
+		writeVarLong(out, value);
+	}
+
+	public static int readVarInt(DataInput in) throws IOException {
+		long value = readVarLong(in);
+		if( value < 0 || value > Integer.MAX_VALUE )
+			throw new StreamCorruptedException("Integer out of range: " + value);
+		return (int)value;
+	}
+
+	private static void writeVarLong(DataOutput out, long value) throws IOException {
+		while( (value & ~0x7FL) != 0 ) {
+			out.writeByte((int)(value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte((int)value);
+	}
+
+	private static long readVarLong(DataInput in) throws IOException {
+		long value = 0;
+		for( int shift = 0; shift < 64; shift += 7 ) {
+			int b = in.readUnsignedByte();
+			value |= (long)(b & 0x7F) << shift;
+			if( (b & 0x80) == 0 )
+				return value;
+		}
+		throw new StreamCorruptedException("Malformed variable-length integer");
+	}
+
+	/** Writes a signed value, small in magnitude values taking few bytes. */
+	public static void writeSignedVarLong(DataOutput out, long value) throws IOException {
+		writeVarLong(out, (value << 1) ^ (value >> 63));
+	}
+
+	public static long readSignedVarLong(DataInput in) throws IOException {
+		long value = readVarLong(in);
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/** Writes a string, which may be <code>null</code>. */
+	public static void writeString(DataOutput out, String value) throws IOException {
+		if( value == null ) {
+			writeVarInt(out, 0);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		writeVarInt(out, bytes.length + 1);
+		out.write(bytes);
+	}
+
+	public static String readString(DataInput in) throws IOException {
+		int length = readVarInt(in) - 1;
+		if( length < 0 )
+			return null;
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	public static void writeBitSet(DataOutput out, BitSet bits) throws IOException {
+		long[] words = bits.toLongArray();
+		writeVarInt(out, words.length);
+		for( long word: words )
+			out.writeLong(word);
+	}
+
+	public static BitSet readBitSet(DataInput in) throws IOException {
+		long[] words = new long[readVarInt(in)];
+		for( int i = 0; i < words.length; ++i )
+			words[i] = in.readLong();
+		return BitSet.valueOf(words);
+	}
+}
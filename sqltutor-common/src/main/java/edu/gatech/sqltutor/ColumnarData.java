@@ -0,0 +1,598 @@
+/*
+ *   Copyright (c) 2015 Program Analysis Group, Georgia Tech
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package edu.gatech.sqltutor;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Types;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * Column-oriented storage of result rows.
+ * <p>
+ * Values are kept as the text they were read as, one array per column.
+ * Integer and fixed-point columns are stored as unscaled <code>long</code>s,
+ * boolean columns as bits and all other columns as codes into a dictionary
+ * of their distinct values.  A numeric or boolean column falls back to a
+ * dictionary as soon as one of its values would not be rendered back to
+ * exactly the same text.
+ * </p><p>
+ * Instances are immutable.  {@link #asRows()} returns a read-only
+ * view of the rows with constant time access to any value.
+ * </p><p>
+ * Data is serialized in a compact binary form, see {@link #writeTo(DataOutput)},
+ * rather than as the object graph of its columns.
+ * </p>
+ */
+public final class ColumnarData implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	/** Data without any rows or columns. */
+	public static final ColumnarData EMPTY = new ColumnarData(new Column[0], 0);
+
+	private final Column[] columns;
+	private final int rowCount;
+
+	private ColumnarData(Column[] columns, int rowCount) {
+		this.columns = columns;
+		this.rowCount = rowCount;
+	}
+
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	public int getColumnCount() {
+		return columns.length;
+	}
+
+	/**
+	 * Returns the value at the given row and column.
+	 * @param row		the zero-based row index
+	 * @param column	the zero-based column index
+	 * @return the value, which may be <code>null</code>
+	 * @throws IndexOutOfBoundsException if either index is out of range
+	 */
+	public String get(int row, int column) {
+		if( row < 0 || row >= rowCount )
+			throw new IndexOutOfBoundsException("row: " + row + ", rows: " + rowCount);
+		return columns[column].get(row);
+	}
+
+	/**
+	 * Returns a read-only view of the rows.
+	 */
+	public List<List<String>> asRows() {
+		return new Rows(this);
+	}
+
+	/**
+	 * Returns the data of a list of rows.  If <code>rows</code> is a view
+	 * returned by {@link #asRows()}, its data is returned, otherwise the
+	 * rows are copied and stored as text.
+	 *
+	 * @param rows the rows, which must all have the same size
+	 * @return the data
+	 * @throws IllegalArgumentException if the rows differ in size
+	 */
+	public static ColumnarData of(List<? extends List<String>> rows) {
+		if( rows instanceof Rows )
+			return ((Rows)rows).data;
+		if( rows.isEmpty() )
+			return EMPTY;
+
+		Builder builder = new Builder(rows.get(0).size());
+		String[] values = new String[builder.columns.length];
+		for( List<String> row: rows ) {
+			if( row.size() != values.length )
+				throw new IllegalArgumentException("Expected " + values.length + " values, but got: " + row);
+			builder.addRow(row.toArray(values));
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Writes the data in a compact binary form.  Each column is written as its
+	 * encoding, so dictionaries are written once and codes, unscaled values and
+	 * bits as variable-length integers and words.
+	 *
+	 * @param out the output
+	 * @throws IOException if writing fails
+	 * @see #readFrom(DataInput)
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		BinaryCodec.writeVarInt(out, columns.length);
+		BinaryCodec.writeVarInt(out, rowCount);
+		for( Column column: columns )
+			column.writeTo(out, rowCount);
+	}
+
+	/**
+	 * Reads data written by {@link #writeTo(DataOutput)}.
+	 *
+	 * @param in the input
+	 * @return the data
+	 * @throws IOException if reading fails or the input is malformed
+	 */
+	public static ColumnarData readFrom(DataInput in) throws IOException {
+		int columnCount = BinaryCodec.readVarInt(in);
+		int rowCount = BinaryCodec.readVarInt(in);
+		if( columnCount == 0 && rowCount == 0 )
+			return EMPTY;
+		Column[] columns = new Column[columnCount];
+		for( int i = 0; i < columnCount; ++i ) {
+			int tag = in.readUnsignedByte();
+			switch( tag ) {
+			case StringColumn.TAG:
+				columns[i] = StringColumn.readFrom(in, rowCount);
+				break;
+			case NumberColumn.TAG:
+				columns[i] = NumberColumn.readFrom(in, rowCount);
+				break;
+			case BooleanColumn.TAG:
+				columns[i] = BooleanColumn.readFrom(in);
+				break;
+			default:
+				throw new StreamCorruptedException("Unknown column encoding: " + tag);
+			}
+		}
+		return new ColumnarData(columns, rowCount);
+	}
+
+	private Object writeReplace() {
+		return new SerializedForm(this);
+	}
+
+	/** Serializes data through its binary form. */
+	private static final class SerializedForm implements Externalizable {
+		private static final long serialVersionUID = 1L;
+		private ColumnarData data;
+
+		public SerializedForm() {
+		}
+
+		public SerializedForm(ColumnarData data) {
+			this.data = data;
+		}
+
+		@Override
+		public void writeExternal(ObjectOutput out) throws IOException {
+			data.writeTo(out);
+		}
+
+		@Override
+		public void readExternal(ObjectInput in) throws IOException {
+			data = readFrom(in);
+		}
+
+		private Object readResolve() {
+			return data;
+		}
+	}
+
+	/**
+	 * Returns a builder for columns of the given JDBC types,
+	 * as in {@link java.sql.ResultSetMetaData#getColumnType(int)}.
+	 */
+	public static Builder builder(int[] jdbcTypes) {
+		return new Builder(jdbcTypes);
+	}
+
+	/**
+	 * Builds data row by row.
+	 */
+	public static final class Builder {
+		private final ColumnBuilder[] columns;
+		private int rowCount;
+
+		/** Creates a builder that stores all columns as text. */
+		public Builder(int columnCount) {
+			columns = new ColumnBuilder[columnCount];
+			for( int i = 0; i < columnCount; ++i )
+				columns[i] = new StringColumnBuilder();
+		}
+
+		private Builder(int[] jdbcTypes) {
+			columns = new ColumnBuilder[jdbcTypes.length];
+			for( int i = 0; i < jdbcTypes.length; ++i )
+				columns[i] = newColumnBuilder(jdbcTypes[i]);
+		}
+
+		/**
+		 * Adds a row.  The values are copied, so the array may be reused.
+		 * @param values the row's values, one per column
+		 */
+		public Builder addRow(String[] values) {
+			if( values.length != columns.length )
+				throw new IllegalArgumentException("Expected " + columns.length + " values, but got " + values.length);
+			for( int i = 0; i < columns.length; ++i )
+				columns[i] = columns[i].add(values[i]);
+			++rowCount;
+			return this;
+		}
+
+		public int getRowCount() {
+			return rowCount;
+		}
+
+		public ColumnarData build() {
+			Column[] built = new Column[columns.length];
+			for( int i = 0; i < columns.length; ++i )
+				built[i] = columns[i].build();
+			return new ColumnarData(built, rowCount);
+		}
+	}
+
+	private static ColumnBuilder newColumnBuilder(int jdbcType) {
+		switch( jdbcType ) {
+		case Types.TINYINT:
+		case Types.SMALLINT:
+		case Types.INTEGER:
+		case Types.BIGINT:
+		case Types.DECIMAL:
+		case Types.NUMERIC:
+		case Types.REAL:
+		case Types.FLOAT:
+		case Types.DOUBLE:
+			return new NumberColumnBuilder();
+		case Types.BOOLEAN:
+		case Types.BIT:
+			return new BooleanColumnBuilder();
+		default:
+			return new StringColumnBuilder();
+		}
+	}
+
+	private static abstract class Column implements Serializable {
+		private static final long serialVersionUID = 1L;
+		public abstract String get(int row);
+
+		/** Writes the column's tag and encoding. */
+		public abstract void writeTo(DataOutput out, int rowCount) throws IOException;
+	}
+
+	/** Codes into a dictionary of distinct values, <code>-1</code> for <code>null</code>. */
+	private static final class StringColumn extends Column {
+		private static final long serialVersionUID = 1L;
+		public static final int TAG = 0;
+		private final String[] dictionary;
+		private final int[] codes;
+
+		public StringColumn(String[] dictionary, int[] codes) {
+			this.dictionary = dictionary;
+			this.codes = codes;
+		}
+
+		@Override
+		public String get(int row) {
+			int code = codes[row];
+			return code < 0 ? null : dictionary[code];
+		}
+
+		@Override
+		public void writeTo(DataOutput out, int rowCount) throws IOException {
+			out.writeByte(TAG);
+			BinaryCodec.writeVarInt(out, dictionary.length);
+			for( String value: dictionary )
+				BinaryCodec.writeString(out, value);
+			for( int i = 0; i < rowCount; ++i )
+				BinaryCodec.writeVarInt(out, codes[i] + 1);
+		}
+
+		public static StringColumn readFrom(DataInput in, int rowCount) throws IOException {
+			String[] dictionary = new String[BinaryCodec.readVarInt(in)];
+			for( int i = 0; i < dictionary.length; ++i )
+				dictionary[i] = BinaryCodec.readString(in);
+			int[] codes = new int[rowCount];
+			for( int i = 0; i < rowCount; ++i ) {
+				codes[i] = BinaryCodec.readVarInt(in) - 1;
+				if( codes[i] >= dictionary.length )
+					throw new StreamCorruptedException("Code out of range: " + codes[i]);
+			}
+			return new StringColumn(dictionary, codes);
+		}
+	}
+
+	/** Unscaled values with a common scale. */
+	private static final class NumberColumn extends Column {
+		private static final long serialVersionUID = 1L;
+		public static final int TAG = 1;
+		private final long[] values;
+		private final int scale;
+		private final BitSet nulls;
+
+		public NumberColumn(long[] values, int scale, BitSet nulls) {
+			this.values = values;
+			this.scale = scale;
+			this.nulls = nulls;
+		}
+
+		@Override
+		public String get(int row) {
+			return nulls.get(row) ? null : render(values[row], scale);
+		}
+
+		/** Writes the differences between consecutive values, which are small for keys and sorted values. */
+		@Override
+		public void writeTo(DataOutput out, int rowCount) throws IOException {
+			out.writeByte(TAG);
+			BinaryCodec.writeVarInt(out, scale);
+			BinaryCodec.writeBitSet(out, nulls);
+			long previous = 0;
+			for( int i = 0; i < rowCount; ++i ) {
+				if( nulls.get(i) )
+					continue;
+				BinaryCodec.writeSignedVarLong(out, values[i] - previous);
+				previous = values[i];
+			}
+		}
+
+		public static NumberColumn readFrom(DataInput in, int rowCount) throws IOException {
+			int scale = BinaryCodec.readVarInt(in);
+			BitSet nulls = BinaryCodec.readBitSet(in);
+			long[] values = new long[rowCount];
+			long previous = 0;
+			for( int i = 0; i < rowCount; ++i ) {
+				if( nulls.get(i) )
+					continue;
+				values[i] = previous += BinaryCodec.readSignedVarLong(in);
+			}
+			return new NumberColumn(values, scale, nulls);
+		}
+	}
+
+	private static final class BooleanColumn extends Column {
+		private static final long serialVersionUID = 1L;
+		public static final int TAG = 2;
+		private final BitSet values;
+		private final BitSet nulls;
+		private final String trueText;
+		private final String falseText;
+
+		public BooleanColumn(BitSet values, BitSet nulls, String trueText, String falseText) {
+			this.values = values;
+			this.nulls = nulls;
+			this.trueText = trueText;
+			this.falseText = falseText;
+		}
+
+		@Override
+		public String get(int row) {
+			if( nulls.get(row) )
+				return null;
+			return values.get(row) ? trueText : falseText;
+		}
+
+		@Override
+		public void writeTo(DataOutput out, int rowCount) throws IOException {
+			out.writeByte(TAG);
+			BinaryCodec.writeBitSet(out, values);
+			BinaryCodec.writeBitSet(out, nulls);
+			BinaryCodec.writeString(out, trueText);
+			BinaryCodec.writeString(out, falseText);
+		}
+
+		public static BooleanColumn readFrom(DataInput in) throws IOException {
+			BitSet values = BinaryCodec.readBitSet(in);
+			BitSet nulls = BinaryCodec.readBitSet(in);
+			return new BooleanColumn(values, nulls, BinaryCodec.readString(in), BinaryCodec.readString(in));
+		}
+	}
+
+	private static String render(long unscaled, int scale) {
+		return scale == 0 ? Long.toString(unscaled) : BigDecimal.valueOf(unscaled, scale).toPlainString();
+	}
+
+	private static abstract class ColumnBuilder {
+		protected int size;
+
+		/** Adds a value, returning the builder to use for the next value. */
+		public abstract ColumnBuilder add(String value);
+
+		public abstract Column build();
+
+		/** Returns a dictionary builder holding the values so far. */
+		protected abstract StringColumnBuilder toStrings();
+	}
+
+	private static final class StringColumnBuilder extends ColumnBuilder {
+		private final Map<String, Integer> codesByValue = new HashMap<String, Integer>();
+		private final List<String> dictionary = new ArrayList<String>();
+		private int[] codes = new int[16];
+
+		@Override
+		public ColumnBuilder add(String value) {
+			int code = -1;
+			if( value != null ) {
+				Integer existing = codesByValue.get(value);
+				if( existing == null ) {
+					existing = dictionary.size();
+					codesByValue.put(value, existing);
+					dictionary.add(value);
+				}
+				code = existing;
+			}
+			if( size == codes.length )
+				codes = Arrays.copyOf(codes, size * 2);
+			codes[size++] = code;
+			return this;
+		}
+
+		@Override
+		public Column build() {
+			return new StringColumn(dictionary.toArray(new String[dictionary.size()]), Arrays.copyOf(codes, size));
+		}
+
+		@Override
+		protected StringColumnBuilder toStrings() {
+			return this;
+		}
+	}
+
+	private static final class NumberColumnBuilder extends ColumnBuilder {
+		private static final BigInteger MIN_LONG = BigInteger.valueOf(Long.MIN_VALUE);
+		private static final BigInteger MAX_LONG = BigInteger.valueOf(Long.MAX_VALUE);
+
+		private long[] values = new long[16];
+		private final BitSet nulls = new BitSet();
+		private int scale = -1;
+
+		@Override
+		public ColumnBuilder add(String value) {
+			if( size == values.length )
+				values = Arrays.copyOf(values, size * 2);
+			if( value == null ) {
+				nulls.set(size++);
+				return this;
+			}
+
+			BigDecimal decimal;
+			try {
+				decimal = new BigDecimal(value);
+			} catch( NumberFormatException e ) {
+				return toStrings().add(value);
+			}
+			BigInteger unscaled = decimal.unscaledValue();
+			if( decimal.scale() < 0 || (scale >= 0 && decimal.scale() != scale)
+					|| unscaled.compareTo(MIN_LONG) < 0 || unscaled.compareTo(MAX_LONG) > 0
+					|| !render(unscaled.longValue(), decimal.scale()).equals(value) ) {
+				return toStrings().add(value);
+			}
+			scale = decimal.scale();
+			values[size++] = unscaled.longValue();
+			return this;
+		}
+
+		@Override
+		public Column build() {
+			return new NumberColumn(Arrays.copyOf(values, size), Math.max(scale, 0), nulls);
+		}
+
+		@Override
+		protected StringColumnBuilder toStrings() {
+			StringColumnBuilder strings = new StringColumnBuilder();
+			for( int i = 0; i < size; ++i )
+				strings.add(nulls.get(i) ? null : render(values[i], scale));
+			return strings;
+		}
+	}
+
+	private static final class BooleanColumnBuilder extends ColumnBuilder {
+		private final BitSet values = new BitSet();
+		private final BitSet nulls = new BitSet();
+		private String trueText;
+		private String falseText;
+
+		@Override
+		public ColumnBuilder add(String value) {
+			if( value == null ) {
+				nulls.set(size++);
+				return this;
+			}
+			if( trueText == null && isTrue(value) )
+				trueText = value;
+			else if( falseText == null && isFalse(value) )
+				falseText = value;
+
+			if( value.equals(trueText) ) {
+				values.set(size++);
+			} else if( value.equals(falseText) ) {
+				++size;
+			} else {
+				return toStrings().add(value);
+			}
+			return this;
+		}
+
+		private static boolean isTrue(String value) {
+			return "t".equalsIgnoreCase(value) || "true".equalsIgnoreCase(value) || "1".equals(value);
+		}
+
+		private static boolean isFalse(String value) {
+			return "f".equalsIgnoreCase(value) || "false".equalsIgnoreCase(value) || "0".equals(value);
+		}
+
+		@Override
+		public Column build() {
+			return new BooleanColumn(values, nulls, trueText, falseText);
+		}
+
+		@Override
+		protected StringColumnBuilder toStrings() {
+			StringColumnBuilder strings = new StringColumnBuilder();
+			for( int i = 0; i < size; ++i )
+				strings.add(nulls.get(i) ? null : values.get(i) ? trueText : falseText);
+			return strings;
+		}
+	}
+
+	/** Read-only view of the rows. */
+	private static final class Rows extends AbstractList<List<String>> implements RandomAccess {
+		private final ColumnarData data;
+
+		public Rows(ColumnarData data) {
+			this.data = data;
+		}
+
+		@Override
+		public List<String> get(int index) {
+			if( index < 0 || index >= data.rowCount )
+				throw new IndexOutOfBoundsException("row: " + index + ", rows: " + data.rowCount);
+			return new Row(data, index);
+		}
+
+		@Override
+		public int size() {
+			return data.rowCount;
+		}
+	}
+
+	/** Read-only view of one row. */
+	private static final class Row extends AbstractList<String> implements RandomAccess {
+		private final ColumnarData data;
+		private final int row;
+
+		public Row(ColumnarData data, int row) {
+			this.data = data;
+			this.row = row;
+		}
+
+		@Override
+		public String get(int index) {
+			return data.columns[index].get(row);
+		}
+
+		@Override
+		public int size() {
+			return data.columns.length;
+		}
+	}
+}
@@ -35,6 +35,21 @@ public class DatabaseTable implements Serializable {
 	
 	private ColumnInfoList columns = new ColumnInfoList();
 	
+	/**
+	 * Creates a table without columns.
+	 * 
+	 * @param catalog   the catalog or <code>null</code>
+	 * @param schema    the schema name
+	 * @param tableName the table name
+	 * @param type      the table type, e.g. <code>TABLE</code> or <code>VIEW</code>
+	 */
+	public DatabaseTable(String catalog, String schema, String tableName, String type) {
+		this.catalog = catalog;
+		this.schema = schema;
+		this.tableName = tableName;
+		this.type = type;
+	}
+	
 	/**
 	 * Fully loads the table metadata.
 	 * 
@@ -15,12 +15,31 @@
  */
 package edu.gatech.sqltutor;
 
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 
-public class QueryResult implements Serializable {
-	private static final long serialVersionUID = 1L;
+import com.google.common.collect.Iterators;
+
+/**
+ * The columns and rows of a query's result, with how they were read.
+ * <p>
+ * Results are kept in sessions, so they are serialized in a compact binary
+ * form: the column names, the rows as {@link ColumnarData#writeTo(java.io.DataOutput) 
+ * encoded columns}, and the flags and times.  The spill and the fingerprints 
+ * are not serialized.
+ * </p>
+ */
+public class QueryResult implements Externalizable {
+	private static final long serialVersionUID = 2L;
+	/** The version of the serialized form. */
+	private static final int FORMAT_VERSION = 1;
 	/** 
 	 * The maximum results that should be stored in a <code>QueryResult</code> before setting 
 	 * the truncated flag.
@@ -33,36 +52,136 @@ public class QueryResult implements Serializable {
 	public static final int QUERY_READ_LIMIT = 500_000;
 	
 	private List<String> columns = new ArrayList<String>();
-    private List<List<String>> data = new ArrayList<List<String>>();
+    /** The rows, stored by column, or <code>null</code> if there are none. */
+    private ColumnarData data = ColumnarData.EMPTY;
     private int originalSize;
     private boolean truncated;
     private boolean readLimitExceeded;
+    private boolean incomplete;
+    private Boolean matchesExpected;
     private long executionTime = -1L;
     private long totalTime = -1L;
+    /** The rows after those of {@link #data}, if they were spilled, which are lost on serialization. */
+    private transient RowSpill spill;
+    private transient ResultComparator.Fingerprints fingerprints;
     
     public QueryResult() {}
     
-    @SuppressWarnings("unchecked")
 	public QueryResult(QueryResult queryResult) {
-    	this.columns = (List<String>) ((ArrayList<String>)queryResult.getColumns()).clone();
-    	this.data = (List<List<String>>) ((ArrayList<List<String>>)queryResult.getData()).clone();
+    	this.columns = new ArrayList<String>(queryResult.getColumns());
+    	this.data = queryResult.getColumnarData();
     }
     
     public QueryResult(List<String> columns, List<List<String>> data) {
     	this.columns = columns;
-    	this.data = data;
+    	setData(data);
     	if (data != null)
     		originalSize = data.size();
     }
 
+	/**
+	 * Sets the rows of this result.  The rows are copied unless they 
+	 * are the rows of another result.
+	 * @param data the rows, or <code>null</code>
+	 */
 	public void setData(List<List<String>> data) {
-		this.data = data;
+		this.data = data == null ? null : ColumnarData.of(data);
 	}
 
+	/**
+	 * Returns a read-only view of the rows of this result.
+	 * @return the rows, or <code>null</code> if none were set
+	 */
 	public List<List<String>> getData() {
+		return data == null ? null : data.asRows();
+	}
+
+	public void setColumnarData(ColumnarData data) {
+		this.data = data;
+	}
+
+	public ColumnarData getColumnarData() {
 		return data;
 	}
-	
+
+	/**
+	 * Returns the value at the given row and column of this result.
+	 * @param row		the zero-based row index
+	 * @param column	the zero-based column index
+	 * @return the value, which may be <code>null</code>
+	 */
+	public String getValue(int row, int column) {
+		if (data == null)
+			throw new IndexOutOfBoundsException("row: " + row + ", rows: 0");
+		return data.get(row, column);
+	}
+
+	/**
+	 * Returns the rows kept in the heap and in the spill.
+	 * @see #getRows(int, int)
+	 */
+	public int getRowCount() {
+		final int heapRows = data == null ? 0 : data.getRowCount();
+		return spill == null || spill.isReleased() ? heapRows : heapRows + spill.getRowCount();
+	}
+
+	/**
+	 * Returns consecutive rows, reading those after the rows of {@link #getData()} from the spill.
+	 * @param first	the zero-based index of the first row
+	 * @param count	the maximum number of rows
+	 * @return the rows, fewer than <code>count</code> after the last row
+	 * @throws IOException if reading the spill fails
+	 */
+	public List<List<String>> getRows(int first, int count) throws IOException {
+		final List<List<String>> heap = getData();
+		final int heapRows = heap == null ? 0 : heap.size();
+		final List<List<String>> rows = new ArrayList<List<String>>();
+		if (first < heapRows)
+			rows.addAll(heap.subList(first, Math.min(heapRows, first + count)));
+		if (rows.size() < count && spill != null && !spill.isReleased())
+			rows.addAll(spill.getRows(Math.max(0, first - heapRows), count - rows.size()));
+		return rows;
+	}
+
+	/**
+	 * Iterates over the rows kept in the heap and then over those in the spill, 
+	 * without reading all of them into the heap.
+	 * @throws IOException if the spill was released meanwhile
+	 */
+	public Iterator<List<String>> rowIterator() throws IOException {
+		final List<List<String>> heap = getData();
+		final Iterator<List<String>> heapRows = heap == null 
+				? Collections.<List<String>>emptyIterator() : heap.iterator();
+		final RowSpill spill = this.spill;
+		if (spill == null || spill.isReleased())
+			return heapRows;
+		return Iterators.concat(heapRows, spill.iterator(0));
+	}
+
+	/**
+	 * Returns the rows read after those of {@link #getData()}, or <code>null</code> if none were spilled.
+	 * Holders of this result must {@link RowSpill#release() release} the spill when done.
+	 */
+	public RowSpill getSpill() {
+		return spill;
+	}
+
+	public void setSpill(RowSpill spill) {
+		this.spill = spill;
+	}
+
+	/**
+	 * Returns the fingerprints of the rows, if they were kept to compare this result 
+	 * to an expected result that was not known when it was read.
+	 * @return the fingerprints, or <code>null</code>
+	 */
+	public ResultComparator.Fingerprints getFingerprints() {
+		return fingerprints;
+	}
+
+	public void setFingerprints(ResultComparator.Fingerprints fingerprints) {
+		this.fingerprints = fingerprints;
+	}
 
 	public void setColumns(List<String> columns) {
 		this.columns = columns;
@@ -109,6 +228,33 @@ public class QueryResult implements Serializable {
 		this.readLimitExceeded = readLimitExceeded;
 	}
 	
+	/**
+	 * Returns whether reading stopped early because the rows were known to 
+	 * differ from the expected result.  The original size is then the number 
+	 * of rows read.
+	 * @return if not all rows were read
+	 */
+	public boolean isIncomplete() {
+		return incomplete;
+	}
+	
+	public void setIncomplete(boolean incomplete) {
+		this.incomplete = incomplete;
+	}
+	
+	/**
+	 * Returns whether the rows matched the expected result they were 
+	 * compared to as they were read.
+	 * @return if the rows matched, or <code>null</code> if they were not compared
+	 */
+	public Boolean getMatchesExpected() {
+		return matchesExpected;
+	}
+	
+	public void setMatchesExpected(Boolean matchesExpected) {
+		this.matchesExpected = matchesExpected;
+	}
+	
 	/**
 	 * Returns the query execution time in milliseconds.  This is the time taken 
 	 * before results started being returned.
@@ -134,4 +280,47 @@ public class QueryResult implements Serializable {
 	public void setTotalTime(long totalTime) {
 		this.totalTime = totalTime;
 	}
+
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		out.writeByte(FORMAT_VERSION);
+		BinaryCodec.writeVarInt(out, columns == null ? 0 : columns.size() + 1);
+		if (columns != null) {
+			for (String column : columns)
+				BinaryCodec.writeString(out, column);
+		}
+		out.writeBoolean(data != null);
+		if (data != null)
+			data.writeTo(out);
+		BinaryCodec.writeVarInt(out, originalSize);
+		int flags = (truncated ? 1 : 0) | (readLimitExceeded ? 2 : 0) | (incomplete ? 4 : 0);
+		if (matchesExpected != null)
+			flags |= matchesExpected ? 8 : 16;
+		out.writeByte(flags);
+		out.writeLong(executionTime);
+		out.writeLong(totalTime);
+	}
+
+	@Override
+	public void readExternal(ObjectInput in) throws IOException {
+		final int version = in.readUnsignedByte();
+		if (version != FORMAT_VERSION)
+			throw new InvalidObjectException("Unsupported result format: " + version);
+		final int columnCount = BinaryCodec.readVarInt(in) - 1;
+		columns = null;
+		if (columnCount >= 0) {
+			columns = new ArrayList<String>(columnCount);
+			for (int i = 0; i < columnCount; ++i)
+				columns.add(BinaryCodec.readString(in));
+		}
+		data = in.readBoolean() ? ColumnarData.readFrom(in) : null;
+		originalSize = BinaryCodec.readVarInt(in);
+		final int flags = in.readUnsignedByte();
+		truncated = (flags & 1) != 0;
+		readLimitExceeded = (flags & 2) != 0;
+		incomplete = (flags & 4) != 0;
+		matchesExpected = (flags & 8) != 0 ? Boolean.TRUE : (flags & 16) != 0 ? Boolean.FALSE : null;
+		executionTime = in.readLong();
+		totalTime = in.readLong();
+	}
 }
@@ -0,0 +1,366 @@
+/*
+ *   Copyright (c) 2015 Program Analysis Group, Georgia Tech
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package edu.gatech.sqltutor;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multiset;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Longs;
+
+/**
+ * Compares results against an expected result by row fingerprints.
+ * <p>
+ * Each row of the expected result is reduced to a 128-bit hash of its values
+ * once, when the comparator is created.  Results are then compared in a single
+ * pass over their rows, stopping at the first row known not to match, and
+ * may also be compared as their rows are read with {@link #compare(int)}.
+ * Results read before their expected result is known may keep only the
+ * fingerprints of their rows, see {@link Fingerprints}.
+ * When row order matters the fingerprints must match in sequence, otherwise
+ * they are compared as a multiset.  When column order does not matter, the
+ * fingerprint of a row does not depend on the order of its values.
+ * </p><p>
+ * Comparators are immutable and may be shared by any number of threads.
+ * </p>
+ */
+public final class ResultComparator {
+	private static final HashFunction HASH = Hashing.murmur3_128();
+
+	private final boolean columnOrderMatters;
+	private final boolean rowOrderMatters;
+	private final int columnCount;
+	private final int rowCount;
+	/** Row fingerprints in order, two longs per row, if row order matters. */
+	private final long[] orderedRows;
+	/** Row fingerprints with their counts, if row order does not matter. */
+	private final Multiset<HashCode> unorderedRows;
+
+	/**
+	 * Creates a comparator for the given expected result.
+	 *
+	 * @param expected				the expected result
+	 * @param columnOrderMatters	whether the values of a row must be in the same order
+	 * @param rowOrderMatters		whether the rows must be in the same order
+	 */
+	public ResultComparator(QueryResult expected, boolean columnOrderMatters, boolean rowOrderMatters) {
+		this.columnOrderMatters = columnOrderMatters;
+		this.rowOrderMatters = rowOrderMatters;
+		this.columnCount = expected.getColumns().size();
+
+		final ColumnarData data = expected.getColumnarData();
+		this.rowCount = data == null ? 0 : data.getRowCount();
+		if( rowOrderMatters ) {
+			orderedRows = new long[rowCount * 2];
+			unorderedRows = null;
+		} else {
+			orderedRows = null;
+			unorderedRows = HashMultiset.create();
+		}
+
+		RowHasher hasher = new RowHasher(columnOrderMatters);
+		for( int row = 0; row < rowCount; ++row ) {
+			for( int column = 0; column < columnCount; ++column )
+				hasher.putValue(data.get(row, column));
+			HashCode fingerprint = hasher.hash();
+			if( rowOrderMatters ) {
+				orderedRows[row * 2] = fingerprint.asLong();
+				orderedRows[row * 2 + 1] = secondLong(fingerprint);
+			} else {
+				unorderedRows.add(fingerprint);
+			}
+		}
+	}
+
+	public boolean isColumnOrderMatters() {
+		return columnOrderMatters;
+	}
+
+	public boolean isRowOrderMatters() {
+		return rowOrderMatters;
+	}
+
+	/** Returns the number of rows of the expected result. */
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	/** Returns the number of columns of the expected result. */
+	public int getColumnCount() {
+		return columnCount;
+	}
+
+	/**
+	 * Returns whether a result matches the expected result.
+	 */
+	public boolean matches(QueryResult actual) {
+		final ColumnarData data = actual.getColumnarData();
+		final int rows = data == null ? 0 : data.getRowCount();
+		if( rows != rowCount )
+			return false;
+
+		Comparison comparison = compare(actual.getColumns().size());
+		for( int row = 0; row < rows && !comparison.isDifferent(); ++row ) {
+			for( int column = 0; column < columnCount; ++column )
+				comparison.hasher.putValue(data.get(row, column));
+			comparison.endRow();
+		}
+		return comparison.isMatch();
+	}
+
+	/**
+	 * Returns whether a result, of which only the row fingerprints were kept,
+	 * matches the expected result.
+	 *
+	 * @throws IllegalArgumentException if the fingerprints ignore column order and this comparator does not, or vice versa
+	 */
+	public boolean matches(Fingerprints actual) {
+		if( actual.columnOrderMatters != columnOrderMatters )
+			throw new IllegalArgumentException("fingerprints do not match the column order of the comparator");
+		if( actual.rows != rowCount )
+			return false;
+
+		Comparison comparison = compare(actual.columnCount);
+		for( int row = 0; row < actual.rows && !comparison.isDifferent(); ++row )
+			comparison.endRow(actual.hashes[row * 2], actual.hashes[row * 2 + 1]);
+		return comparison.isMatch();
+	}
+
+	/**
+	 * Returns whether the remaining rows of a result set match the expected
+	 * result.  Rows are read one at a time and are not kept, and reading stops
+	 * at the first row that does not match.
+	 *
+	 * @param actual the result set to read
+	 * @throws SQLException if reading the result set fails
+	 */
+	public boolean matches(ResultSet actual) throws SQLException {
+		Comparison comparison = compare(actual.getMetaData().getColumnCount());
+		while( !comparison.isDifferent() && actual.next() ) {
+			for( int column = 1; column <= columnCount; ++column )
+				comparison.hasher.putValue(actual.getString(column));
+			comparison.endRow();
+		}
+		return comparison.isMatch();
+	}
+
+	/**
+	 * Starts comparing a result row by row, for callers that read the rows
+	 * themselves.
+	 *
+	 * @param actualColumnCount the number of columns of the result
+	 * @return the comparison, already different if the number of columns differs
+	 */
+	public Comparison compare(int actualColumnCount) {
+		Comparison comparison = new Comparison();
+		if( actualColumnCount != columnCount )
+			comparison.different = true;
+		return comparison;
+	}
+
+	/**
+	 * The state of one comparison.  Once a comparison is known to be
+	 * different, further rows are ignored and need not be read.
+	 */
+	public final class Comparison {
+		private final RowHasher hasher = new RowHasher(columnOrderMatters);
+		private final Multiset<HashCode> seen = rowOrderMatters ? null : HashMultiset.<HashCode>create();
+		private int rows;
+		private boolean different;
+
+		private Comparison() {
+		}
+
+		/**
+		 * Adds the next row of the result.
+		 * @param values the row's values, one per column
+		 * @return <code>false</code> if the result is known to be different
+		 */
+		public boolean addRow(String[] values) {
+			if( !different ) {
+				for( String value: values )
+					hasher.putValue(value);
+				endRow();
+			}
+			return !different;
+		}
+
+		private void endRow() {
+			HashCode fingerprint = hasher.hash();
+			endRow(fingerprint.asLong(), secondLong(fingerprint));
+		}
+
+		private void endRow(long first, long second) {
+			int row = rows++;
+			if( row >= rowCount ) {
+				different = true;
+			} else if( rowOrderMatters ) {
+				different = orderedRows[row * 2] != first || orderedRows[row * 2 + 1] != second;
+			} else {
+				HashCode fingerprint = HashCode.fromBytes(ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN)
+					.putLong(first).putLong(second).array());
+				different = seen.add(fingerprint, 1) >= unorderedRows.count(fingerprint);
+			}
+		}
+
+		/** Returns whether the result is known to be different, even if not all rows were added. */
+		public boolean isDifferent() {
+			return different;
+		}
+
+		/** Returns whether the rows added so far are the complete expected result. */
+		public boolean isMatch() {
+			// every row matched and none were in excess, so the counts agree
+			return !different && rows == rowCount;
+		}
+	}
+
+	/**
+	 * The fingerprints of the rows of a result, kept instead of its rows
+	 * until the expected result is known.  Fingerprints take 16 bytes per row
+	 * and only depend on whether column order matters, not row order.
+	 */
+	public static final class Fingerprints {
+		private final boolean columnOrderMatters;
+		private final int columnCount;
+		private final RowHasher hasher;
+		/** Two longs per row. */
+		private long[] hashes = new long[32];
+		private int rows;
+
+		/**
+		 * @param columnOrderMatters	whether the values of a row must be in the same order
+		 * @param columnCount			the number of columns of the result
+		 */
+		public Fingerprints(boolean columnOrderMatters, int columnCount) {
+			this.columnOrderMatters = columnOrderMatters;
+			this.columnCount = columnCount;
+			this.hasher = new RowHasher(columnOrderMatters);
+		}
+
+		/**
+		 * Adds the next row of the result.
+		 * @param values the row's values, one per column
+		 */
+		public void addRow(String[] values) {
+			for( String value: values )
+				hasher.putValue(value);
+			HashCode fingerprint = hasher.hash();
+			if( rows * 2 == hashes.length )
+				hashes = Arrays.copyOf(hashes, hashes.length * 2);
+			hashes[rows * 2] = fingerprint.asLong();
+			hashes[rows * 2 + 1] = secondLong(fingerprint);
+			++rows;
+		}
+
+		public boolean isColumnOrderMatters() {
+			return columnOrderMatters;
+		}
+
+		/** Returns the number of rows added. */
+		public int getRowCount() {
+			return rows;
+		}
+
+		public int getColumnCount() {
+			return columnCount;
+		}
+
+		/**
+		 * Returns a digest of the row fingerprints in order, which is the same
+		 * for results with the same rows in the same order.
+		 */
+		public HashCode getOrderedDigest() {
+			Hasher digest = HASH.newHasher();
+			for( int i = 0; i < rows * 2; ++i )
+				digest.putLong(hashes[i]);
+			return digest.putInt(rows).hash();
+		}
+
+		/**
+		 * Returns a digest of the row fingerprints in any order, which is the same
+		 * for results with the same rows, counting duplicates.
+		 */
+		public HashCode getUnorderedDigest() {
+			// sums of the fingerprints do not depend on the order of the rows
+			long sumFirst = 0, sumSecond = 0;
+			for( int row = 0; row < rows; ++row ) {
+				sumFirst += hashes[row * 2];
+				sumSecond += hashes[row * 2 + 1];
+			}
+			return HASH.newHasher().putLong(sumFirst).putLong(sumSecond).putInt(rows).hash();
+		}
+	}
+
+	/** Hashes the values of one row at a time. */
+	private static final class RowHasher {
+		private final boolean columnOrderMatters;
+		private Hasher ordered;
+		private long sumFirst, sumSecond;
+		private int values;
+
+		public RowHasher(boolean columnOrderMatters) {
+			this.columnOrderMatters = columnOrderMatters;
+		}
+
+		public void putValue(String value) {
+			if( columnOrderMatters ) {
+				if( ordered == null )
+					ordered = HASH.newHasher();
+				putValue(ordered, value);
+			} else {
+				// sums of value hashes do not depend on the order of the values
+				HashCode hash = putValue(HASH.newHasher(), value).hash();
+				sumFirst += hash.asLong();
+				sumSecond += secondLong(hash);
+			}
+			++values;
+		}
+
+		private Hasher putValue(Hasher hasher, String value) {
+			if( value == null )
+				return hasher.putBoolean(false);
+			return hasher.putBoolean(true).putInt(value.length()).putUnencodedChars(value);
+		}
+
+		/** Returns the fingerprint of the current row and starts the next one. */
+		public HashCode hash() {
+			HashCode hash;
+			if( columnOrderMatters ) {
+				hash = ordered == null ? HASH.newHasher().putInt(0).hash() : ordered.putInt(values).hash();
+			} else {
+				hash = HASH.newHasher().putLong(sumFirst).putLong(sumSecond).putInt(values).hash();
+			}
+			ordered = null;
+			sumFirst = sumSecond = 0;
+			values = 0;
+			return hash;
+		}
+	}
+
+	private static long secondLong(HashCode hash) {
+		byte[] b = hash.asBytes();
+		return Longs.fromBytes(b[15], b[14], b[13], b[12], b[11], b[10], b[9], b[8]);
+	}
+}
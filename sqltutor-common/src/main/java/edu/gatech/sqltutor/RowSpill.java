@@ -0,0 +1,329 @@
+/*
+ *   Copyright (c) 2015 Program Analysis Group, Georgia Tech
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package edu.gatech.sqltutor;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Result rows kept in a temporary file instead of the heap, and read back through memory mappings.
+ * <p>
+ * Rows are appended while the result is read and {@link #finish() finished} before
+ * they are read back.  Each value is stored as its length and UTF-8 bytes, and the
+ * file offset of every {@link #INDEX_INTERVAL}th row is kept, so reading a page
+ * starts close to its first row.
+ * </p><p>
+ * A finished file is mapped in segments of at most {@link #SEGMENT_BYTES} bytes
+ * that start at indexed rows, and is then closed, so that a spill holds no file
+ * descriptor and its rows live in the page cache rather than in the heap.  Rows
+ * are read by {@link #getRows(int, int) page} or {@link #iterator(int) iterated}.
+ * </p><p>
+ * Spills may be shared.  Each holder {@link #retain() retains} the spill and
+ * {@link #release() releases} it when done, and the file is deleted when the
+ * last holder releases it.  The mappings are dropped then too, and are unmapped
+ * when they are collected; iterators created before keep reading them.  The 
+ * creator holds the first reference.
+ * </p>
+ */
+public final class RowSpill implements Closeable, Iterable<List<String>> {
+	/** The file offset of every this many rows is kept. */
+	public static final int INDEX_INTERVAL = 64;
+	/** The maximum size of a mapped segment, unless a single run of indexed rows is larger. */
+	public static final int SEGMENT_BYTES = 64 << 20;
+	public static final String SUFFIX = ".rows";
+
+	private final File file;
+	private final int columnCount;
+	private final int segmentBytes;
+	private DataOutputStream out;
+	private long length;
+	private long[] offsets = new long[16];
+	private int rowCount;
+	/** The mapped segments, and the index of the first offset in each. */
+	private ByteBuffer[] segments;
+	private int[] segmentStarts;
+	private int references = 1;
+
+	/**
+	 * Creates an empty spill.
+	 *
+	 * @param directory		the directory of the file, created if needed
+	 * @param columnCount	the number of columns of the rows
+	 * @throws IOException if the file cannot be created
+	 */
+	public RowSpill(File directory, int columnCount) throws IOException {
+		this(directory, columnCount, SEGMENT_BYTES);
+	}
+
+	RowSpill(File directory, int columnCount, int segmentBytes) throws IOException {
+		if( !directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory() )
+			throw new IOException("Could not create directory: " + directory);
+		this.file = File.createTempFile("result-", SUFFIX, directory);
+		this.columnCount = columnCount;
+		this.segmentBytes = segmentBytes;
+		this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+	}
+
+	/**
+	 * Appends a row.
+	 * @param values the row's values, one per column
+	 * @throws IOException if writing fails
+	 */
+	public synchronized void addRow(String[] values) throws IOException {
+		if( out == null )
+			throw new IllegalStateException("spill is finished");
+		if( rowCount % INDEX_INTERVAL == 0 ) {
+			int index = rowCount / INDEX_INTERVAL;
+			if( index == offsets.length )
+				offsets = Arrays.copyOf(offsets, offsets.length * 2);
+			offsets[index] = length;
+		}
+		for( int i = 0; i < columnCount; ++i ) {
+			String value = values[i];
+			if( value == null ) {
+				out.writeInt(-1);
+				length += 4;
+			} else {
+				byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+				length += 4 + bytes.length;
+			}
+		}
+		++rowCount;
+	}
+
+	/**
+	 * Ends appending rows and maps the file, so that they can be read.
+	 * @throws IOException if writing or mapping fails
+	 */
+	public synchronized void finish() throws IOException {
+		if( out == null )
+			return;
+		out.close();
+		out = null;
+
+		int indexCount = (rowCount + INDEX_INTERVAL - 1) / INDEX_INTERVAL;
+		List<ByteBuffer> mapped = new ArrayList<ByteBuffer>();
+		int[] starts = new int[Math.max(1, indexCount)];
+		try( RandomAccessFile in = new RandomAccessFile(file, "r") ) {
+			FileChannel channel = in.getChannel();
+			int index = 0;
+			while( index < indexCount ) {
+				// extend the segment by runs of indexed rows while it stays small enough
+				int end = index + 1;
+				while( end < indexCount && offset(end + 1) - offsets[index] <= segmentBytes )
+					++end;
+				long size = offset(end) - offsets[index];
+				if( size > Integer.MAX_VALUE )
+					throw new IOException("Rows too large to map: " + size + " bytes");
+				starts[mapped.size()] = index;
+				mapped.add(channel.map(FileChannel.MapMode.READ_ONLY, offsets[index], size));
+				index = end;
+			}
+		}
+		segments = mapped.toArray(new ByteBuffer[mapped.size()]);
+		segmentStarts = Arrays.copyOf(starts, segments.length);
+	}
+
+	/** Returns the offset of an indexed row, or the file length past the last one. */
+	private long offset(int index) {
+		return index * (long)INDEX_INTERVAL < rowCount ? offsets[index] : length;
+	}
+
+	public int getColumnCount() {
+		return columnCount;
+	}
+
+	public synchronized int getRowCount() {
+		return rowCount;
+	}
+
+	/**
+	 * Reads consecutive rows.
+	 *
+	 * @param first	the zero-based index of the first row
+	 * @param count	the maximum number of rows
+	 * @return the rows, fewer than <code>count</code> at the end of the spill
+	 * @throws IOException if the spill was deleted
+	 */
+	public List<List<String>> getRows(int first, int count) throws IOException {
+		int end = (int)Math.min((long)first + count, getRowCount());
+		Iterator<List<String>> it = iterator(first);
+		List<List<String>> rows = new ArrayList<List<String>>(Math.max(0, end - first));
+		for( int row = first; row < end; ++row )
+			rows.add(it.next());
+		return rows;
+	}
+
+	/**
+	 * Iterates over all rows.
+	 * @throws IllegalStateException if the spill was deleted
+	 */
+	@Override
+	public Iterator<List<String>> iterator() {
+		try {
+			return iterator(0);
+		} catch( IOException e ) {
+			throw new IllegalStateException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Iterates over the rows from a given one on.  The iterator reads the 
+	 * mappings directly and keeps working if the spill is released meanwhile.
+	 *
+	 * @param first the zero-based index of the first row
+	 * @return the iterator, which is not thread-safe
+	 * @throws IOException if the spill was deleted
+	 */
+	public Iterator<List<String>> iterator(int first) throws IOException {
+		final ByteBuffer[] segments;
+		final int[] segmentStarts;
+		final int rowCount;
+		synchronized( this ) {
+			if( out != null )
+				throw new IllegalStateException("spill is not finished");
+			if( references <= 0 )
+				throw new IOException("Spill was released: " + file);
+			segments = this.segments;
+			segmentStarts = this.segmentStarts;
+			rowCount = this.rowCount;
+		}
+		if( first < 0 )
+			throw new IndexOutOfBoundsException("first: " + first);
+		return new RowIterator(segments, segmentStarts, rowCount, first);
+	}
+
+	/** Reads rows from the mapped segments, each through its own view of them. */
+	private final class RowIterator implements Iterator<List<String>> {
+		private final ByteBuffer[] segments;
+		private final int[] segmentStarts;
+		private final int rowCount;
+		private int segment;
+		private ByteBuffer buffer;
+		private int row;
+
+		public RowIterator(ByteBuffer[] segments, int[] segmentStarts, int rowCount, int first) {
+			this.segments = segments;
+			this.segmentStarts = segmentStarts;
+			this.rowCount = rowCount;
+			this.row = Math.min(first, rowCount);
+			if( row < rowCount ) {
+				int index = row / INDEX_INTERVAL;
+				int found = Arrays.binarySearch(segmentStarts, index);
+				segment = found >= 0 ? found : -found - 2;
+				buffer = segments[segment].duplicate();
+				buffer.position((int)(offsets[index] - offsets[segmentStarts[segment]]));
+				// skip to the first row from its indexed row
+				for( int skipped = row - row % INDEX_INTERVAL; skipped < row; ++skipped )
+					read(false);
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return row < rowCount;
+		}
+
+		@Override
+		public List<String> next() {
+			if( row >= rowCount )
+				throw new NoSuchElementException();
+			// rows without columns take no bytes
+			if( !buffer.hasRemaining() && segment + 1 < segments.length )
+				buffer = segments[++segment].duplicate();
+			List<String> values = read(true);
+			++row;
+			return values;
+		}
+
+		private List<String> read(boolean keep) {
+			String[] values = keep ? new String[columnCount] : null;
+			for( int i = 0; i < columnCount; ++i ) {
+				int length = buffer.getInt();
+				if( length < 0 )
+					continue;
+				if( keep ) {
+					byte[] bytes = new byte[length];
+					buffer.get(bytes);
+					values[i] = new String(bytes, StandardCharsets.UTF_8);
+				} else {
+					buffer.position(buffer.position() + length);
+				}
+			}
+			return keep ? Collections.unmodifiableList(Arrays.asList(values)) : null;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Adds a holder.
+	 * @return <code>false</code> if the spill was already deleted
+	 */
+	public synchronized boolean retain() {
+		if( references <= 0 )
+			return false;
+		++references;
+		return true;
+	}
+
+	/**
+	 * Removes a holder, deleting the file and dropping the mappings once no holders remain.
+	 */
+	public synchronized void release() {
+		if( references <= 0 || --references > 0 )
+			return;
+		Utils.tryClose(out);
+		out = null;
+		segments = null;
+		segmentStarts = null;
+		file.delete();
+	}
+
+	/** Same as {@link #release()}. */
+	@Override
+	public void close() {
+		release();
+	}
+
+	/** Returns whether the file was deleted. */
+	public synchronized boolean isReleased() {
+		return references <= 0;
+	}
+
+	public File getFile() {
+		return file;
+	}
+}
@@ -0,0 +1,273 @@
+/*
+ *   Copyright (c) 2015 Program Analysis Group, Georgia Tech
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package edu.gatech.sqltutor.sql;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+import javax.sql.DataSource;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.Striped;
+
+import edu.gatech.sqltutor.ColumnInfo;
+import edu.gatech.sqltutor.DatabaseTable;
+
+/**
+ * Cached table and column metadata of the schemas of a data source.
+ * <p>
+ * The tables of a schema and all of their columns are read with a single
+ * <code>information_schema</code> query, instead of a <code>DatabaseMetaData</code>
+ * call per table, and kept until the schema is invalidated, e.g. after DDL.
+ * Each invalidation gives the schema a new version, and tables read for an
+ * older version are never kept, even if the read completes after the invalidation.
+ * </p><p>
+ * Unlike {@link edu.gatech.sqltutor.QueryUtils#readTableInfo(DatabaseMetaData, String)},
+ * only tables the current role holds privileges on are listed, and column sizes
+ * are those of <code>information_schema</code>.
+ * </p><p>
+ * The cached tables are shared.  Their lists are unmodifiable, and the tables
+ * themselves must not be modified.
+ * </p>
+ */
+public class SchemaCatalog {
+	private static final String TABLES_QUERY =
+		"SELECT t.table_catalog, t.table_schema, t.table_name, t.table_type, c.* " +
+		"FROM information_schema.tables t LEFT JOIN information_schema.columns c " +
+		"ON c.table_catalog = t.table_catalog AND c.table_schema = t.table_schema AND c.table_name = t.table_name " +
+		"WHERE t.table_schema LIKE ? AND t.table_type IN ('BASE TABLE', 'TABLE', 'VIEW') " +
+		"ORDER BY t.table_type, t.table_catalog, t.table_schema, t.table_name, c.ordinal_position";
+
+	/** JDBC types of PostgreSQL's type names, as the PostgreSQL driver reports them. */
+	private static final Map<String, Integer> TYPES_BY_NAME = ImmutableMap.<String, Integer>builder()
+		.put("int2", Types.SMALLINT).put("smallint", Types.SMALLINT)
+		.put("int4", Types.INTEGER).put("integer", Types.INTEGER)
+		.put("int8", Types.BIGINT).put("bigint", Types.BIGINT)
+		.put("float4", Types.REAL).put("real", Types.REAL)
+		.put("float8", Types.DOUBLE).put("double precision", Types.DOUBLE)
+		.put("numeric", Types.NUMERIC)
+		.put("bool", Types.BIT).put("boolean", Types.BIT)
+		.put("varchar", Types.VARCHAR).put("character varying", Types.VARCHAR).put("text", Types.VARCHAR)
+		.put("bpchar", Types.CHAR).put("character", Types.CHAR)
+		.put("date", Types.DATE)
+		.put("time", Types.TIME).put("timetz", Types.TIME)
+		.put("time without time zone", Types.TIME).put("time with time zone", Types.TIME)
+		.put("timestamp", Types.TIMESTAMP).put("timestamptz", Types.TIMESTAMP)
+		.put("timestamp without time zone", Types.TIMESTAMP).put("timestamp with time zone", Types.TIMESTAMP)
+		.put("bytea", Types.BINARY)
+		.build();
+
+	private static final class Entry {
+		private final long version;
+		private final List<DatabaseTable> tables;
+
+		public Entry(long version, List<DatabaseTable> tables) {
+			this.version = version;
+			this.tables = tables;
+		}
+	}
+
+	private final DataSource dataSource;
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	/** The current version of each invalidated schema, others are at version 0. */
+	private final ConcurrentMap<String, Long> versions = new ConcurrentHashMap<String, Long>();
+	private final AtomicLong lastVersion = new AtomicLong();
+	private final Striped<Lock> loadLocks = Striped.lock(64);
+
+	/**
+	 * @param dataSource the data source whose schemas to read
+	 */
+	public SchemaCatalog(DataSource dataSource) {
+		if( dataSource == null ) throw new NullPointerException("dataSource is null");
+		this.dataSource = dataSource;
+	}
+
+	/**
+	 * Returns the tables and views of a schema, reading them if they are not cached.
+	 *
+	 * @param schema the schema name
+	 * @return the unmodifiable tables, ordered as by <code>DatabaseMetaData.getTables</code>
+	 * @throws SQLException if reading the metadata fails
+	 */
+	public List<DatabaseTable> getTables(String schema) throws SQLException {
+		Entry entry = entries.get(schema);
+		if( entry != null && entry.version == getVersion(schema) )
+			return entry.tables;
+
+		Lock lock = loadLocks.get(schema);
+		lock.lock();
+		try {
+			long version = getVersion(schema);
+			entry = entries.get(schema);
+			if( entry != null && entry.version == version )
+				return entry.tables;
+
+			List<DatabaseTable> tables;
+			try( Connection connection = dataSource.getConnection() ) {
+				tables = readTables(connection, escapePattern(schema));
+			}
+			entry = new Entry(version, Collections.unmodifiableList(tables));
+			entries.put(schema, entry);
+			return entry.tables;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the names of the tables and views of a schema.
+	 *
+	 * @see #getTables(String)
+	 */
+	public List<String> getTableNames(String schema) throws SQLException {
+		List<DatabaseTable> tables = getTables(schema);
+		List<String> names = new ArrayList<String>(tables.size());
+		for( DatabaseTable table: tables )
+			names.add(table.getTableName());
+		return names;
+	}
+
+	/**
+	 * Discards the cached metadata of a schema, including metadata being read.
+	 *
+	 * @param schema the schema name
+	 */
+	public void invalidate(String schema) {
+		versions.put(schema, lastVersion.incrementAndGet());
+		entries.remove(schema);
+	}
+
+	public void invalidateAll() {
+		for( String schema: entries.keySet() )
+			invalidate(schema);
+	}
+
+	public long getVersion(String schema) {
+		Long version = versions.get(schema);
+		return version != null ? version : 0L;
+	}
+
+	/**
+	 * Reads the tables and views of the matching schemas, with their columns, in a single query.
+	 *
+	 * @param connection     the connection to read with
+	 * @param schemaPattern  a <code>LIKE</code> pattern of the schema names, or <code>null</code> for all schemas
+	 * @return the tables, ordered as by <code>DatabaseMetaData.getTables</code>
+	 * @throws SQLException if thrown by the JDBC API
+	 */
+	public static List<DatabaseTable> readTables(Connection connection, String schemaPattern) throws SQLException {
+		List<DatabaseTable> tables = new ArrayList<DatabaseTable>();
+		try( PreparedStatement statement = connection.prepareStatement(TABLES_QUERY) ) {
+			statement.setString(1, schemaPattern != null ? schemaPattern : "%");
+			try( ResultSet rs = statement.executeQuery() ) {
+				// the columns of information_schema.columns differ between databases
+				ResultSetMetaData meta = rs.getMetaData();
+				Map<String, Integer> columnIndexes = new HashMap<String, Integer>();
+				for( int i = meta.getColumnCount(); i > 4; --i )
+					columnIndexes.put(meta.getColumnLabel(i).toLowerCase(Locale.ENGLISH), i);
+
+				DatabaseTable table = null;
+				List<ColumnInfo> columns = null;
+				while( rs.next() ) {
+					String catalog = rs.getString(1), schema = rs.getString(2), name = rs.getString(3);
+					if( table == null || !name.equals(table.getTableName()) || !schema.equals(table.getSchema()) ) {
+						if( table != null )
+							table.setColumns(Collections.unmodifiableList(columns));
+						String type = rs.getString(4);
+						table = new DatabaseTable(catalog, schema, name, "BASE TABLE".equals(type) ? "TABLE" : type);
+						columns = new ArrayList<ColumnInfo>();
+						tables.add(table);
+					}
+
+					String columnName = getString(rs, columnIndexes, "column_name");
+					if( columnName != null )
+						columns.add(readColumn(rs, columnIndexes, catalog, schema, name, columnName));
+				}
+				if( table != null )
+					table.setColumns(Collections.unmodifiableList(columns));
+			}
+		}
+		return tables;
+	}
+
+	private static ColumnInfo readColumn(ResultSet rs, Map<String, Integer> columnIndexes,
+			String catalog, String schema, String table, String name) throws SQLException {
+		ColumnInfo column = new ColumnInfo();
+		column.setCatalog(catalog);
+		column.setSchema(schema);
+		column.setTable(table);
+		column.setName(name);
+
+		Object dataType = getObject(rs, columnIndexes, "data_type");
+		String typeName = getString(rs, columnIndexes, "udt_name");
+		if( typeName == null )
+			typeName = getString(rs, columnIndexes, "type_name");
+		if( dataType instanceof Number ) {
+			column.setType(((Number)dataType).intValue());
+		} else {
+			Integer type = TYPES_BY_NAME.get(typeName != null ? typeName : String.valueOf(dataType));
+			if( type == null )
+				type = TYPES_BY_NAME.get(String.valueOf(dataType));
+			column.setType(type != null ? type : Types.OTHER);
+		}
+		column.setTypeName(typeName != null ? typeName : String.valueOf(dataType));
+
+		Object size = getObject(rs, columnIndexes, "character_maximum_length");
+		if( size == null )
+			size = getObject(rs, columnIndexes, "numeric_precision");
+		if( size == null )
+			size = getObject(rs, columnIndexes, "datetime_precision");
+		column.setSize(size instanceof Number ? ((Number)size).intValue() : 0);
+
+		String nullable = getString(rs, columnIndexes, "is_nullable");
+		column.setNullable("YES".equalsIgnoreCase(nullable) ? DatabaseMetaData.columnNullable
+			: "NO".equalsIgnoreCase(nullable) ? DatabaseMetaData.columnNoNulls : DatabaseMetaData.columnNullableUnknown);
+		Object position = getObject(rs, columnIndexes, "ordinal_position");
+		column.setPosition(position instanceof Number ? ((Number)position).intValue() : 0);
+		column.setDefaultValue(getString(rs, columnIndexes, "column_default"));
+		return column;
+	}
+
+	private static Object getObject(ResultSet rs, Map<String, Integer> columnIndexes, String column) throws SQLException {
+		Integer index = columnIndexes.get(column);
+		return index != null ? rs.getObject(index) : null;
+	}
+
+	private static String getString(ResultSet rs, Map<String, Integer> columnIndexes, String column) throws SQLException {
+		Integer index = columnIndexes.get(column);
+		return index != null ? rs.getString(index) : null;
+	}
+
+	/** Escapes a name for use as a <code>LIKE</code> pattern, so that <code>_</code> only matches itself. */
+	private static String escapePattern(String name) {
+		return name.replace("\\", "\\\\").replace("_", "\\_").replace("%", "\\%");
+	}
+}
@@ -0,0 +1,111 @@
+/*
+ *   Copyright (c) 2015 Program Analysis Group, Georgia Tech
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package edu.gatech.sqltutor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ColumnarDataTest {
+	private static final List<List<String>> ROWS = Arrays.asList(
+		Arrays.asList("1", "10.50", "t", "Smith", "1.5"),
+		Arrays.asList(null, "-3.25", "f", null, "2"),
+		Arrays.asList("9223372036854775807", null, null, "Smith", "1e+20"),
+		Arrays.asList("007", "0.00", "true", "Wong", "3.14")
+	);
+
+	private static ColumnarData buildTyped() {
+		ColumnarData.Builder builder = ColumnarData.builder(
+			new int[] { Types.INTEGER, Types.NUMERIC, Types.BIT, Types.VARCHAR, Types.DOUBLE });
+		for( List<String> row: ROWS )
+			builder.addRow(row.toArray(new String[row.size()]));
+		return builder.build();
+	}
+
+	@Test
+	public void testTypedColumnsKeepText() {
+		ColumnarData data = buildTyped();
+		Assert.assertEquals(4, data.getRowCount());
+		Assert.assertEquals(5, data.getColumnCount());
+		Assert.assertEquals(ROWS, data.asRows());
+		Assert.assertEquals("Wong", data.get(3, 3));
+		Assert.assertNull(data.get(1, 0));
+	}
+
+	@Test
+	public void testRowsAreShared() {
+		ColumnarData data = ColumnarData.of(ROWS);
+		Assert.assertEquals(ROWS, data.asRows());
+		Assert.assertSame(data, ColumnarData.of(data.asRows()));
+
+		QueryResult result = new QueryResult(Arrays.asList("a", "b", "c", "d", "e"), data.asRows());
+		Assert.assertSame(data, result.getColumnarData());
+		Assert.assertEquals("-3.25", result.getValue(1, 1));
+		Assert.assertEquals(4, result.getOriginalSize());
+	}
+
+	@Test(expected=UnsupportedOperationException.class)
+	public void testRowsAreReadOnly() {
+		ColumnarData.of(ROWS).asRows().get(0).set(0, "2");
+	}
+
+	@Test
+	public void testSerialization() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try( ObjectOutputStream out = new ObjectOutputStream(bytes) ) {
+			out.writeObject(buildTyped());
+		}
+		try( ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())) ) {
+			ColumnarData copy = (ColumnarData)in.readObject();
+			Assert.assertEquals(ROWS, copy.asRows());
+		}
+	}
+
+	@Test
+	public void testQueryResultSerialization() throws Exception {
+		QueryResult result = new QueryResult(Arrays.asList("a", "b", "c", "d", "e"), buildTyped().asRows());
+		result.setTruncated(true);
+		result.setMatchesExpected(false);
+		result.setTotalTime(42L);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try( ObjectOutputStream out = new ObjectOutputStream(bytes) ) {
+			out.writeObject(result);
+			out.writeObject(new QueryResult());
+		}
+		try( ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())) ) {
+			QueryResult copy = (QueryResult)in.readObject();
+			Assert.assertEquals(result.getColumns(), copy.getColumns());
+			Assert.assertEquals(ROWS, copy.getData());
+			Assert.assertEquals(4, copy.getOriginalSize());
+			Assert.assertTrue(copy.isTruncated());
+			Assert.assertFalse(copy.isIncomplete());
+			Assert.assertEquals(Boolean.FALSE, copy.getMatchesExpected());
+			Assert.assertEquals(42L, copy.getTotalTime());
+			Assert.assertEquals(-1L, copy.getExecutionTime());
+
+			QueryResult empty = (QueryResult)in.readObject();
+			Assert.assertEquals(0, empty.getRowCount());
+			Assert.assertNull(empty.getMatchesExpected());
+		}
+	}
+}
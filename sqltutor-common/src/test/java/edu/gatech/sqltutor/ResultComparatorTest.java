@@ -0,0 +1,174 @@
+/*
+ *   Copyright (c) 2015 Program Analysis Group, Georgia Tech
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package edu.gatech.sqltutor;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ResultComparatorTest {
+	private static QueryResult result(String... rows) {
+		List<String> columns = null;
+		ColumnarData.Builder builder = null;
+		for( String row: rows ) {
+			String[] values = row.split(",", -1);
+			for( int i = 0; i < values.length; ++i )
+				if( "null".equals(values[i]) ) values[i] = null;
+			if( builder == null ) {
+				columns = Arrays.asList(values);
+				builder = new ColumnarData.Builder(values.length);
+			} else {
+				builder.addRow(values);
+			}
+		}
+		QueryResult result = new QueryResult();
+		result.setColumns(columns);
+		result.setColumnarData(builder.build());
+		return result;
+	}
+
+	private static final QueryResult EXPECTED = result("a,b", "1,x", "2,y", "2,y", "3,null");
+
+	@Test
+	public void testOrdered() {
+		ResultComparator comparator = new ResultComparator(EXPECTED, true, true);
+		Assert.assertTrue(comparator.matches(result("c,d", "1,x", "2,y", "2,y", "3,null")));
+		Assert.assertFalse(comparator.matches(result("a,b", "2,y", "1,x", "2,y", "3,null")));
+		Assert.assertFalse(comparator.matches(result("b,a", "x,1", "y,2", "y,2", "null,3")));
+		Assert.assertFalse(comparator.matches(result("a,b", "1,x", "2,y", "2,y", "3,")));
+	}
+
+	@Test
+	public void testColumnOrderOnly() {
+		ResultComparator comparator = new ResultComparator(EXPECTED, false, true);
+		Assert.assertTrue(comparator.matches(result("b,a", "x,1", "y,2", "y,2", "null,3")));
+		Assert.assertFalse(comparator.matches(result("b,a", "y,2", "x,1", "y,2", "null,3")));
+	}
+
+	@Test
+	public void testRowOrderOnly() {
+		ResultComparator comparator = new ResultComparator(EXPECTED, true, false);
+		Assert.assertTrue(comparator.matches(result("a,b", "3,null", "2,y", "1,x", "2,y")));
+		Assert.assertFalse(comparator.matches(result("b,a", "null,3", "y,2", "x,1", "y,2")));
+		// same distinct rows, different counts
+		Assert.assertFalse(comparator.matches(result("a,b", "1,x", "1,x", "2,y", "3,null")));
+	}
+
+	@Test
+	public void testUnordered() {
+		ResultComparator comparator = new ResultComparator(EXPECTED, false, false);
+		Assert.assertTrue(comparator.matches(result("b,a", "null,3", "y,2", "x,1", "y,2")));
+		// the same values, but not in the same rows
+		Assert.assertFalse(comparator.matches(result("a,b", "1,y", "2,x", "2,y", "3,null")));
+		Assert.assertFalse(comparator.matches(result("a", "1", "2", "2", "3")));
+	}
+
+	@Test
+	public void testIncremental() {
+		ResultComparator comparator = new ResultComparator(EXPECTED, true, false);
+		Assert.assertTrue(comparator.compare(3).isDifferent());
+
+		ResultComparator.Comparison comparison = comparator.compare(2);
+		Assert.assertTrue(comparison.addRow(new String[] { "2", "y" }));
+		Assert.assertTrue(comparison.addRow(new String[] { "2", "y" }));
+		Assert.assertFalse(comparison.isMatch());
+		// a third (2, y) is known to be different before the remaining rows are read
+		Assert.assertFalse(comparison.addRow(new String[] { "2", "y" }));
+		Assert.assertTrue(comparison.isDifferent());
+
+		comparison = comparator.compare(2);
+		for( List<String> row: EXPECTED.getData() )
+			Assert.assertTrue(comparison.addRow(row.toArray(new String[2])));
+		Assert.assertTrue(comparison.isMatch());
+		Assert.assertFalse(comparison.addRow(new String[] { "4", "z" }));
+		Assert.assertFalse(comparison.isMatch());
+	}
+
+	private static ResultComparator.Fingerprints fingerprints(boolean columnOrderMatters, QueryResult result) {
+		ResultComparator.Fingerprints fingerprints = new ResultComparator.Fingerprints(columnOrderMatters, result.getColumns().size());
+		for( List<String> row: result.getData() )
+			fingerprints.addRow(row.toArray(new String[row.size()]));
+		return fingerprints;
+	}
+
+	@Test
+	public void testFingerprints() {
+		QueryResult reordered = result("b,a", "null,3", "y,2", "x,1", "y,2");
+		Assert.assertTrue(new ResultComparator(EXPECTED, true, true).matches(fingerprints(true, EXPECTED)));
+		Assert.assertTrue(new ResultComparator(EXPECTED, false, false).matches(fingerprints(false, reordered)));
+		Assert.assertFalse(new ResultComparator(EXPECTED, false, true).matches(fingerprints(false, reordered)));
+		Assert.assertFalse(new ResultComparator(EXPECTED, true, false).matches(fingerprints(true, reordered)));
+		Assert.assertFalse(new ResultComparator(EXPECTED, false, false).matches(fingerprints(false, result("a", "1", "2", "2", "3"))));
+		Assert.assertEquals(4, fingerprints(true, reordered).getRowCount());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testFingerprintsColumnOrder() {
+		new ResultComparator(EXPECTED, true, false).matches(fingerprints(false, EXPECTED));
+	}
+
+	private static AnswerFingerprint answerFingerprint(boolean columnOrderMatters, QueryResult result) {
+		return new AnswerFingerprint(result.getColumns(), Arrays.asList("int4", "text"), 
+			fingerprints(columnOrderMatters, result), 12L);
+	}
+
+	@Test
+	public void testAnswerFingerprint() {
+		QueryResult swapped = result("a,b", "2,y", "1,x", "3,null", "2,y");
+		QueryResult reordered = result("b,a", "null,3", "y,2", "x,1", "y,2");
+		AnswerFingerprint ordered = answerFingerprint(true, EXPECTED);
+		Assert.assertTrue(ordered.matches(fingerprints(true, EXPECTED), true));
+		Assert.assertFalse(ordered.matches(fingerprints(true, swapped), true));
+		Assert.assertTrue(ordered.matches(fingerprints(true, swapped), false));
+		Assert.assertFalse(ordered.matches(fingerprints(true, reordered), false));
+		Assert.assertFalse(ordered.matches(fingerprints(true, result("a,b", "1,x", "2,y", "3,null", "3,null")), false));
+		Assert.assertTrue(answerFingerprint(false, EXPECTED).matches(fingerprints(false, reordered), false));
+
+		// stored and read back
+		AnswerFingerprint stored = new AnswerFingerprint(ordered.getColumns(), ordered.getColumnTypes(), ordered.getRowCount(), 
+			ordered.isColumnOrderMatters(), ordered.getOrderedDigest(), ordered.getUnorderedDigest(), ordered.getExecutionTime());
+		Assert.assertTrue(stored.matches(fingerprints(true, swapped), false));
+		Assert.assertEquals(4, stored.getRowCount());
+	}
+
+	@Test
+	public void testResultSet() throws Exception {
+		try( Connection conn = DriverManager.getConnection("jdbc:h2:mem:") ) {
+			try( Statement stmt = conn.createStatement() ) {
+				stmt.execute("CREATE TABLE t (a INT, b VARCHAR(8))");
+				stmt.execute("INSERT INTO t VALUES (1, 'x'), (2, 'y'), (2, 'y'), (3, NULL)");
+
+				ResultComparator unordered = new ResultComparator(EXPECTED, true, false);
+				try( ResultSet rs = stmt.executeQuery("SELECT a, b FROM t ORDER BY a DESC") ) {
+					Assert.assertTrue(unordered.matches(rs));
+				}
+				ResultComparator ordered = new ResultComparator(EXPECTED, true, true);
+				try( ResultSet rs = stmt.executeQuery("SELECT a, b FROM t ORDER BY a DESC") ) {
+					Assert.assertFalse(ordered.matches(rs));
+				}
+				try( ResultSet rs = stmt.executeQuery("SELECT a, b FROM t WHERE a < 3") ) {
+					Assert.assertFalse(unordered.matches(rs));
+				}
+			}
+		}
+	}
+}
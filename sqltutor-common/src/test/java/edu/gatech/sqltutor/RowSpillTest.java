@@ -0,0 +1,107 @@
+/*
+ *   Copyright (c) 2015 Program Analysis Group, Georgia Tech
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package edu.gatech.sqltutor;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RowSpillTest {
+	private static RowSpill spill(int rows) throws Exception {
+		return spill(rows, RowSpill.SEGMENT_BYTES);
+	}
+
+	private static RowSpill spill(int rows, int segmentBytes) throws Exception {
+		RowSpill spill = new RowSpill(new File(System.getProperty("java.io.tmpdir"), "sqltutor-test-spill"), 2, segmentBytes);
+		for( int i = 0; i < rows; ++i )
+			spill.addRow(new String[] { Integer.toString(i), i % 3 == 0 ? null : "résumé " + i });
+		spill.finish();
+		return spill;
+	}
+
+	@Test
+	public void testPages() throws Exception {
+		try( RowSpill spill = spill(200) ) {
+			Assert.assertEquals(200, spill.getRowCount());
+			List<List<String>> rows = spill.getRows(60, 10);
+			Assert.assertEquals(10, rows.size());
+			Assert.assertEquals(Arrays.asList("60", null), rows.get(0));
+			Assert.assertEquals(Arrays.asList("64", "résumé 64"), rows.get(4));
+			// read backwards and past the end
+			Assert.assertEquals(Arrays.asList("1", "résumé 1"), spill.getRows(1, 1).get(0));
+			Assert.assertEquals(2, spill.getRows(198, 50).size());
+			Assert.assertTrue(spill.getRows(200, 50).isEmpty());
+		}
+	}
+
+	@Test
+	public void testSegments() throws Exception {
+		// every run of indexed rows gets its own segment
+		try( RowSpill spill = spill(300, 1) ) {
+			Assert.assertEquals(Arrays.asList("62", "résumé 62"), spill.getRows(62, 1).get(0));
+			List<List<String>> rows = spill.getRows(120, 100);
+			Assert.assertEquals(100, rows.size());
+			Assert.assertEquals(Arrays.asList("128", "résumé 128"), rows.get(8));
+			Assert.assertEquals(Arrays.asList("219", null), rows.get(99));
+		}
+	}
+
+	@Test
+	public void testIterator() throws Exception {
+		RowSpill spill = spill(130, 1000);
+		Iterator<List<String>> it = spill.iterator(100);
+		Assert.assertEquals(Arrays.asList("100", "résumé 100"), it.next());
+		// the mappings outlive the file
+		spill.release();
+		int count = 1;
+		for( ; it.hasNext(); it.next() )
+			++count;
+		Assert.assertEquals(30, count);
+	}
+
+	@Test
+	public void testReleasedByLastHolder() throws Exception {
+		RowSpill spill = spill(1);
+		Assert.assertTrue(spill.retain());
+		spill.release();
+		Assert.assertTrue(spill.getFile().exists());
+		spill.release();
+		Assert.assertFalse(spill.getFile().exists());
+		Assert.assertFalse(spill.retain());
+	}
+
+	@Test
+	public void testQueryResultRows() throws Exception {
+		QueryResult result = new QueryResult(Arrays.asList("a", "b"), Arrays.asList(
+			Arrays.asList("x", "y"), Arrays.asList("z", null)));
+		try( RowSpill spill = spill(5) ) {
+			result.setSpill(spill);
+			Assert.assertEquals(7, result.getRowCount());
+			List<List<String>> rows = result.getRows(1, 3);
+			Assert.assertEquals(Arrays.asList("z", null), rows.get(0));
+			Assert.assertEquals(Arrays.asList("1", "résumé 1"), rows.get(2));
+			Iterator<List<String>> it = result.rowIterator();
+			Assert.assertEquals(Arrays.asList("x", "y"), it.next());
+			it.next();
+			Assert.assertEquals(Arrays.asList("0", null), it.next());
+		}
+		Assert.assertEquals(2, result.getRowCount());
+	}
+}
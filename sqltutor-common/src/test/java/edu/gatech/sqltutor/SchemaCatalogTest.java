@@ -0,0 +1,79 @@
+/*
+ *   Copyright (c) 2015 Program Analysis Group, Georgia Tech
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package edu.gatech.sqltutor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import edu.gatech.sqltutor.sql.SchemaCatalog;
+
+public class SchemaCatalogTest {
+	private static JdbcDataSource dataSource;
+	/** Keeps the in-memory database open. */
+	private static Connection conn;
+
+	@BeforeClass
+	public static void beforeClass() throws Exception {
+		dataSource = new JdbcDataSource();
+		dataSource.setURL(TestConst.CONNECTION_URL + "catalog;mode=PostgreSQL");
+		conn = dataSource.getConnection();
+		try( Statement s = conn.createStatement() ) {
+			s.execute("CREATE SCHEMA A_B");
+			s.execute("CREATE SCHEMA AXB");
+			s.execute("CREATE TABLE A_B.T1 ( C1 INT NOT NULL, C2 VARCHAR(10) )");
+			s.execute("CREATE TABLE AXB.T3 ( C3 INT )");
+		}
+	}
+
+	@AfterClass
+	public static void afterClass() throws Exception {
+		Utils.tryClose(conn);
+		conn = null;
+	}
+
+	@Test
+	public void testCachedUntilInvalidated() throws Exception {
+		SchemaCatalog catalog = new SchemaCatalog(dataSource);
+		List<DatabaseTable> tables = catalog.getTables("A_B");
+		// the underscore is not a wildcard
+		assertEquals(1, tables.size());
+		assertEquals(Arrays.asList("C1", "C2"), tables.get(0).getColumnNames());
+		assertSame(tables, catalog.getTables("A_B"));
+
+		try( Statement s = conn.createStatement() ) {
+			s.execute("CREATE TABLE A_B.T2 ( C3 INT )");
+		}
+		assertSame(tables, catalog.getTables("A_B"));
+
+		catalog.invalidate("A_B");
+		assertEquals(Arrays.asList("T1", "T2"), catalog.getTableNames("A_B"));
+	}
+
+	@Test(expected=UnsupportedOperationException.class)
+	public void testTablesAreReadOnly() throws Exception {
+		new SchemaCatalog(dataSource).getTables("A_B").get(0).getColumns().remove(0);
+	}
+}
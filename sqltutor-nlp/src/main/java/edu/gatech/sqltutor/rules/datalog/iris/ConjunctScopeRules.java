@@ -0,0 +1,28 @@
+/*
+ *   Copyright (c) 2014 Program Analysis Group, Georgia Tech
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package edu.gatech.sqltutor.rules.datalog.iris;
+
+/** Static rules computing the conjunct scopes of the symbolic state. */
+public class ConjunctScopeRules extends StaticRules {
+	private static final String RESOURCE_PATH = "/cscope.dlog";
+	
+	private static final ConjunctScopeRules instance = new ConjunctScopeRules();
+	public static ConjunctScopeRules getInstance() { return instance; }
+
+	private ConjunctScopeRules() {
+		super(RESOURCE_PATH);
+	}
+}
@@ -0,0 +1,275 @@
+/*
+ *   Copyright (c) 2014 Program Analysis Group, Georgia Tech
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package edu.gatech.sqltutor.rules.datalog.iris;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.deri.iris.EvaluationException;
+import org.deri.iris.KnowledgeBaseFactory;
+import org.deri.iris.api.IKnowledgeBase;
+import org.deri.iris.api.basics.ILiteral;
+import org.deri.iris.api.basics.IPredicate;
+import org.deri.iris.api.basics.IQuery;
+import org.deri.iris.api.basics.IRule;
+import org.deri.iris.api.basics.ITuple;
+import org.deri.iris.api.builtins.IBuiltinAtom;
+import org.deri.iris.api.terms.ITerm;
+import org.deri.iris.factory.Factory;
+import org.deri.iris.storage.IRelation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import edu.gatech.sqltutor.SQLTutorException;
+import edu.gatech.sqltutor.rules.Markers;
+
+/**
+ * Maintains a knowledge base over a fixed set of static facts and rules
+ * while the dynamic facts change between updates.
+ * <p>
+ * IRIS can only build a knowledge base from scratch, so rather than
+ * re-evaluating the whole program on every update the rules are split in two.
+ * Rules whose bodies depend only on static facts are evaluated once and
+ * their derived relations are materialized as base facts.  Only the
+ * remaining rules, which depend on dynamic facts, are evaluated per update.
+ * </p><p>
+ * Each update is also diffed against the previous dynamic facts.  If no
+ * tuple was added or retracted, the previous knowledge base is reused as is.
+ * </p>
+ */
+public class IncrementalKnowledgeBase {
+	private static final Logger _log = LoggerFactory.getLogger(IncrementalKnowledgeBase.class);
+
+	private final Map<IPredicate, IRelation> staticFacts;
+	private final List<IRule> rules;
+
+	/** Predicates that may change between updates. */
+	private Set<IPredicate> dynamicPredicates;
+	/** Static facts plus the materialized static rule heads. */
+	private Map<IPredicate, IRelation> materializedFacts;
+	/** Rules that must be evaluated per update. */
+	private List<IRule> dynamicRules;
+	/** Predicates derived by the dynamic rules. */
+	private Set<IPredicate> dynamicHeads;
+
+	private Map<IPredicate, Set<ITuple>> lastSnapshot;
+	private IKnowledgeBase knowledgeBase;
+
+	private int rebuilds;
+	private int reuses;
+
+	/**
+	 * Creates a new incremental knowledge base.
+	 *
+	 * @param staticFacts the facts that do not change between updates
+	 * @param rules       the rules of the program
+	 */
+	public IncrementalKnowledgeBase(Map<IPredicate, IRelation> staticFacts, List<IRule> rules) {
+		if( staticFacts == null ) throw new NullPointerException("staticFacts is null");
+		if( rules == null ) throw new NullPointerException("rules is null");
+		this.staticFacts = staticFacts;
+		this.rules = rules;
+	}
+
+	/**
+	 * Returns a knowledge base reflecting the static facts and the given
+	 * dynamic facts.  Where a predicate has both, the dynamic facts take precedence.
+	 *
+	 * @param dynamicFacts the current dynamic facts
+	 * @return the up-to-date knowledge base
+	 * @throws SQLTutorException if evaluation fails
+	 */
+	public IKnowledgeBase update(Map<IPredicate, IRelation> dynamicFacts) {
+		long duration = -System.currentTimeMillis();
+		Map<IPredicate, Set<ITuple>> snapshot = snapshot(dynamicFacts);
+
+		if( knowledgeBase != null && snapshot.equals(lastSnapshot) ) {
+			++reuses;
+			_log.debug(Markers.TIMERS_FINE, "KB unchanged, reused in {} ms.", duration + System.currentTimeMillis());
+			return knowledgeBase;
+		}
+
+		if( dynamicPredicates == null || !dynamicPredicates.containsAll(snapshot.keySet()) )
+			partition(snapshot.keySet());
+
+		if( lastSnapshot != null && _log.isDebugEnabled(Markers.DATALOG_FACTS) ) {
+			int added = 0, retracted = 0;
+			for( IPredicate pred: Sets.union(snapshot.keySet(), lastSnapshot.keySet()) ) {
+				Set<ITuple> now = nullToEmpty(snapshot.get(pred)), before = nullToEmpty(lastSnapshot.get(pred));
+				added += Sets.difference(now, before).size();
+				retracted += Sets.difference(before, now).size();
+			}
+			_log.debug(Markers.DATALOG_FACTS, "Dynamic facts delta: {} added, {} retracted.", added, retracted);
+		}
+
+		Map<IPredicate, IRelation> facts = Maps.newHashMapWithExpectedSize(
+			materializedFacts.size() + dynamicFacts.size());
+		facts.putAll(materializedFacts);
+		// evaluation adds derived tuples to the head relations, so never hand over the shared ones
+		for( IPredicate pred: dynamicHeads ) {
+			IRelation rel = materializedFacts.get(pred);
+			if( rel != null )
+				facts.put(pred, copyOf(rel));
+		}
+		facts.putAll(dynamicFacts);
+
+		knowledgeBase = createKnowledgeBase(facts, dynamicRules);
+		lastSnapshot = snapshot;
+		++rebuilds;
+		_log.debug(Markers.TIMERS_FINE, "KB updated with {} of {} rules in {} ms.",
+			dynamicRules.size(), rules.size(), duration + System.currentTimeMillis());
+		return knowledgeBase;
+	}
+
+	/** Returns the number of updates that required evaluation. */
+	public int getRebuildCount() {
+		return rebuilds;
+	}
+
+	/** Returns the number of updates that reused the previous knowledge base. */
+	public int getReuseCount() {
+		return reuses;
+	}
+
+	/**
+	 * Splits the rules into static and dynamic parts and materializes
+	 * the static part.
+	 */
+	private void partition(Set<IPredicate> seeds) {
+		long duration = -System.currentTimeMillis();
+		Set<IPredicate> dynamic = new HashSet<IPredicate>(seeds);
+		if( dynamicPredicates != null )
+			dynamic.addAll(dynamicPredicates);
+
+		// any rule reading a dynamic predicate makes its head dynamic
+		boolean changed;
+		do {
+			changed = false;
+			for( IRule rule: rules ) {
+				if( dependsOn(rule, dynamic) ) {
+					for( ILiteral head: rule.getHead() )
+						changed |= dynamic.add(head.getAtom().getPredicate());
+				}
+			}
+		} while( changed );
+
+		List<IRule> staticRules = new ArrayList<IRule>();
+		List<IRule> otherRules = new ArrayList<IRule>();
+		Set<IPredicate> staticHeads = new HashSet<IPredicate>();
+		Set<IPredicate> otherHeads = new HashSet<IPredicate>();
+		for( IRule rule: rules ) {
+			if( dependsOn(rule, dynamic) || headsIn(rule, dynamic) ) {
+				otherRules.add(rule);
+				for( ILiteral head: rule.getHead() )
+					otherHeads.add(head.getAtom().getPredicate());
+			} else {
+				staticRules.add(rule);
+				for( ILiteral head: rule.getHead() )
+					staticHeads.add(head.getAtom().getPredicate());
+			}
+		}
+
+		// static rules never read dynamic predicates, so any dynamic facts 
+		// overriding static ones cannot affect the materialized relations
+		Map<IPredicate, IRelation> materialized = Maps.newHashMap(staticFacts);
+		if( !staticRules.isEmpty() ) {
+			Map<IPredicate, IRelation> baseFacts = Maps.newHashMap(staticFacts);
+			for( IPredicate pred: staticHeads ) {
+				if( baseFacts.containsKey(pred) )
+					baseFacts.put(pred, copyOf(baseFacts.get(pred)));
+			}
+			IKnowledgeBase staticKb = createKnowledgeBase(baseFacts, staticRules);
+			for( IPredicate pred: staticHeads )
+				materialized.put(pred, materialize(staticKb, pred));
+		}
+
+		this.dynamicPredicates = dynamic;
+		this.dynamicRules = otherRules;
+		this.dynamicHeads = otherHeads;
+		this.materializedFacts = materialized;
+		_log.debug(Markers.TIMERS_FINE, "Materialized {} static rules ({} dynamic) in {} ms.",
+			staticRules.size(), otherRules.size(), duration + System.currentTimeMillis());
+	}
+
+	private static IRelation materialize(IKnowledgeBase kb, IPredicate pred) {
+		ITerm[] vars = new ITerm[pred.getArity()];
+		for( int i = 0; i < vars.length; ++i )
+			vars[i] = Factory.TERM.createVariable("v" + i);
+		IQuery query = Factory.BASIC.createQuery(
+			Factory.BASIC.createLiteral(true, pred, Factory.BASIC.createTuple(vars)));
+		try {
+			return copyOf(kb.execute(query));
+		} catch( EvaluationException e ) {
+			throw new SQLTutorException(e);
+		}
+	}
+
+	private static IRelation copyOf(IRelation rel) {
+		IRelation copy = IrisUtil.relation();
+		copy.addAll(rel);
+		return copy;
+	}
+
+	private static boolean dependsOn(IRule rule, Set<IPredicate> preds) {
+		for( ILiteral lit: rule.getBody() ) {
+			if( lit.getAtom() instanceof IBuiltinAtom )
+				continue;
+			if( preds.contains(lit.getAtom().getPredicate()) )
+				return true;
+		}
+		return false;
+	}
+
+	private static boolean headsIn(IRule rule, Set<IPredicate> preds) {
+		for( ILiteral head: rule.getHead() ) {
+			if( preds.contains(head.getAtom().getPredicate()) )
+				return true;
+		}
+		return false;
+	}
+
+	private static Map<IPredicate, Set<ITuple>> snapshot(Map<IPredicate, IRelation> facts) {
+		Map<IPredicate, Set<ITuple>> snapshot = Maps.newHashMapWithExpectedSize(facts.size());
+		for( Map.Entry<IPredicate, IRelation> entry: facts.entrySet() ) {
+			IRelation rel = entry.getValue();
+			int size = rel.size();
+			Set<ITuple> tuples = Sets.newHashSetWithExpectedSize(size);
+			for( int i = 0; i < size; ++i )
+				tuples.add(rel.get(i));
+			snapshot.put(entry.getKey(), tuples);
+		}
+		return snapshot;
+	}
+
+	private static Set<ITuple> nullToEmpty(Set<ITuple> tuples) {
+		return tuples == null ? Collections.<ITuple>emptySet() : tuples;
+	}
+
+	private static IKnowledgeBase createKnowledgeBase(Map<IPredicate, IRelation> facts, List<IRule> rules) {
+		try {
+			return KnowledgeBaseFactory.createKnowledgeBase(facts, rules);
+		} catch( EvaluationException e ) {
+			throw new SQLTutorException(e);
+		}
+	}
+}
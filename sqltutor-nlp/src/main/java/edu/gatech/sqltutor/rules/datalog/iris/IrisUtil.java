@@ -21,6 +21,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.deri.iris.EvaluationException;
 import org.deri.iris.api.IKnowledgeBase;
@@ -53,7 +54,7 @@ public class IrisUtil {
 	
 	public static final String UNUSED = "_";
 	
-	private static int nextUnused = 0;
+	private static final AtomicInteger nextUnused = new AtomicInteger();
 	
 	public static Parser newParser() {
 		ITerm t1 = Factory.TERM.createVariable( "a" );
@@ -161,7 +162,7 @@ public class IrisUtil {
 		if( val == null )
 			return Factory.TERM.createString("");
 		if( UNUSED.equals(val) )
-			return Factory.TERM.createVariable("unused" + (++nextUnused));
+			return Factory.TERM.createVariable("unused" + nextUnused.incrementAndGet());
 		
 		String strVal = val.toString();
 		if( !(val instanceof String || val instanceof Enum<?>) ) {
@@ -0,0 +1,90 @@
+/*
+ *   Copyright (c) 2015 Program Analysis Group, Georgia Tech
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package edu.gatech.sqltutor.rules.datalog.iris;
+
+import java.util.List;
+
+import org.deri.iris.api.basics.IRule;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Equivalence;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+
+import edu.gatech.sqltutor.rules.Markers;
+
+/**
+ * An immutable datalog program assembled from several rule lists.
+ * <p>
+ * Programs are shared process-wide.  Rule lists are identified by
+ * instance rather than by content, so callers should pass the shared
+ * lists from {@link StaticRules} instances, which are parsed only once.
+ * Assembling the same lists again returns the same program.
+ * </p>
+ */
+public final class RuleProgram {
+	private static final Logger _log = LoggerFactory.getLogger(RuleProgram.class);
+
+	/** Maximum number of distinct programs kept. */
+	private static final long MAXIMUM_PROGRAMS = 32;
+
+	private static final LoadingCache<List<Equivalence.Wrapper<List<IRule>>>, RuleProgram> programs =
+		CacheBuilder.newBuilder()
+			.maximumSize(MAXIMUM_PROGRAMS)
+			.build(new CacheLoader<List<Equivalence.Wrapper<List<IRule>>>, RuleProgram>() {
+				@Override
+				public RuleProgram load(List<Equivalence.Wrapper<List<IRule>>> key) {
+					ImmutableList.Builder<IRule> rules = ImmutableList.builder();
+					for( Equivalence.Wrapper<List<IRule>> part: key )
+						rules.addAll(part.get());
+					RuleProgram program = new RuleProgram(rules.build());
+					_log.debug(Markers.DATALOG_RULES, "Compiled program of {} rules from {} parts.",
+						program.rules.size(), key.size());
+					return program;
+				}
+			});
+
+	/**
+	 * Returns the shared program containing the given rules in order.
+	 * Empty lists are ignored.
+	 *
+	 * @param parts the rule lists making up the program
+	 * @return the program
+	 */
+	public static RuleProgram of(Iterable<? extends List<IRule>> parts) {
+		if( parts == null ) throw new NullPointerException("parts is null");
+		ImmutableList.Builder<Equivalence.Wrapper<List<IRule>>> key = ImmutableList.builder();
+		for( List<IRule> part: parts ) {
+			if( !part.isEmpty() )
+				key.add(Equivalence.identity().wrap(part));
+		}
+		return programs.getUnchecked(key.build());
+	}
+
+	private final ImmutableList<IRule> rules;
+
+	private RuleProgram(ImmutableList<IRule> rules) {
+		this.rules = rules;
+	}
+
+	/** Returns the rules of this program. */
+	public ImmutableList<IRule> getRules() {
+		return rules;
+	}
+}
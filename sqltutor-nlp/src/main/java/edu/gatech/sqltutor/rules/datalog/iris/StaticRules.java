@@ -19,6 +19,7 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.io.StringReader;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
@@ -31,6 +32,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
 
 import edu.gatech.sqltutor.SQLTutorException;
 import edu.gatech.sqltutor.Utils;
@@ -38,11 +40,19 @@ import edu.gatech.sqltutor.rules.Markers;
 
 /**
  * Static datalog rules parsed from some resource.
+ * <p>
+ * The parsed rules and facts are exposed read-only so that a single 
+ * instance may be shared by any number of translators and threads. 
+ * The fact relations themselves are not copied, so callers that may 
+ * derive new tuples into them must evaluate against copies.
+ * </p>
  */
 public class StaticRules {
 	private static final Logger _log = LoggerFactory.getLogger(StaticRules.class);
 	
 	private Parser parser;
+	private List<IRule> rules;
+	private Map<IPredicate, IRelation> facts;
 
 	protected StaticRules() { }
 	
@@ -55,23 +65,19 @@ public class StaticRules {
 	 */
 	public StaticRules(Class<?> clazz) {
 		String resource = "/" + clazz.getName().replace('.', '/') + ".dlog";
-		parser = parseResource(resource);
-		logParse();
+		init(parseResource(resource));
 	}
 	
 	public StaticRules(String resource) {
-		parser = parseResource(resource);
-		logParse();
+		init(parseResource(resource));
 	}
 	
 	public StaticRules(InputStream input) {
-		parser = parse(input);
-		logParse();
+		init(parse(input));
 	}
 	
 	public StaticRules(Reader reader) {
-		parser = parse(reader);
-		logParse();
+		init(parse(reader));
 	}
 	
 	protected Parser parseString(String program) {
@@ -112,19 +118,25 @@ public class StaticRules {
 	}
 
 	public Map<IPredicate, IRelation> getFacts() {
-		return parser.getFacts();
+		return facts;
 	}
 
 	public List<IRule> getRules() {
-		return parser.getRules();
+		return rules;
 	}
 
 	public Parser getParser() {
 		return parser;
 	}
 	
+	private void init(Parser parser) {
+		this.parser = parser;
+		this.rules = ImmutableList.copyOf(parser.getRules());
+		this.facts = Collections.unmodifiableMap(parser.getFacts());
+		logParse();
+	}
+	
 	private void logParse() {
-		List<IRule> rules = parser.getRules();
 		Map<IPredicate, IRelation> facts = parser.getFacts();
 		_log.debug(Markers.DATALOG_RULES, "Parsed {} rules and {} facts.", 
 			rules.size(), facts.size());
@@ -50,12 +50,14 @@ import edu.gatech.sqltutor.rules.Markers;
 import edu.gatech.sqltutor.rules.SQLState;
 import edu.gatech.sqltutor.rules.SymbolicState;
 import edu.gatech.sqltutor.rules.TranslationPhase;
+import edu.gatech.sqltutor.rules.datalog.iris.ConjunctScopeRules;
 import edu.gatech.sqltutor.rules.datalog.iris.ERFacts;
 import edu.gatech.sqltutor.rules.datalog.iris.ERRules;
+import edu.gatech.sqltutor.rules.datalog.iris.IncrementalKnowledgeBase;
 import edu.gatech.sqltutor.rules.datalog.iris.IrisUtil;
 import edu.gatech.sqltutor.rules.datalog.iris.SQLFacts;
+import edu.gatech.sqltutor.rules.datalog.iris.RuleProgram;
 import edu.gatech.sqltutor.rules.datalog.iris.SQLRules;
-import edu.gatech.sqltutor.rules.datalog.iris.StaticRules;
 import edu.gatech.sqltutor.rules.datalog.iris.SymbolicFacts;
 import edu.gatech.sqltutor.rules.datalog.iris.SymbolicRules;
 import edu.gatech.sqltutor.rules.er.ERDiagram;
@@ -88,6 +90,9 @@ public class SymbolicFragmentTranslator extends AbstractQueryTranslator implemen
 	protected ERMapping erMapping;
 	protected boolean withDefaults;
 	protected boolean defaultsAdded;
+	protected boolean incremental = true;
+	protected transient IncrementalKnowledgeBase incrementalKb;
+	protected transient TranslationSchema schema;
 
 	public SymbolicFragmentTranslator() {
 		this(true);
@@ -107,17 +112,19 @@ public class SymbolicFragmentTranslator extends AbstractQueryTranslator implemen
 		long duration = -System.currentTimeMillis();
 		if( erDiagram == null ) throw new SQLTutorException("No ER diagram set.");
 		if( erMapping == null ) throw new SQLTutorException("No ER-relational mapping set.");
-		erMapping.setDiagram(erDiagram);
 		
 		if( withDefaults && !defaultsAdded ) {
 			translationRules.addAll(makeDefaultRules());
 			defaultsAdded = true;
 		}
 		
-		// ER diagram generated once now
+		// ER diagram generated once now, unless shared by the schema
 		// TODO may need to adjust if updating
-		erFacts.generateFacts(erDiagram);
-		erFacts.generateFacts(erMapping);
+		if( schema == null ) {
+			erMapping.setDiagram(erDiagram);
+			erFacts.generateFacts(erDiagram);
+			erFacts.generateFacts(erMapping);
+		}
 		
 		// parse query
 		StatementNode statement = parseQuery();
@@ -137,7 +144,13 @@ public class SymbolicFragmentTranslator extends AbstractQueryTranslator implemen
 		loadStaticRules();
 
 		Map<IPredicate, IRelation> queryFacts = makeFacts(symState);
-		IKnowledgeBase kb = createSymbolicKnowledgeBase(queryFacts, symbolic);
+		IKnowledgeBase kb;
+		if( incremental ) {
+			incrementalKb = new IncrementalKnowledgeBase(queryFacts, staticRules);
+			kb = updateSymbolicKnowledgeBase();
+		} else {
+			kb = createSymbolicKnowledgeBase(queryFacts, symbolic);
+		}
 		symState.setKnowledgeBase(kb);
 		sortRules();
 		
@@ -167,13 +180,20 @@ public class SymbolicFragmentTranslator extends AbstractQueryTranslator implemen
 			do {
 				sawNewState = false;
 				for( ITranslationRule metarule: phaseRules ) { 
+					// allow pooled translations to be abandoned
+					if( Thread.currentThread().isInterrupted() )
+						throw new SQLTutorException("Translation interrupted.");
 					while( metarule.apply(symState) ) {
 						if( DUMP_SYMBOLIC_REWRITES && SYM_DEBUG) {
 							_log.debug(Markers.SYMBOLIC, "Transformed symbolic state:\n{}", SymbolicUtil.prettyPrint(symbolic));
 						}
-						@SuppressWarnings("unchecked")
-						Map<IPredicate, IRelation> facts = mergeFacts(queryFacts, symState.getRuleFacts());
-						kb = createSymbolicKnowledgeBase(/*queryFacts*/facts, symbolic);
+						if( incremental ) {
+							kb = updateSymbolicKnowledgeBase();
+						} else {
+							@SuppressWarnings("unchecked")
+							Map<IPredicate, IRelation> facts = mergeFacts(queryFacts, symState.getRuleFacts());
+							kb = createSymbolicKnowledgeBase(/*queryFacts*/facts, symbolic);
+						}
 						symState.setKnowledgeBase(kb);
 						
 						// FIXME non-determinism and final output checks
@@ -209,6 +229,11 @@ public class SymbolicFragmentTranslator extends AbstractQueryTranslator implemen
 			_log.debug(Markers.SYMBOLIC, "Final symbolic state: {}", SymbolicUtil.prettyPrint(symbolic));
 		
 		_log.info(Markers.SYMBOLIC, "Saw {} total symbolic states.", symbolicStates.size());
+		if( incremental ) {
+			_log.debug(Markers.TIMERS, "KB evaluated {} times, reused {} times.", 
+				incrementalKb.getRebuildCount(), incrementalKb.getReuseCount());
+			incrementalKb = null;
+		}
 		
 		if( this.result == null )
 			throw new SQLTutorException("No concrete translation was computed.");
@@ -246,19 +271,35 @@ public class SymbolicFragmentTranslator extends AbstractQueryTranslator implemen
 		}
 	}
 	
-	private List<IRule> staticRules;
+	/**
+	 * Regenerates the symbolic facts and brings the incremental knowledge base 
+	 * up to date with them and any metarule-generated facts.
+	 */
+	private IKnowledgeBase updateSymbolicKnowledgeBase() {
+		long duration = -System.currentTimeMillis();
+		symState.generateFacts();
+		@SuppressWarnings("unchecked")
+		Map<IPredicate, IRelation> facts = mergeFacts(symState.getRuleFacts(), symFacts.getFacts());
+		_log.debug(Markers.TIMERS_FINE, "KB update prep in {} ms.", duration + System.currentTimeMillis());
+		return incrementalKb.update(facts);
+	}
+	
+	/** The shared rule program, resolved before each translation. */
+	private transient List<IRule> staticRules;
 	private void loadStaticRules() {
-		SQLRules sqlRules = SQLRules.getInstance();
-		ERRules erRules = ERRules.getInstance();
-		
-		staticRules = Lists.newArrayList();
-		staticRules.addAll(sqlRules.getRules());
-		staticRules.addAll(erRules.getRules());
-		staticRules.addAll(SymbolicRules.getInstance().getRules());
-		staticRules.addAll(new StaticRules("/cscope.dlog").getRules());
+		List<List<IRule>> parts = Lists.newArrayListWithCapacity(translationRules.size() + 4);
+		parts.add(SQLRules.getInstance().getRules());
+		parts.add(ERRules.getInstance().getRules());
+		parts.add(SymbolicRules.getInstance().getRules());
+		parts.add(ConjunctScopeRules.getInstance().getRules());
 		for( ITranslationRule rule: translationRules ) {
-			staticRules.addAll(rule.getDatalogRules());
+			parts.add(rule.getDatalogRules());
 		}
+		staticRules = RuleProgram.of(parts).getRules();
+	}
+	
+	private Map<IPredicate, IRelation> getERFacts() {
+		return schema != null ? schema.getERFacts() : erFacts.getFacts();
 	}
 	
 	private static Map<IPredicate, IRelation> mergeFacts(Map<IPredicate, IRelation>... facts) {
@@ -278,7 +319,7 @@ public class SymbolicFragmentTranslator extends AbstractQueryTranslator implemen
 		Map<IPredicate, IRelation> facts = mergeFacts(		
 			sqlFacts.getFacts(),
 			sqlRules.getFacts(),
-			erFacts.getFacts(),
+			getERFacts(),
 			erRules.getFacts(),
 			state.getRuleFacts()
 		);
@@ -294,7 +335,7 @@ public class SymbolicFragmentTranslator extends AbstractQueryTranslator implemen
 		Map<IPredicate, IRelation> facts = mergeFacts(		
 			sqlFacts.getFacts(),
 			sqlRules.getFacts(),
-			erFacts.getFacts(),
+			getERFacts(),
 			erRules.getFacts(),
 			symRules.getFacts()
 //			state.getRuleFacts()
@@ -361,15 +402,46 @@ public class SymbolicFragmentTranslator extends AbstractQueryTranslator implemen
 
 	public void setERDiagram(ERDiagram erDiagram) {
 		this.erDiagram = erDiagram;
+		this.schema = null;
 		clearResult();
 	}
 
+	/**
+	 * Returns whether the knowledge base is maintained incrementally 
+	 * between rewrites rather than rebuilt from scratch.
+	 */
+	public boolean isIncremental() {
+		return incremental;
+	}
+
+	public void setIncremental(boolean incremental) {
+		this.incremental = incremental;
+	}
+
 	public ERMapping getERMapping() {
 		return erMapping;
 	}
 
 	public void setERMapping(ERMapping erMapping) {
 		this.erMapping = erMapping;
+		this.schema = null;
+		clearResult();
+	}
+
+	public TranslationSchema getSchema() {
+		return schema;
+	}
+
+	/**
+	 * Sets the ER diagram, mapping and schema meta data from a shared 
+	 * schema.  The ER facts of the schema are used as is rather than 
+	 * generated for each translation.
+	 */
+	public void setSchema(TranslationSchema schema) {
+		this.erDiagram = schema.getERDiagram();
+		this.erMapping = schema.getERMapping();
+		this.tables = schema.getSchemaMetaData();
+		this.schema = schema;
 		clearResult();
 	}
 }
@@ -0,0 +1,214 @@
+/*
+ *   Copyright (c) 2015 Program Analysis Group, Georgia Tech
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package edu.gatech.sqltutor.rules.lang;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import edu.gatech.sqltutor.SQLTutorException;
+import edu.gatech.sqltutor.clustering.IQueryNormalizer;
+import edu.gatech.sqltutor.clustering.QueryNormalizer;
+import edu.gatech.sqltutor.rules.Markers;
+import edu.gatech.sqltutor.rules.er.ERDiagram;
+import edu.gatech.sqltutor.rules.er.ERSerializer;
+import edu.gatech.sqltutor.rules.er.mapping.ERMapping;
+
+/**
+ * Bounded, thread-safe cache of translations.
+ * <p>
+ * Entries are keyed by the normalized form of the query and a content hash
+ * of the translator's ER diagram and mapping, so textually different but
+ * equivalent queries against the same schema share a single translation.
+ * The least recently used entries are evicted once the maximum size is reached.
+ * </p><p>
+ * ER diagrams and mappings are hashed once per instance and are
+ * assumed not to change after they are first used for a translation.
+ * Failed translations are not cached.
+ * </p>
+ */
+public class TranslationCache {
+	private static final Logger _log = LoggerFactory.getLogger(TranslationCache.class);
+
+	/** The default maximum number of cached translations. */
+	public static final long DEFAULT_MAXIMUM_SIZE = 5000;
+
+	private static final class Key {
+		private final String query;
+		private final HashCode schemaHash;
+
+		public Key(String query, HashCode schemaHash) {
+			this.query = query;
+			this.schemaHash = schemaHash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if( this == obj ) return true;
+			if( !(obj instanceof Key) ) return false;
+			Key that = (Key)obj;
+			return query.equals(that.query) && Objects.equal(schemaHash, that.schemaHash);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hashCode(query, schemaHash);
+		}
+	}
+
+	private final IQueryNormalizer normalizer;
+	private final Cache<Key, String> translations;
+	/** Content hashes of serialized diagrams and mappings, by identity. */
+	private final LoadingCache<Object, HashCode> contentHashes = CacheBuilder.newBuilder()
+		.weakKeys()
+		.build(new CacheLoader<Object, HashCode>() {
+			private final ERSerializer serializer = new ERSerializer();
+			@Override
+			public HashCode load(Object key) throws Exception {
+				return Hashing.sha1().hashString(serializer.serialize(key), Charsets.UTF_8);
+			}
+		});
+
+	public TranslationCache() {
+		this(DEFAULT_MAXIMUM_SIZE);
+	}
+
+	public TranslationCache(long maximumSize) {
+		this(maximumSize, new QueryNormalizer());
+	}
+
+	public TranslationCache(long maximumSize, IQueryNormalizer normalizer) {
+		if( normalizer == null ) throw new NullPointerException("normalizer is null");
+		this.normalizer = normalizer;
+		this.translations = CacheBuilder.newBuilder()
+			.maximumSize(maximumSize)
+			.recordStats()
+			.build();
+	}
+
+	/**
+	 * Returns the translation of <code>query</code>, using <code>translator</code>
+	 * only if no equivalent translation is cached.
+	 * <p>
+	 * The translator is used from the calling thread and is not
+	 * shared, but callers must not use the same translator concurrently.
+	 * </p>
+	 *
+	 * @param translator the translator to use on a cache miss
+	 * @param query      the query to translate
+	 * @return the translation
+	 * @throws SQLTutorException if the translation fails
+	 */
+	public String getTranslation(final SymbolicFragmentTranslator translator, final String query)
+			throws SQLTutorException {
+		Key key = keyFor(translator, query);
+		if( key == null )
+			return translate(translator, query);
+
+		try {
+			return translations.get(key, new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					return translate(translator, query);
+				}
+			});
+		} catch( ExecutionException | UncheckedExecutionException e ) {
+			Throwable cause = e.getCause();
+			if( cause instanceof SQLTutorException )
+				throw (SQLTutorException)cause;
+			if( cause instanceof RuntimeException )
+				throw (RuntimeException)cause;
+			throw new SQLTutorException(cause);
+		} finally {
+			if( _log.isDebugEnabled(Markers.TIMERS) )
+				_log.debug(Markers.TIMERS, "Translation cache: {}", translations.stats());
+		}
+	}
+
+	/**
+	 * Returns the cached translation of <code>query</code> for the 
+	 * translator's schema, without translating on a miss.  The lookup 
+	 * is not counted in the cache statistics.
+	 *
+	 * @param translator the translator whose schema to use
+	 * @param query      the query to look up
+	 * @return the cached translation or <code>null</code> if there is none
+	 */
+	public String getCachedTranslation(SymbolicFragmentTranslator translator, String query) {
+		Key key = keyFor(translator, query);
+		return key == null ? null : translations.asMap().get(key);
+	}
+
+	/** Returns the cache key or <code>null</code> if the query is not cacheable. */
+	private Key keyFor(SymbolicFragmentTranslator translator, String query) {
+		if( translator == null ) throw new NullPointerException("translator is null");
+		if( query == null ) throw new NullPointerException("query is null");
+
+		try {
+			return new Key(normalizer.normalize(query), schemaHash(translator));
+		} catch( SQLTutorException e ) {
+			// not cacheable, let the translator report the problem
+			_log.debug("Could not normalize query, translating uncached: {}", query, e);
+			return null;
+		}
+	}
+
+	private static String translate(SymbolicFragmentTranslator translator, String query) {
+		translator.setQuery(query);
+		return translator.getTranslation();
+	}
+
+	private HashCode schemaHash(SymbolicFragmentTranslator translator) {
+		ERDiagram diagram = translator.getERDiagram();
+		ERMapping mapping = translator.getERMapping();
+		Hasher hasher = Hashing.sha1().newHasher();
+		if( diagram != null )
+			hasher.putBytes(contentHashes.getUnchecked(diagram).asBytes());
+		hasher.putByte((byte)0);
+		if( mapping != null )
+			hasher.putBytes(contentHashes.getUnchecked(mapping).asBytes());
+		return hasher.hash();
+	}
+
+	/** Returns the hit, miss and eviction statistics of this cache. */
+	public CacheStats getStats() {
+		return translations.stats();
+	}
+
+	/** Returns the approximate number of cached translations. */
+	public long size() {
+		return translations.size();
+	}
+
+	/** Discards all cached translations. */
+	public void invalidateAll() {
+		translations.invalidateAll();
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ *   Copyright (c) 2015 Program Analysis Group, Georgia Tech
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package edu.gatech.sqltutor.rules.lang;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.deri.iris.api.basics.IPredicate;
+import org.deri.iris.storage.IRelation;
+
+import com.google.common.collect.ImmutableList;
+
+import edu.gatech.sqltutor.DatabaseTable;
+import edu.gatech.sqltutor.rules.datalog.iris.ERFacts;
+import edu.gatech.sqltutor.rules.er.ERDiagram;
+import edu.gatech.sqltutor.rules.er.mapping.ERMapping;
+
+/**
+ * The schema-level inputs of a translation: the ER diagram, its
+ * relational mapping and the table meta data, along with the ER
+ * facts generated from them.
+ * <p>
+ * The facts are generated once when the schema is created, so
+ * translators created by {@link #newTranslator()} skip that step.
+ * A schema may be shared by any number of threads, provided the
+ * diagram and mapping are not modified after it is created.
+ * </p>
+ */
+public class TranslationSchema {
+	private final ERDiagram erDiagram;
+	private final ERMapping erMapping;
+	private final List<DatabaseTable> tables;
+	private final Map<IPredicate, IRelation> erFacts;
+
+	/**
+	 * Creates a new schema.
+	 *
+	 * @param erDiagram the ER diagram
+	 * @param erMapping the mapping of <code>erDiagram</code> to the relational schema
+	 * @param tables    the table meta data, may be <code>null</code>
+	 */
+	public TranslationSchema(ERDiagram erDiagram, ERMapping erMapping, List<DatabaseTable> tables) {
+		if( erDiagram == null ) throw new NullPointerException("erDiagram is null");
+		if( erMapping == null ) throw new NullPointerException("erMapping is null");
+		this.erDiagram = erDiagram;
+		this.erMapping = erMapping;
+		this.tables = tables == null ? null : ImmutableList.copyOf(tables);
+
+		erMapping.setDiagram(erDiagram);
+		ERFacts facts = new ERFacts();
+		facts.generateFacts(erDiagram);
+		facts.generateFacts(erMapping);
+		this.erFacts = Collections.unmodifiableMap(facts.getFacts());
+	}
+
+	/**
+	 * Returns a new translator for this schema.  Translators are not
+	 * thread-safe, each thread should use its own.
+	 */
+	public SymbolicFragmentTranslator newTranslator() {
+		SymbolicFragmentTranslator translator = new SymbolicFragmentTranslator();
+		translator.setSchema(this);
+		return translator;
+	}
+
+	public ERDiagram getERDiagram() {
+		return erDiagram;
+	}
+
+	public ERMapping getERMapping() {
+		return erMapping;
+	}
+
+	public List<DatabaseTable> getSchemaMetaData() {
+		return tables;
+	}
+
+	/** Returns the read-only ER facts of this schema. */
+	Map<IPredicate, IRelation> getERFacts() {
+		return erFacts;
+	}
+}
@@ -111,11 +111,9 @@ public class Literals {
 	private Literals() {
 	}
 	
-	private static Literals instance;
+	private static final Literals instance = new Literals();
 	
 	public static Literals getInstance() {
-		if( instance == null )
-			instance = new Literals();
 		return instance;
 	}
 }
\ No newline at end of file
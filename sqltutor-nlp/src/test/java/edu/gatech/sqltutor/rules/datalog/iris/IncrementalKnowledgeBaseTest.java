@@ -0,0 +1,114 @@
+/*
+ *   Copyright (c) 2014 Program Analysis Group, Georgia Tech
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package edu.gatech.sqltutor.rules.datalog.iris;
+
+import static edu.gatech.sqltutor.rules.datalog.iris.IrisUtil.literal;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.StringReader;
+import java.util.Map;
+import java.util.Set;
+
+import org.deri.iris.KnowledgeBaseFactory;
+import org.deri.iris.api.IKnowledgeBase;
+import org.deri.iris.api.basics.IPredicate;
+import org.deri.iris.api.basics.IQuery;
+import org.deri.iris.api.basics.ITuple;
+import org.deri.iris.compiler.Parser;
+import org.deri.iris.factory.Factory;
+import org.deri.iris.storage.IRelation;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+public class IncrementalKnowledgeBaseTest {
+	private static final String PROGRAM =
+		"edge('a','b'). edge('b','c').\n" +
+		"path(?x,?y) :- edge(?x,?y).\n" +
+		"path(?x,?z) :- path(?x,?y), edge(?y,?z).\n" +
+		"reaches(?t,?y) :- token(?t,?x), path(?x,?y).\n" +
+		"unreached(?t) :- token(?t,?x), not path(?x,'c').\n";
+
+	private static final IPredicate TOKEN = IrisUtil.predicate("token", 2);
+	private static final IQuery REACHES = Factory.BASIC.createQuery(
+		literal(IrisUtil.predicate("reaches", 2), "?t", "?y"));
+	private static final IQuery UNREACHED = Factory.BASIC.createQuery(
+		literal(IrisUtil.predicate("unreached", 1), "?t"));
+
+	private Parser parser;
+
+	@Before
+	public void setUp() throws Exception {
+		parser = IrisUtil.newParser();
+		parser.parse(new StringReader(PROGRAM));
+	}
+
+	@Test
+	public void testMatchesFullEvaluation() throws Exception {
+		IncrementalKnowledgeBase incremental =
+			new IncrementalKnowledgeBase(parser.getFacts(), parser.getRules());
+
+		Map<IPredicate, IRelation> dynamic = tokens("t1", "a");
+		assertResultsEqual(fullEvaluation(dynamic), incremental.update(dynamic));
+
+		dynamic = tokens("t1", "a", "t2", "c");
+		assertResultsEqual(fullEvaluation(dynamic), incremental.update(dynamic));
+		assertEquals(2, incremental.getRebuildCount());
+	}
+
+	@Test
+	public void testReusedWhenUnchanged() throws Exception {
+		IncrementalKnowledgeBase incremental =
+			new IncrementalKnowledgeBase(parser.getFacts(), parser.getRules());
+
+		IKnowledgeBase first = incremental.update(tokens("t1", "b"));
+		IKnowledgeBase second = incremental.update(tokens("t1", "b"));
+		assertSame(first, second);
+		assertEquals(1, incremental.getRebuildCount());
+		assertEquals(1, incremental.getReuseCount());
+	}
+
+	private IKnowledgeBase fullEvaluation(Map<IPredicate, IRelation> dynamic) throws Exception {
+		Map<IPredicate, IRelation> facts = Maps.newHashMap(parser.getFacts());
+		facts.putAll(dynamic);
+		return KnowledgeBaseFactory.createKnowledgeBase(facts, parser.getRules());
+	}
+
+	private static void assertResultsEqual(IKnowledgeBase expected, IKnowledgeBase actual) throws Exception {
+		for( IQuery query: new IQuery[] { REACHES, UNREACHED } ) {
+			assertEquals(query.toString(), tuples(expected.execute(query)), tuples(actual.execute(query)));
+		}
+	}
+
+	private static Set<ITuple> tuples(IRelation rel) {
+		Set<ITuple> tuples = Sets.newHashSet();
+		for( int i = 0; i < rel.size(); ++i )
+			tuples.add(rel.get(i));
+		return tuples;
+	}
+
+	private static Map<IPredicate, IRelation> tokens(String... idsAndNodes) {
+		IRelation rel = IrisUtil.relation();
+		for( int i = 0; i < idsAndNodes.length; i += 2 )
+			rel.add(IrisUtil.asTuple(idsAndNodes[i], idsAndNodes[i+1]));
+		Map<IPredicate, IRelation> facts = Maps.newHashMap();
+		facts.put(TOKEN, rel);
+		return facts;
+	}
+}
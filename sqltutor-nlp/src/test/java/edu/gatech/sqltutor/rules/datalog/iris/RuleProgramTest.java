@@ -0,0 +1,49 @@
+/*
+ *   Copyright (c) 2015 Program Analysis Group, Georgia Tech
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package edu.gatech.sqltutor.rules.datalog.iris;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.deri.iris.api.basics.IRule;
+import org.junit.Test;
+
+public class RuleProgramTest {
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testSharedProgram() {
+		List<IRule> sqlRules = SQLRules.getInstance().getRules();
+		List<IRule> erRules = ERRules.getInstance().getRules();
+
+		RuleProgram program = RuleProgram.of(Arrays.asList(sqlRules, erRules));
+		assertEquals(sqlRules.size() + erRules.size(), program.getRules().size());
+		assertEquals(sqlRules, program.getRules().subList(0, sqlRules.size()));
+
+		assertSame(program, RuleProgram.of(Arrays.asList(
+			sqlRules, Collections.<IRule>emptyList(), erRules)));
+		assertNotSame(program, RuleProgram.of(Arrays.asList(erRules, sqlRules)));
+	}
+
+	@Test(expected=UnsupportedOperationException.class)
+	public void testStaticRulesImmutable() {
+		SymbolicRules.getInstance().getRules().clear();
+	}
+}
@@ -0,0 +1,78 @@
+/*
+ *   Copyright (c) 2015 Program Analysis Group, Georgia Tech
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package edu.gatech.sqltutor.rules.lang;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.gatech.sqltutor.SQLTutorException;
+import edu.gatech.sqltutor.rules.er.ERDiagram;
+
+public class TranslationCacheTest {
+	private static class CountingTranslator extends SymbolicFragmentTranslator {
+		private static final long serialVersionUID = 1L;
+		int translations;
+
+		@Override
+		public String getTranslation() throws SQLTutorException {
+			++translations;
+			return "translation of " + getQuery();
+		}
+	}
+
+	private TranslationCache cache;
+	private CountingTranslator translator;
+
+	@Before
+	public void setUp() {
+		cache = new TranslationCache(10);
+		translator = new CountingTranslator();
+		translator.setERDiagram(new ERDiagram());
+	}
+
+	@Test
+	public void testEquivalentQueriesHit() {
+		cache.getTranslation(translator, "SELECT a FROM t WHERE b = 1");
+		cache.getTranslation(translator, "select  A\nfrom T where B=1;");
+		assertEquals(1, translator.translations);
+		assertEquals(1, cache.getStats().hitCount());
+		assertEquals(1, cache.getStats().missCount());
+	}
+
+	@Test
+	public void testDifferentSchemaMisses() {
+		cache.getTranslation(translator, "SELECT a FROM t");
+
+		CountingTranslator other = new CountingTranslator();
+		ERDiagram diagram = new ERDiagram();
+		diagram.newEntity("Employee");
+		other.setERDiagram(diagram);
+		cache.getTranslation(other, "SELECT a FROM t");
+
+		assertEquals(1, other.translations);
+		assertEquals(2, cache.getStats().missCount());
+	}
+
+	@Test
+	public void testUnparseableNotCached() {
+		cache.getTranslation(translator, "SELECT FROM WHERE");
+		cache.getTranslation(translator, "SELECT FROM WHERE");
+		assertEquals(2, translator.translations);
+		assertEquals(0, cache.size());
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ *   Copyright (c) 2015 Program Analysis Group, Georgia Tech
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package edu.gatech.sqltutor.rules.lang;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.gatech.sqltutor.TestConst;
+import edu.gatech.sqltutor.rules.er.ERDiagram;
+import edu.gatech.sqltutor.rules.er.ERSerializer;
+import edu.gatech.sqltutor.rules.er.mapping.ERMapping;
+
+public class TranslationSchemaTest {
+	private static final String[] QUERIES = {
+		"SELECT e.fname FROM employee e, department d WHERE e.ssn=d.mgr_ssn",
+		"SELECT e.fname, e.ssn FROM employee e",
+		"SELECT DISTINCT e.salary FROM employee e",
+		"SELECT e.ssn, d.dname FROM employee e, department d"
+	};
+
+	private ERDiagram erDiagram;
+	private ERMapping erMapping;
+
+	@Before
+	public void setUp() throws Exception {
+		ERSerializer serializer = new ERSerializer();
+		erDiagram = (ERDiagram)serializer.deserialize(
+			getClass().getResourceAsStream(TestConst.Resources.COMPANY_DIAGRAM));
+		erMapping = (ERMapping)serializer.deserialize(
+			getClass().getResourceAsStream(TestConst.Resources.COMPANY_MAPPING));
+	}
+
+	@Test
+	public void testMatchesUnsharedTranslator() throws Exception {
+		TranslationSchema schema = new TranslationSchema(erDiagram, erMapping, null);
+		for( String query: QUERIES ) {
+			SymbolicFragmentTranslator unshared = new SymbolicFragmentTranslator();
+			unshared.setERDiagram(erDiagram);
+			unshared.setERMapping(erMapping);
+			unshared.setQuery(query);
+
+			SymbolicFragmentTranslator translator = schema.newTranslator();
+			assertSame(schema, translator.getSchema());
+			translator.setQuery(query);
+			assertEquals(query, unshared.getTranslation(), translator.getTranslation());
+		}
+	}
+
+	@Test
+	public void testConcurrentTranslations() throws Exception {
+		final TranslationSchema schema = new TranslationSchema(erDiagram, erMapping, null);
+		List<String> expected = new ArrayList<String>();
+		for( String query: QUERIES ) {
+			SymbolicFragmentTranslator translator = schema.newTranslator();
+			translator.setQuery(query);
+			expected.add(translator.getTranslation());
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<String>> futures = new ArrayList<Future<String>>();
+			for( int i = 0; i < 3; ++i ) {
+				for( final String query: QUERIES ) {
+					futures.add(executor.submit(new Callable<String>() {
+						@Override
+						public String call() throws Exception {
+							SymbolicFragmentTranslator translator = schema.newTranslator();
+							translator.setQuery(query);
+							return translator.getTranslation();
+						}
+					}));
+				}
+			}
+			for( int i = 0; i < futures.size(); ++i )
+				assertEquals(expected.get(i % QUERIES.length), futures.get(i).get());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,5 @@
+-- Per-tutorial budgets for the planner's estimates of students' queries, 0 meaning no limit.
+-- Apply to the sqltutor database after restoring sqltutor.backup.
+ALTER TABLE schema_options
+	ADD COLUMN max_query_cost double precision NOT NULL DEFAULT 0,
+	ADD COLUMN max_query_rows bigint NOT NULL DEFAULT 0;
@@ -0,0 +1,17 @@
+-- Execution baselines of the questions' answers, collected in the background to grade query performance.
+-- Apply to the sqltutor database after restoring sqltutor.backup.
+CREATE TABLE schema_questions_baseline (
+	schema text NOT NULL,
+	admin_code text NOT NULL,
+	answer text NOT NULL,
+	runs integer NOT NULL,
+	median_execution_time bigint NOT NULL,
+	total_cost double precision NOT NULL,
+	analyzed_execution_time double precision NOT NULL,
+	shared_buffers bigint NOT NULL
+);
+
+CREATE UNIQUE INDEX schema_questions_baseline_answer_idx
+	ON schema_questions_baseline (schema, admin_code, md5(answer));
+
+GRANT SELECT, INSERT, UPDATE, DELETE ON schema_questions_baseline TO "DB_Manager";
@@ -0,0 +1,19 @@
+-- Fingerprints of the results of the questions' answers, computed when questions are saved.
+-- Apply to the sqltutor database after restoring sqltutor.backup.
+CREATE TABLE schema_questions_fingerprint (
+	schema text NOT NULL,
+	admin_code text NOT NULL,
+	answer text NOT NULL,
+	column_order_matters boolean NOT NULL,
+	columns text[] NOT NULL,
+	column_types text[] NOT NULL,
+	row_count integer NOT NULL,
+	ordered_digest bytea NOT NULL,
+	unordered_digest bytea NOT NULL,
+	execution_time bigint NOT NULL
+);
+
+CREATE UNIQUE INDEX schema_questions_fingerprint_answer_idx
+	ON schema_questions_fingerprint (schema, admin_code, md5(answer), column_order_matters);
+
+GRANT SELECT, INSERT, UPDATE, DELETE ON schema_questions_fingerprint TO "DB_Manager";
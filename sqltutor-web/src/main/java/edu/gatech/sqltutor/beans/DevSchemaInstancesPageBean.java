@@ -22,6 +22,7 @@ import java.util.HashMap;
 import java.util.List;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.faces.bean.ManagedBean;
 import javax.faces.bean.ManagedProperty;
 import javax.faces.bean.ViewScoped;
@@ -30,6 +31,8 @@ import org.primefaces.context.RequestContext;
 
 import edu.gatech.sqltutor.DatabaseTable;
 import edu.gatech.sqltutor.QueryResult;
+import edu.gatech.sqltutor.util.DatabaseManager;
+import edu.gatech.sqltutor.util.QueryResultDataModel;
 
 @ManagedBean
 @ViewScoped
@@ -44,6 +47,7 @@ public class DevSchemaInstancesPageBean extends AbstractDatabaseBean implements
 
 	private String query;
 	private QueryResult queryResult;
+	private QueryResultDataModel queryResultModel;
 	
 	@PostConstruct
 	public void init() {
@@ -78,9 +82,25 @@ public class DevSchemaInstancesPageBean extends AbstractDatabaseBean implements
 		}
 	}
 	
+	@PreDestroy
+	public void destroy() {
+		releaseQueryResult();
+	}
+
+	/**
+	 * Deletes the spilled rows of the shown result.
+	 */
+	private void releaseQueryResult() {
+		if (queryResult != null && queryResult.getSpill() != null)
+			queryResult.getSpill().release();
+		queryResultModel = null;
+	}
+
 	public void processSQL() {
 		try {
-			queryResult = getDatabaseManager().getDevQueryResult(query, userBean.isDeveloper());
+			releaseQueryResult();
+			queryResult = getDatabaseManager().getDevQueryResult(query, userBean.isDeveloper(), 
+					new DatabaseManager.Paging(getDatabaseManager().getResultHeapRows()));
 		} catch(SQLException e) {
 			queryResult = null;
 			String message = e.getMessage();
@@ -124,6 +144,13 @@ public class DevSchemaInstancesPageBean extends AbstractDatabaseBean implements
 
 	public void setQueryResult(QueryResult queryResult) {
 		this.queryResult = queryResult;
+		this.queryResultModel = null;
+	}
+
+	public QueryResultDataModel getQueryResultModel() {
+		if (queryResultModel == null && queryResult != null)
+			queryResultModel = new QueryResultDataModel(queryResult);
+		return queryResultModel;
 	}
 
 	public HashMap<String, QueryResult> getTableData() {
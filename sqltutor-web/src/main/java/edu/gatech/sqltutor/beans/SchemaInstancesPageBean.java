@@ -18,7 +18,9 @@ package edu.gatech.sqltutor.beans;
 import java.io.IOException;
 import java.io.Serializable;
 import java.sql.SQLException;
-import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.PreDestroy;
 import javax.faces.bean.ManagedBean;
 import javax.faces.bean.ManagedProperty;
 import javax.faces.bean.ViewScoped;
@@ -27,6 +29,8 @@ import javax.faces.event.ComponentSystemEvent;
 import org.primefaces.context.RequestContext;
 
 import edu.gatech.sqltutor.QueryResult;
+import edu.gatech.sqltutor.util.DatabaseManager;
+import edu.gatech.sqltutor.util.QueryResultDataModel;
 
 @ManagedBean
 @ViewScoped
@@ -38,10 +42,11 @@ public class SchemaInstancesPageBean extends AbstractDatabaseBean implements Ser
 
 	private static final String PERMISSIONS_ERROR = "You do not have permissions for this schema.";
 	
-	private HashMap<String, QueryResult> tableData;
+	private Map<String, QueryResult> tableData;
 	
 	private String query;
 	private QueryResult queryResult;
+	private QueryResultDataModel queryResultModel;
 	
 	public void preRenderSetup(ComponentSystemEvent event) throws IOException {
 		if (!userBean.isLoggedIn())
@@ -64,12 +69,28 @@ public class SchemaInstancesPageBean extends AbstractDatabaseBean implements Ser
 		}
 	}
 	
+	@PreDestroy
+	public void destroy() {
+		releaseQueryResult();
+	}
+
+	/**
+	 * Deletes the spilled rows of the shown result.
+	 */
+	private void releaseQueryResult() {
+		if (queryResult != null && queryResult.getSpill() != null)
+			queryResult.getSpill().release();
+		queryResultModel = null;
+	}
+
 	public void processSQL() {
 		if(!hasPermissions())
 			return;
 		
 		try {
-			queryResult = getDatabaseManager().getQueryResult(userBean.getSelectedTutorial(), query, true);
+			releaseQueryResult();
+			queryResult = getDatabaseManager().getQueryResult(userBean.getSelectedTutorial(), query, true, 
+					new DatabaseManager.Paging(getDatabaseManager().getResultHeapRows()));
 		} catch(SQLException e) {
 			queryResult = null;
 			String message = e.getMessage();
@@ -79,6 +100,11 @@ public class SchemaInstancesPageBean extends AbstractDatabaseBean implements Ser
 			} else {
 				BeanUtils.addErrorMessage(null, message);
 			}
+		} finally {
+			// the query may have altered the instance
+			getDatabaseManager().schemaChanged(userBean.getSelectedTutorial());
+			getDatabaseManager().getAnswerFingerprintStore().refresh(userBean.getSelectedTutorialName(), userBean.getSelectedTutorialAdminCode());
+			getDatabaseManager().getPerformanceBaselineStore().refresh(userBean.getSelectedTutorialName(), userBean.getSelectedTutorialAdminCode());
 		}
 	} 
 
@@ -121,13 +147,20 @@ public class SchemaInstancesPageBean extends AbstractDatabaseBean implements Ser
 
 	public void setQueryResult(QueryResult queryResult) {
 		this.queryResult = queryResult;
+		this.queryResultModel = null;
+	}
+
+	public QueryResultDataModel getQueryResultModel() {
+		if (queryResultModel == null && queryResult != null)
+			queryResultModel = new QueryResultDataModel(queryResult);
+		return queryResultModel;
 	}
 
-	public HashMap<String, QueryResult> getTableData() {
+	public Map<String, QueryResult> getTableData() {
 		return tableData;
 	}
 
-	public void setTableData(HashMap<String, QueryResult> tableData) {
+	public void setTableData(Map<String, QueryResult> tableData) {
 		this.tableData = tableData;
 	}
 }
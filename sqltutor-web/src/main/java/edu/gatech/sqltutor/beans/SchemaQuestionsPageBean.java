@@ -137,6 +137,8 @@ public class SchemaQuestionsPageBean extends AbstractDatabaseBean implements Ser
 	}
 	
 	public void recalculateStatistics() {
+		// read the attempts from the logs again, including any the counters missed
+		getDatabaseManager().getHardnessAnalytics().invalidate(userBean.getSelectedTutorialName(), userBean.getSelectedTutorialAdminCode());
 		calculateStatistics();
 		BeanUtils.addInfoMessage(null, "Statistics have been recalculated.");
 	}
@@ -270,9 +272,10 @@ public class SchemaQuestionsPageBean extends AbstractDatabaseBean implements Ser
 			return;
 		}
 		
-		// test whether the answer throws exceptions
+		// test whether the answer throws exceptions, and fingerprint its result for grading
 		try {
-			getDatabaseManager().getQueryResult(userBean.getSelectedTutorial(), question.getAnswer(), true);
+			getDatabaseManager().getAnswerFingerprintStore().compute(userBean.getSelectedTutorialName(), 
+					userBean.getSelectedTutorialAdminCode(), question);
 		} catch(SQLException e) {
 			String message = e.getMessage();
 			if(message.contains("getNextException"))
@@ -287,6 +290,9 @@ public class SchemaQuestionsPageBean extends AbstractDatabaseBean implements Ser
 			questions.add(question);
 			question.setOrder(questions.size());
 			getDatabaseManager().addQuestion(userBean.getSelectedTutorialName(), question, userBean.getSelectedTutorialAdminCode());
+			if (question.getPerformanceLeniencySeconds() != 0)
+				getDatabaseManager().getPerformanceBaselineStore().collect(userBean.getSelectedTutorialName(), 
+						userBean.getSelectedTutorialAdminCode(), question.getAnswer());
 			BeanUtils.addInfoMessage(null, ADD_CONFIRMATION_MESSAGE);
 		} catch (SQLException e) {
 			for(Throwable t : e) {
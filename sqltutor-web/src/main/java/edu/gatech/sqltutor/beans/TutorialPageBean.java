@@ -20,15 +20,15 @@ import java.io.Serializable;
 import java.sql.SQLException;
 import java.text.NumberFormat;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
-import java.util.Map;
 import java.util.Random;
 import java.util.TimeZone;
-import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -44,18 +44,24 @@ import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.collect.HashMultiset;
-import com.google.common.collect.Multiset;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 
+import edu.gatech.sqltutor.AnswerFingerprint;
 import edu.gatech.sqltutor.QueryResult;
-import edu.gatech.sqltutor.rules.er.ERDiagram;
-import edu.gatech.sqltutor.rules.er.ERSerializer;
-import edu.gatech.sqltutor.rules.er.mapping.ERMapping;
-import edu.gatech.sqltutor.rules.lang.SymbolicFragmentTranslator;
+import edu.gatech.sqltutor.ResultComparator;
 import edu.gatech.sqltutor.tuples.QuestionTuple;
 import edu.gatech.sqltutor.tuples.TutorialOptionsTuple;
+import edu.gatech.sqltutor.util.AdmissionControl;
+import edu.gatech.sqltutor.util.ComparisonStrategy;
 import edu.gatech.sqltutor.util.DatabaseManager;
-import edu.gatech.sqltutor.util.QueryThread;
+import edu.gatech.sqltutor.util.PerformanceBaselineStore;
+import edu.gatech.sqltutor.util.QueryBudgetExceededException;
+import edu.gatech.sqltutor.util.QueryResultDataModel;
+import edu.gatech.sqltutor.util.QueryScheduler;
+import edu.gatech.sqltutor.util.TranslationService;
 
 @ManagedBean
 @ViewScoped
@@ -64,12 +70,19 @@ Serializable {
 	private static final long serialVersionUID = 1L;
 	private static final Logger log = LoggerFactory.getLogger(TutorialPageBean.class);
 
+	public static final String STRONGLY_CORRECT_MESSAGE = "Correct! Your answer matched for all possible instances!";
 	public static final String WEAKLY_CORRECT_MESSAGE = "Correct.  Your answer returns the correct results for the instance data.";
 	public static final String ANSWER_MALFORMED_MESSAGE = "We are unable to give feedback for this question, the stored answer is malformed.";
 	public static final String NO_PERMISSIONS_MESSAGE = "You do not have permission to run this query.";
 	public static final String NO_QUESTIONS_MESSAGE = "There are no questions available for this schema.";
 	public static final String TRUNCATED_QUERY_MESSAGE = "Your query produced a result that was unreasonably large.";
+	public static final String NLP_PENDING_MESSAGE = "Generating English feedback for your query...";
+	public static final String NLP_FAILED_MESSAGE = " (Sorry, we were unable to produce sound English translation feedback for your query.)";
 	public static final String TIMEOUT_MESSAGE = "Your query took too much time and was aborted.";
+	public static final String BUSY_MESSAGE = "The server is busy running other queries, please try again in a moment.";
+	public static final String OVER_BUDGET_MESSAGE = "Incorrect. Your query is estimated to be too expensive to run, please check it for missing join conditions.";
+	public static final String RATE_LIMITED_MESSAGE = "You are submitting queries too quickly, please wait a few seconds and try again.";
+	public static final String COMPARISON_FAILED_MESSAGE = "We are unable to compare your query's result to the stored answer's, please try again.";
 	public static final int RESULT_ROW_LIMIT = 50;
 	public static final int TIMEOUT_SECONDS = 45;
 
@@ -94,6 +107,7 @@ Serializable {
 	private String feedbackNLP;
 	private String resultSetFeedback;
 	private QueryResult queryResult;
+	private QueryResultDataModel queryResultModel;
 	private QueryResult answerResult;
 	/**
 	 * This is the URL link which correlates to a particular schema
@@ -101,13 +115,13 @@ Serializable {
 	private String link;
 	private TutorialOptionsTuple schemaOptions;
 	private boolean isQueryCorrect;
-	private transient QueryThread answerThread;
+	private transient ListenableFuture<QueryResult> answerFuture;
+	private transient QuestionTuple answerQuestion;
 	private int numberOfAttempts;
 	private String comment;
-	
-	private SymbolicFragmentTranslator queryTranslator;
-	private ERDiagram erDiagram;
-	private ERMapping erMapping;
+	private transient TranslationService translationService;
+	private transient QueryScheduler queryScheduler;
+	private transient ListenableFuture<String> nlpFeedback;
 
 	public void preRenderSetup(ComponentSystemEvent event) throws IOException {
 		if (!userBean.isLoggedIn())
@@ -171,28 +185,6 @@ Serializable {
 					logException(t, userBean.getHashedEmail());
 				}
 			}
-			// setup the query translator 
-			// FIXME: hardcoded, need to fix this
-			if (userBean.getSelectedTutorialName().equals("company") || userBean.getSelectedTutorialName().equals("business_trip")) {
-				final ERSerializer serializer = new ERSerializer();
-				final Class<?> c = this.getClass();
-				erDiagram = (ERDiagram) serializer.deserialize(c
-						.getResourceAsStream("/testdata/" + userBean.getSelectedTutorialName() + ".er.xml"));
-				erMapping = (ERMapping) serializer
-						.deserialize(c.getResourceAsStream("/testdata/" + userBean.getSelectedTutorialName()
-								+ ".mapping.xml"));
-				queryTranslator = new SymbolicFragmentTranslator();
-				queryTranslator.setERDiagram(erDiagram);
-				queryTranslator.setERMapping(erMapping);
-				try {
-					queryTranslator.setSchemaMetaData(getDatabaseManager().getDevSchemaTables());
-				} catch (SQLException e) {
-					for (Throwable t : e) {
-						t.printStackTrace();
-						logException(t, userBean.getHashedEmail());
-					}
-				}
-			}
 		} else {
 			// check if the tutorial closed after the student loaded the page
 			if(!isSchemaAccessible(schemaOptions)) {
@@ -209,8 +201,17 @@ Serializable {
 	 */
 	@PreDestroy
 	public void destroy() {
-		if(answerThread != null) 
-			answerThread.interrupt();
+		if(answerFuture != null) 
+			answerFuture.cancel(false);
+		releaseQueryResult();
+	}
+
+	/**
+	 * Deletes the spilled rows of the shown result, unless other sessions share them.
+	 */
+	private void releaseQueryResult() {
+		if (queryResult != null && queryResult.getSpill() != null)
+			queryResult.getSpill().release();
 	}
 
 	public boolean isSchemaAccessible(TutorialOptionsTuple options) {
@@ -257,8 +258,17 @@ Serializable {
 				resultSetFeedback = "You've exceeded the maximum number of attempts for this question.";
 				return;
 			}
+
+			// rejected attempts are neither run nor logged
+			final AdmissionControl.Rejection rejection = getQueryScheduler().getAdmissionControl().tryAcquire(
+					userBean.getHashedEmail(), userBean.getSelectedTutorial());
+			if (rejection != null) {
+				resultSetFeedback = rejection == AdmissionControl.Rejection.USER_RATE ? RATE_LIMITED_MESSAGE : BUSY_MESSAGE;
+				log.debug("User attempt rejected (schema={}, reason={})", userBean.getSelectedTutorial(), rejection);
+				return;
+			}
 			
-			String nlpResult = null;
+			ListenableFuture<String> translation = null;
 			// let the user know if their query is restricted
 			if (isRestricted(query)) {
 				resultSetFeedback = NO_PERMISSIONS_MESSAGE;
@@ -267,36 +277,19 @@ Serializable {
 				setResultSetFeedback();
 				// generate nlp (if the question is incorrect and parsed)
 				if (queryResult != null && !getQueryIsCorrect())
-					nlpResult = setNLPFeedback();
+					translation = submitNLPFeedback();
 			} 
 			
 			if (!getQueryIsCorrect() && queryResult != null)
 				numberOfAttempts++;
 				
-			// log
-			try {
-				final double totalTimeTakenSeconds = (Calendar.getInstance().getTime().getTime() - startTimeMilliseconds)/1000d; 
-				getDatabaseManager().log(BeanUtils.getSessionId(),
-						userBean.getHashedEmail(), 
-						userBean.getSelectedTutorialName(),
-						questionTuples.get(questionIndex).getOrder(), 
-						questionTuples.get(questionIndex).getQuestion(),
-						questionTuples.get(questionIndex).getAnswer(),
-						query, queryResult != null, getQueryIsCorrect(), nlpResult, totalTimeTakenSeconds, 
-						queryResult != null  ? queryResult.getTotalTime()/1000d : 0, 
-						answerResult != null ? answerResult.getTotalTime()/1000d : 0, 
-						queryResult != null ? queryResult.getExecutionTime()/1000d : 0,
-						answerResult != null ? answerResult.getExecutionTime()/1000d : 0, 
-						queryResult != null ? queryResult.isTruncated() : false, 
-						queryResult != null ? queryResult.isReadLimitExceeded() : false, 
-						queryResult != null ? queryResult.getOriginalSize() : 0,
-						userBean.getSelectedTutorialAdminCode());
-			} catch (SQLException e) {
-				for (Throwable t : e) {
-					t.printStackTrace();
-					logException(t, userBean.getHashedEmail());
-				}
-			}
+			// log, once the nlp feedback is ready so the verdict is not delayed
+			final double totalTimeTakenSeconds = (Calendar.getInstance().getTime().getTime() - startTimeMilliseconds)/1000d; 
+			final AttemptLog attemptLog = new AttemptLog(totalTimeTakenSeconds);
+			if (translation == null)
+				attemptLog.write(null);
+			else
+				Futures.addCallback(translation, attemptLog, MoreExecutors.directExecutor());
 		} else 
 			BeanUtils.addErrorMessage(null, "Cannot run queries when there are no questions.");
 	}
@@ -306,19 +299,86 @@ Serializable {
 				|| query.toLowerCase().contains("pg_catalog");
 	}
 
-	private String setNLPFeedback() {
-		String result = null;
-		if (queryTranslator != null) {
-			try {
-				queryTranslator.setQuery(query);
-				result = queryTranslator.getTranslation();
-				feedbackNLP = "We determined the question that you actually answered was: \" " + format(result) + " \"";
-			} catch (Exception e) {
-				feedbackNLP += " (Sorry, we were unable to produce sound English translation feedback for your query.)";
-				e.printStackTrace();
-			}
+	/**
+	 * Submits the query for translation, the feedback is filled in once it completes.
+	 * 
+	 * @return the future translation or <code>null</code> if the tutorial cannot be translated
+	 */
+	private ListenableFuture<String> submitNLPFeedback() {
+		if (!getTranslationService().canTranslate(userBean.getSelectedTutorialName()))
+			return null;
+		nlpFeedback = getTranslationService().submit(userBean.getSelectedTutorialName(), query);
+		feedbackNLP = NLP_PENDING_MESSAGE;
+		updateNLPFeedback();
+		return nlpFeedback;
+	}
+
+	/**
+	 * Replaces the pending message with the translation, if it has completed.
+	 */
+	private void updateNLPFeedback() {
+		if (nlpFeedback == null || !nlpFeedback.isDone())
+			return;
+		try {
+			feedbackNLP = "We determined the question that you actually answered was: \" " + format(nlpFeedback.get()) + " \"";
+		} catch (CancellationException e) {
+			feedbackNLP = NLP_FAILED_MESSAGE;
+			log.warn("Translation timed out for query: {}", query);
+		} catch (ExecutionException | InterruptedException e) {
+			feedbackNLP = NLP_FAILED_MESSAGE;
+			e.printStackTrace();
+		}
+		nlpFeedback = null;
+	}
+
+	/**
+	 * Writes an attempt to the log.  The attempt is captured when it is made, 
+	 * so it may be written from another thread once its NLP feedback is ready.
+	 */
+	private final class AttemptLog implements FutureCallback<String> {
+		private final DatabaseManager databaseManager = getDatabaseManager();
+		private final String sessionId = BeanUtils.getSessionId();
+		private final String email = userBean.getHashedEmail();
+		private final String tutorialName = userBean.getSelectedTutorialName();
+		private final String tutorialAdminCode = userBean.getSelectedTutorialAdminCode();
+		private final QuestionTuple question = questionTuples.get(questionIndex);
+		private final String query = TutorialPageBean.this.query;
+		private final QueryResult queryResult = TutorialPageBean.this.queryResult;
+		private final QueryResult answerResult = TutorialPageBean.this.answerResult;
+		private final boolean correct = getQueryIsCorrect();
+		private final double totalTimeTakenSeconds;
+
+		public AttemptLog(double totalTimeTakenSeconds) {
+			this.totalTimeTakenSeconds = totalTimeTakenSeconds;
+		}
+
+		@Override
+		public void onSuccess(String nlpResult) {
+			write(nlpResult);
+		}
+
+		@Override
+		public void onFailure(Throwable t) {
+			write(null);
+		}
+
+		public void write(String nlpResult) {
+			databaseManager.log(sessionId,
+					email, 
+					tutorialName,
+					question.getOrder(), 
+					question.getQuestion(),
+					question.getAnswer(),
+					query, queryResult != null, correct, nlpResult, totalTimeTakenSeconds, 
+					queryResult != null  ? queryResult.getTotalTime()/1000d : 0, 
+					answerResult != null ? answerResult.getTotalTime()/1000d : 0, 
+					queryResult != null ? queryResult.getExecutionTime()/1000d : 0,
+					answerResult != null ? answerResult.getExecutionTime()/1000d : 0, 
+					queryResult != null ? queryResult.isTruncated() : false, 
+					queryResult != null ? queryResult.isReadLimitExceeded() : false, 
+					queryResult != null ? queryResult.getOriginalSize() : 0,
+					tutorialAdminCode);
 		}
-		return result;
 	}
 
 	private String format(String translation) {
@@ -333,7 +393,10 @@ Serializable {
 		return translation;
 	}
 
-	private StringBuilder formatResultHeader(QueryResult result, StringBuilder header) {
+	/**
+	 * @param shownRows the number of rows the table may show
+	 */
+	private StringBuilder formatResultHeader(QueryResult result, int shownRows, StringBuilder header) {
 		if (result != null) {
 			long execTime = result.getExecutionTime();
 			if (execTime >= 0L) {
@@ -343,11 +406,13 @@ Serializable {
 				header.append(" [").append(nf.format(execTime / 1000d)).append("s]");
 			}
 
-			if (result.getData().size() >= RESULT_ROW_LIMIT) {
+			if (shownRows < result.getOriginalSize() || result.isIncomplete() || result.isReadLimitExceeded()) {
 				NumberFormat nf = NumberFormat.getIntegerInstance(Locale.US);
-				header.append(" (Showing ").append(nf.format(RESULT_ROW_LIMIT)).append(" out of ").append(nf.format(result.getOriginalSize()));
+				header.append(" (Showing ").append(nf.format(shownRows)).append(" out of ").append(nf.format(result.getOriginalSize()));
 				if (result.isReadLimitExceeded())
 					header.append("+ [limit reached]");
+				else if (result.isIncomplete())
+					header.append("+");
 				header.append(")");
 			}
 		}
@@ -355,7 +420,9 @@ Serializable {
 	}
 
 	public String getQueryResultHeader() {
-		StringBuilder header = formatResultHeader(queryResult, new StringBuilder("Query Result"));
+		// all rows kept can be paged through
+		StringBuilder header = formatResultHeader(queryResult, queryResult != null ? queryResult.getRowCount() : 0, 
+				new StringBuilder("Query Result"));
 		return header.toString();
 	}
 
@@ -363,17 +430,69 @@ Serializable {
 		if( answerResult == null ) {
 			return "";
 		} else {
-			StringBuilder header = formatResultHeader(answerResult, new StringBuilder("Your answer should resemble this example"));
+			StringBuilder header = formatResultHeader(answerResult, Math.min(RESULT_ROW_LIMIT, answerResult.getRowCount()), 
+					new StringBuilder("Your answer should resemble this example"));
 			header.append(':');
 			return header.toString();
 		}
 	}
 
 	private void setResultSetFeedback() {
+		try {
+			gradeQuery();
+		} finally {
+			// the row fingerprints are only needed to grade, the result stays in the view to be paged through
+			if (queryResult != null)
+				queryResult.setFingerprints(null);
+		}
+	}
+
+	private void gradeQuery() {
+		final QuestionTuple questionTuple = questionTuples.get(questionIndex);
+		final String normalizedAnswer = normalize(questionTuple.getAnswer());
+		final String normalizedQuery = normalize(query);
+		final boolean isAnswerQuery = normalizedAnswer.equals(normalizedQuery) 
+				|| getDatabaseManager().getCanonicalQueryCache().isEquivalent(query, questionTuple.getAnswer());
+		if (isAnswerQuery && setEquivalentResult())
+			return;
+		// queries that would run until the statement timeout are not run at all; the attempt 
+		// was admitted in processSQL(), and planning counts as one of the student queries in flight
+		if (!isAnswerQuery) {
+			final AdmissionControl admissionControl = getQueryScheduler().getAdmissionControl();
+			if (!admissionControl.tryEnter()) {
+				resultSetFeedback = BUSY_MESSAGE;
+				return;
+			}
+			try {
+				getDatabaseManager().checkQueryBudget(userBean.getSelectedTutorial(), query, schemaOptions);
+			} catch (QueryBudgetExceededException e) {
+				resultSetFeedback = OVER_BUDGET_MESSAGE;
+				log.info("User query over budget (schema={}, question={}): {}", userBean.getSelectedTutorial(), questionIndex, e.getMessage());
+				return;
+			} finally {
+				admissionControl.exit();
+			}
+		}
+		// with the answer's fingerprint, the student's rows are fingerprinted as they are read and the answer is not awaited
+		final AnswerFingerprint fingerprint = isAnswerQuery ? null : getAnswerFingerprint(questionTuple);
+		final ComparisonStrategy strategy = isAnswerQuery || fingerprint != null ? ComparisonStrategy.IN_MEMORY : chooseComparison();
+		// if the answer is ready, compare while reading so that the rest of a differing result is never fetched
+		final ResultComparator comparator = isAnswerQuery || fingerprint != null || strategy != ComparisonStrategy.IN_MEMORY ? null 
+				: getReadyAnswerComparator(questionTuple);
+		// read at least as many rows as the answer has, readQueryResult() reads one more to tell whether there are more
+		final int rowsToRead = fingerprint != null ? Math.max(fingerprint.getRowCount(), DatabaseManager.DIFFERING_ROWS_KEPT) 
+				: strategy.getRowsToRead();
+
 		// calculate the student's query's result set, and let them know if it
 		// was malformed.
 		try {
-			queryResult = getDatabaseManager().getQueryResult(userBean.getSelectedTutorial(), query, false);
+			// only the first page is kept in the heap, the rest is read from a spill when shown
+			queryResult = getQueryScheduler().execute(userBean.getHashedEmail(), userBean.getSelectedTutorial(), query, false, 
+					comparator, rowsToRead, new DatabaseManager.Paging(RESULT_ROW_LIMIT, questionTuple.isColumnOrderMatters()));
+		} catch (RejectedExecutionException e) {
+			resultSetFeedback = BUSY_MESSAGE;
+			log.warn("User query rejected (schema={}, question={}): {}", userBean.getSelectedTutorial(), questionIndex, e.getMessage());
+			return;
 		} catch (SQLException e) {
 			if (isTimeoutException(e)) {
 				resultSetFeedback = TIMEOUT_MESSAGE;
@@ -385,127 +504,216 @@ Serializable {
 			return;
 		}
 
-		// check for "strong" correctness
-		// naive check
-		// TODO: Move in the clustering classes to do a better job of this
-		final QuestionTuple questionTuple = questionTuples.get(questionIndex);
-		final String normalizedAnswer = normalize(questionTuple.getAnswer());
-		final String normalizedQuery = normalize(query);
-		if (normalizedAnswer.equals(normalizedQuery)) {
-			resultSetFeedback = "Correct! Your answer matched for all possible instances!";
+		// check for "strong" correctness, the query is only run to show its rows
+		if (isAnswerQuery) {
+			resultSetFeedback = STRONGLY_CORRECT_MESSAGE;
 			isQueryCorrect = true;
+		} else if (fingerprint != null) {
+			setFingerprintFeedback(questionTuple, fingerprint);
 		} else {
-			// wait for the answerThread to finish before moving forward
+			// wait for the answer to finish before moving forward
 			try {
-				answerThread.join();
-			} catch (InterruptedException e) {
+				answerResult = submitAnswer().get();
+			} catch (InterruptedException | CancellationException e) {
 				log.warn("Computing the answer result-set to question at index #{} was interrupted.", questionIndex);
 				return;
-			}
-			// if the answerThread had an SQLException, let the user know and back-out.
-			if (answerThread.getException() != null) {
-				resultSetFeedback = ANSWER_MALFORMED_MESSAGE;
-				log.warn("Error in stored answer for {} question #{}.\nStored query: {}\nException: {}", 
-						userBean.getSelectedTutorial(), questionIndex, normalizedAnswer, answerThread.getException());
+			} catch (ExecutionException e) {
+				// if the answer had an SQLException, let the user know and back-out.
+				if (e.getCause() instanceof SQLException) {
+					resultSetFeedback = ANSWER_MALFORMED_MESSAGE;
+					log.warn("Error in stored answer for {} question #{}.\nStored query: {}\nException: {}", 
+							userBean.getSelectedTutorial(), questionIndex, normalizedAnswer, e.getCause());
+				} else {
+					resultSetFeedback = BUSY_MESSAGE;
+					log.warn("Computing the answer result-set to question at index #{} failed: {}", questionIndex, e.getCause().toString());
+				}
 				return;
-			} 
-
-			answerResult = answerThread.getQueryResult();
+			}
 			
-			if (questionTuple.getPerformanceLeniencySeconds() != 0 && queryResult.getExecutionTime() > answerResult.getExecutionTime() + (questionTuple.getPerformanceLeniencySeconds() * 1000)) {
-				resultSetFeedback = "Incorrect. Your query's execution time was longer than the answer's plus the alotted leniency time (" + questionTuple.getPerformanceLeniencySeconds() + ").";
+			// First checks the time, truncation and the number of columns, then the number of rows, then moves into 
+			// specialized checks based on if column and/or row order matters
+			if (setPreComparisonFeedback(questionTuple, answerResult.getExecutionTime(), answerResult.getColumns().size()))
 				return;
-			}
-
-			// check if we truncated the result, we never consider this correct and assume the instructor answer is smaller
-			if (queryResult.isTruncated()) {
-				log.warn("User query was truncated at {} out of {} rows: {}", 
-						queryResult.getData().size(), queryResult.getOriginalSize(), query);
-				resultSetFeedback = TRUNCATED_QUERY_MESSAGE;
+			final ComparisonStrategy.Outcome outcome;
+			try {
+				outcome = strategy.compare(getQueryScheduler(), userBean.getHashedEmail(), userBean.getSelectedTutorial(), 
+						questionTuple, answerResult, questionTuple.getAnswer(), queryResult, query);
+			} catch (RejectedExecutionException e) {
+				resultSetFeedback = BUSY_MESSAGE;
 				return;
-			}
-
-			// First checks if the number of columns are equal, then the number of rows, then moves into specialized checks
-			// based on if column and/or row order matters
-			if (answerResult.getColumns().size() != queryResult.getColumns().size()) {
-				resultSetFeedback = "Incorrect. Your query did not have the same number of columns as the stored answer.";
-			} else if (answerResult.getData().size() != queryResult.getData().size()) {
-				resultSetFeedback = "Incorrect. Your query did not have the same number of rows as the stored answer.";
-			} else if (questionTuple.isColumnOrderMatters() && questionTuple.isRowOrderMatters()) {
-				if (answerResult.getData().equals(queryResult.getData())) {
-					resultSetFeedback = WEAKLY_CORRECT_MESSAGE;
-					isQueryCorrect = true;
-				} else {
-					resultSetFeedback = "Incorrect. Your query's data differed from the stored answer's (note: column and row order matters).";
-				}
-			} else if (!questionTuple.isColumnOrderMatters() && questionTuple.isRowOrderMatters()) {
-				// Puts the column's data into a map, mapped to the column name. Orders by column name then checks equality.
-				final Map<String, List<String>> queryTree = new TreeMap<String, List<String>>();
-				final Map<String, List<String>> answerTree = new TreeMap<String, List<String>>();
-
-				for (int i = 0; i < queryResult.getColumns().size(); i++) {
-					final List<String> columnData = new ArrayList<String>(queryResult.getData().size());
-					for (int j = 0; j < queryResult.getData().size(); j++) {
-						columnData.add(queryResult.getData().get(j).get(i));
-						columnData.add(answerResult.getData().get(j).get(i));
-					}
-					queryTree.put(queryResult.getColumns().get(i), columnData);
-					answerTree.put(answerResult.getColumns().get(i), columnData);
-				}
-
-				if (queryTree.equals(answerTree)) {
-					resultSetFeedback = WEAKLY_CORRECT_MESSAGE;
-					isQueryCorrect = true;
-				} else {
-					resultSetFeedback = "Incorrect. Your query's data or order differed from the stored answer's (note: row order matters).";
-				}
-			} else if (questionTuple.isColumnOrderMatters() && !questionTuple.isRowOrderMatters()) {
-				final String diff = "SELECT count(*) FROM ((" + normalizedQuery + ") EXCEPT (" + normalizedAnswer 
-						+ ") UNION ALL (" + normalizedAnswer + ") EXCEPT (" + normalizedQuery + ")) t";
-				try {
-					final QueryResult diffResult = getDatabaseManager().getQueryResult(userBean.getSelectedTutorial(), diff, false);
-					if ("0".equals(diffResult.getData().get(0).get(0))) {
-						resultSetFeedback = WEAKLY_CORRECT_MESSAGE;
-						isQueryCorrect = true;
-					} else {
-						resultSetFeedback = "Incorrect. Your query's data differed from the stored answer's (note: column order matters).";
-					}
-				} catch (SQLException e) {
-					if (isTimeoutException(e)) {
-						resultSetFeedback = "We were unable to check your answer in time.";
-						log.warn("Timed out checking difference with query: {}", diff);
-					} else if (e.getMessage().contains("columns")) {
-						resultSetFeedback = "Incorrect. The number of columns in your result did not match the answer.";
-					} else if (e.getMessage().contains("type")) {
-						resultSetFeedback = "Incorrect. One or more of your result's data types did not match the answer.";
-					} else {
-						for (Throwable t : e) {
-							t.printStackTrace();
-							logException(t, userBean.getHashedEmail());
-						}
-					}
-				}
-			} else {
-				// Puts all of the data into bags then compares the counts
-				final Multiset<String> queryBag = HashMultiset.create();
-				final Multiset<String> answerBag = HashMultiset.create();
-
-				for (int i = 0; i < queryResult.getData().size(); i++) {
-					queryBag.addAll(queryResult.getData().get(i));
-					// we already checked to make sure they're the same size
-					answerBag.addAll(answerResult.getData().get(i));
-				}
-
-				if (queryBag.equals(answerBag)) {
-					resultSetFeedback = WEAKLY_CORRECT_MESSAGE;
-					isQueryCorrect = true;
+			} catch (SQLException e) {
+				if (isTimeoutException(e)) {
+					resultSetFeedback = TIMEOUT_MESSAGE;
 				} else {
-					resultSetFeedback = "Incorrect. Your query's data differed from the stored answer's.";
+					resultSetFeedback = COMPARISON_FAILED_MESSAGE;
+					log.warn("Comparing to the answer of {} question #{} failed: {}", userBean.getSelectedTutorial(), questionIndex, e.getMessage());
 				}
+				return;
 			}
+
+			setOutcomeFeedback(questionTuple, outcome);
 		}	
 	}
 
+	/**
+	 * Grades the student's result against the stored fingerprint of the answer's.
+	 * The answer's rows are shown as an example only if they are ready.
+	 */
+	private void setFingerprintFeedback(QuestionTuple questionTuple, AnswerFingerprint fingerprint) {
+		final ListenableFuture<QueryResult> answer = submitAnswer();
+		if (answer.isDone() && !failed(answer))
+			answerResult = Futures.getUnchecked(answer);
+
+		if (setPreComparisonFeedback(questionTuple, fingerprint.getExecutionTime(), fingerprint.getColumns().size()))
+			return;
+		if (queryResult.isIncomplete() || queryResult.getOriginalSize() != fingerprint.getRowCount()) {
+			setOutcomeFeedback(questionTuple, ComparisonStrategy.Outcome.ROW_COUNT_DIFFERS);
+			return;
+		}
+		setOutcomeFeedback(questionTuple, fingerprint.matches(queryResult.getFingerprints(), questionTuple.isRowOrderMatters()) 
+				? ComparisonStrategy.Outcome.MATCH : ComparisonStrategy.Outcome.DATA_DIFFERS);
+	}
+
+	/**
+	 * Checks the student's result before its rows are compared to the answer's: the query's time, 
+	 * whether the result was truncated and its number of columns.
+	 * 
+	 * @param answerExecutionTime	the time of a single run of the answer
+	 * @param answerColumnCount		the number of columns of the answer
+	 * @return <code>true</code> if the query is incorrect and the feedback was set
+	 */
+	private boolean setPreComparisonFeedback(QuestionTuple questionTuple, long answerExecutionTime, int answerColumnCount) {
+		if (isTooSlow(questionTuple, answerExecutionTime)) {
+			resultSetFeedback = "Incorrect. Your query's execution time was longer than the answer's plus the alotted leniency time (" + questionTuple.getPerformanceLeniencySeconds() + ").";
+			return true;
+		}
+
+		// check if we truncated the result, we never consider this correct and assume the instructor answer is smaller
+		if (queryResult.isTruncated()) {
+			log.warn("User query was truncated at {} out of {} rows: {}", 
+					QueryResult.QUERY_SIZE_LIMIT, queryResult.getOriginalSize(), query);
+			resultSetFeedback = TRUNCATED_QUERY_MESSAGE;
+			return true;
+		}
+
+		if (answerColumnCount != queryResult.getColumns().size()) {
+			resultSetFeedback = "Incorrect. Your query did not have the same number of columns as the stored answer.";
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns whether the student's query took longer than the answer plus the question's leniency.
+	 * Once the answer's baseline is collected, the query is compared to the answer's median time 
+	 * and planned cost instead of to a single run, see {@link PerformanceBaselineStore.Baseline}.
+	 * 
+	 * @param answerExecutionTime the time of a single run of the answer, used until its baseline is collected
+	 */
+	private boolean isTooSlow(QuestionTuple questionTuple, long answerExecutionTime) {
+		if (questionTuple.getPerformanceLeniencySeconds() == 0)
+			return false;
+		final double leniencyMillis = questionTuple.getPerformanceLeniencySeconds() * 1000;
+		final PerformanceBaselineStore.Baseline baseline = getDatabaseManager().getPerformanceBaselineStore().getBaseline(
+				userBean.getSelectedTutorialName(), userBean.getSelectedTutorialAdminCode(), questionTuple);
+		if (baseline == null)
+			return queryResult.getExecutionTime() > answerExecutionTime + leniencyMillis;
+		// the plan is only needed if the query was slow
+		if (queryResult.getExecutionTime() <= baseline.getMedianExecutionTime() + leniencyMillis)
+			return false;
+		double totalCost = -1;
+		try {
+			totalCost = getDatabaseManager().estimateCost(userBean.getSelectedTutorial(), query);
+		} catch (SQLException e) {
+			log.warn("Could not plan a user query to grade its performance: {}", e.getMessage());
+		}
+		final boolean tooSlow = baseline.isExceededBy(queryResult.getExecutionTime(), totalCost, leniencyMillis);
+		if (tooSlow)
+			log.debug("User query too slow ({} ms, cost {}) for answer ({} ms median, cost {}, {} buffers): {}", 
+					queryResult.getExecutionTime(), totalCost, baseline.getMedianExecutionTime(), baseline.getTotalCost(), 
+					baseline.getSharedBuffers(), query);
+		return tooSlow;
+	}
+
+	private void setOutcomeFeedback(QuestionTuple questionTuple, ComparisonStrategy.Outcome outcome) {
+		if (outcome == ComparisonStrategy.Outcome.ROW_COUNT_DIFFERS) {
+			resultSetFeedback = "Incorrect. Your query did not have the same number of rows as the stored answer.";
+		} else if (outcome == ComparisonStrategy.Outcome.MATCH) {
+			resultSetFeedback = WEAKLY_CORRECT_MESSAGE;
+			isQueryCorrect = true;
+		} else if (questionTuple.isColumnOrderMatters() && questionTuple.isRowOrderMatters()) {
+			resultSetFeedback = "Incorrect. Your query's data differed from the stored answer's (note: column and row order matters).";
+		} else if (questionTuple.isRowOrderMatters()) {
+			resultSetFeedback = "Incorrect. Your query's data or order differed from the stored answer's (note: row order matters).";
+		} else if (questionTuple.isColumnOrderMatters()) {
+			resultSetFeedback = "Incorrect. Your query's data differed from the stored answer's (note: column order matters).";
+		} else {
+			resultSetFeedback = "Incorrect. Your query's data differed from the stored answer's.";
+		}
+	}
+
+	/**
+	 * Returns the stored fingerprint of the answer if the student's result can be graded 
+	 * against it in memory, otherwise <code>null</code>.
+	 */
+	private AnswerFingerprint getAnswerFingerprint(QuestionTuple questionTuple) {
+		final AnswerFingerprint fingerprint = getDatabaseManager().getAnswerFingerprintStore().getFingerprint(
+				userBean.getSelectedTutorialName(), userBean.getSelectedTutorialAdminCode(), questionTuple);
+		if (fingerprint == null || fingerprint.isColumnOrderMatters() != questionTuple.isColumnOrderMatters()
+				|| fingerprint.getRowCount() > ComparisonStrategy.IN_MEMORY_ROW_LIMIT)
+			return null;
+		return fingerprint;
+	}
+
+	/**
+	 * Shows the answer's result for a query that is equivalent to the answer, 
+	 * so that it is not run.
+	 * @return <code>false</code> if the answer's result is not ready
+	 */
+	private boolean setEquivalentResult() {
+		final ListenableFuture<QueryResult> answer = submitAnswer();
+		if (!answer.isDone() || failed(answer))
+			return false;
+		// equivalent queries return the same rows under the same column names
+		queryResult = answerResult = Futures.getUnchecked(answer);
+		resultSetFeedback = STRONGLY_CORRECT_MESSAGE;
+		isQueryCorrect = true;
+		return true;
+	}
+
+	/**
+	 * Chooses how to compare the student's query to the answer.  If the answer is not ready, 
+	 * the planner's estimate of the student's rows is used.
+	 */
+	private ComparisonStrategy chooseComparison() {
+		final ListenableFuture<QueryResult> answer = submitAnswer();
+		if (answer.isDone() && !failed(answer))
+			return ComparisonStrategy.choose(Futures.getUnchecked(answer), -1);
+
+		long estimatedRows = -1;
+		try {
+			estimatedRows = getDatabaseManager().estimateRows(userBean.getSelectedTutorial(), query);
+		} catch (SQLException e) {
+			// malformed queries are reported when they are run
+		}
+		return ComparisonStrategy.choose(null, estimatedRows);
+	}
+
+	/**
+	 * Returns the comparator for the current question's answer, or <code>null</code> if it is not ready.
+	 */
+	private ResultComparator getReadyAnswerComparator(QuestionTuple questionTuple) {
+		final ListenableFuture<QueryResult> answer = submitAnswer();
+		if (!answer.isDone() || failed(answer))
+			return null;
+		return getAnswerComparator(Futures.getUnchecked(answer), questionTuple);
+	}
+
+	private ResultComparator getAnswerComparator(QueryResult answer, QuestionTuple questionTuple) {
+		return getDatabaseManager().getAnswerResultCache().getComparator(answer, 
+				questionTuple.isColumnOrderMatters(), questionTuple.isRowOrderMatters());
+	}
+
 	/**
 	 * Trims the query and removes all semicolons. Lowercases all characters outside of parenthesis and apostrophes.
 	 * @param query		the query to be normalized
@@ -603,9 +811,12 @@ Serializable {
 	 * This method should reset the bean's result-sets and feedback.
 	 */
 	private void resetResultsAndFeedback() {
+		releaseQueryResult();
 		queryResult = null;
+		queryResultModel = null;
 		answerResult = null;
 		feedbackNLP = "";
+		nlpFeedback = null;
 		resultSetFeedback = "";
 		isQueryCorrect = false;
 	}
@@ -614,25 +825,43 @@ Serializable {
 		if(questionTuples == null || questionTuples.isEmpty())
 			return NO_QUESTIONS_MESSAGE;
 		// Log that a question was retrieved
+		getDatabaseManager().logQuestionPresentation(
+				BeanUtils.getSessionId(), userBean.getHashedEmail(),
+				userBean.getSelectedTutorialName(),
+				questionTuples.get(questionIndex).getOrder(), 
+				userBean.getSelectedTutorialAdminCode());
+		// Pre-compute the answer
+		final QuestionTuple question = questionTuples.get(questionIndex);
+		submitAnswer();
+		return question.getQuestion();
+	}
+
+	/**
+	 * Submits the current question's answer, unless it was already submitted.
+	 * This is called on every render, so the answer is only resubmitted when
+	 * the question changes or the previous attempt failed.
+	 * @return	the future answer result
+	 */
+	private ListenableFuture<QueryResult> submitAnswer() {
+		final QuestionTuple question = questionTuples.get(questionIndex);
+		if (answerFuture != null && answerQuestion == question && !failed(answerFuture))
+			return answerFuture;
+		if (answerFuture != null)
+			answerFuture.cancel(false);
+		answerQuestion = question;
+		answerFuture = getQueryScheduler().submitAnswer(userBean.getSelectedTutorialName(), userBean.getSelectedTutorialAdminCode(), question);
+		return answerFuture;
+	}
+
+	private static boolean failed(ListenableFuture<?> future) {
+		if (!future.isDone())
+			return false;
 		try {
-			getDatabaseManager().logQuestionPresentation(
-					BeanUtils.getSessionId(), userBean.getHashedEmail(),
-					userBean.getSelectedTutorialName(),
-					questionTuples.get(questionIndex).getOrder(), 
-					userBean.getSelectedTutorialAdminCode());
-		} catch (SQLException e) {
-			for (Throwable t : e) {
-				t.printStackTrace();
-				logException(t, userBean.getHashedEmail());
-			}
-			BeanUtils.addErrorMessage(null, DATABASE_ERROR_MESSAGE);
+			future.get();
+			return false;
+		} catch (InterruptedException | ExecutionException | CancellationException e) {
+			return true;
 		}
-		// Start a thread to pre-compute the answer
-		if(answerThread != null) 
-			answerThread.interrupt();
-		answerThread = new QueryThread(userBean.getSelectedTutorial(), questionTuples.get(questionIndex).getAnswer(), false, getDatabaseManager());
-		answerThread.start();
-		return questionTuples.get(questionIndex).getQuestion();
 	}
 
 	public String getQuery() {
@@ -647,6 +876,31 @@ Serializable {
 		return queryResult;
 	}
 
+	/**
+	 * Returns the rows of the shown result, a page at a time.
+	 */
+	public QueryResultDataModel getQueryResultModel() {
+		if (queryResultModel == null && queryResult != null)
+			queryResultModel = new QueryResultDataModel(queryResult);
+		return queryResultModel;
+	}
+
+	public TranslationService getTranslationService() {
+		if (translationService == null) {
+			final FacesContext ctx = FacesContext.getCurrentInstance();
+			translationService = ctx.getApplication().evaluateExpressionGet(ctx, "#{translationService}", TranslationService.class);
+		}
+		return translationService;
+	}
+
+	public QueryScheduler getQueryScheduler() {
+		if (queryScheduler == null) {
+			final FacesContext ctx = FacesContext.getCurrentInstance();
+			queryScheduler = ctx.getApplication().evaluateExpressionGet(ctx, "#{queryScheduler}", QueryScheduler.class);
+		}
+		return queryScheduler;
+	}
+
 	public UserBean getUserBean() {
 		return userBean;
 	}
@@ -656,9 +910,15 @@ Serializable {
 	}
 
 	public String getFeedbackNLP() {
+		updateNLPFeedback();
 		return feedbackNLP;
 	}
 
+	public boolean isFeedbackNLPPending() {
+		updateNLPFeedback();
+		return nlpFeedback != null;
+	}
+
 	public QueryResult getAnswerResult() {
 		return answerResult;
 	}
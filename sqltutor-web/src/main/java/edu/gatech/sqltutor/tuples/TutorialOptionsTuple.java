@@ -14,11 +14,14 @@ public class TutorialOptionsTuple implements Serializable {
 	private Timestamp closeAccess;
 	private String link;
 	private int maxQuestionAttempts;
+	private double maxQueryCost;
+	private long maxQueryRows;
 	private String adminCode;
 	private String schema;
 	
 	public TutorialOptionsTuple(boolean visibleToUsers, boolean inOrderQuestions, String link,
-			Timestamp openAccess, Timestamp closeAccess, int maxQuestionAttempts, String adminCode, String schema) {
+			Timestamp openAccess, Timestamp closeAccess, int maxQuestionAttempts, double maxQueryCost, long maxQueryRows,
+			String adminCode, String schema) {
 		super();
 		this.setLink(link);
 		this.visibleToUsers = visibleToUsers;
@@ -26,6 +29,8 @@ public class TutorialOptionsTuple implements Serializable {
 		this.openAccess = openAccess;
 		this.closeAccess = closeAccess;
 		this.maxQuestionAttempts = maxQuestionAttempts;
+		this.maxQueryCost = maxQueryCost;
+		this.maxQueryRows = maxQueryRows;
 		this.adminCode = adminCode;
 		this.schema = schema;
 	}
@@ -38,6 +43,8 @@ public class TutorialOptionsTuple implements Serializable {
 		this.openAccess = options.getOpenAccess();
 		this.closeAccess = options.getCloseAccess();
 		this.maxQuestionAttempts = options.getMaxQuestionAttempts();
+		this.maxQueryCost = options.getMaxQueryCost();
+		this.maxQueryRows = options.getMaxQueryRows();
 		this.adminCode = options.getAdminCode();
 		this.schema = options.getSchema();
 	}
@@ -128,6 +135,24 @@ public class TutorialOptionsTuple implements Serializable {
 		this.maxQuestionAttempts = maxQuestionAttempts;
 	}
 
+	/** Returns the planner's cost above which students' queries are not run, or 0 for no limit. */
+	public double getMaxQueryCost() {
+		return maxQueryCost;
+	}
+
+	public void setMaxQueryCost(double maxQueryCost) {
+		this.maxQueryCost = maxQueryCost;
+	}
+
+	/** Returns the planner's row estimate above which students' queries are not run, or 0 for no limit. */
+	public long getMaxQueryRows() {
+		return maxQueryRows;
+	}
+
+	public void setMaxQueryRows(long maxQueryRows) {
+		this.maxQueryRows = maxQueryRows;
+	}
+
 	public String getAdminCode() {
 		return adminCode;
 	}
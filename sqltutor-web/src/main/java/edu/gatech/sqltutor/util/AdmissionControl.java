@@ -0,0 +1,177 @@
+/*
+ *   Copyright (c) 2015 Program Analysis Group, Georgia Tech
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package edu.gatech.sqltutor.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Decides whether students' queries are run, so that a few students cannot
+ * starve a class.
+ * <p>
+ * Each user and each tutorial schema has a token bucket.  An attempt takes a
+ * token from both, and is {@link #tryAcquire(String, String) rejected} at once
+ * if either is empty.  Buckets refill at a steady rate up to their burst size,
+ * so occasional bursts of attempts are admitted but sustained hammering is not.
+ * </p><p>
+ * Independently, at most {@link #MAX_IN_FLIGHT} student queries may be running 
+ * or waiting at a time, see {@link #tryEnter()}, leaving room for the answers 
+ * and the developers' queries.  Rejections are counted by reason.
+ * </p>
+ */
+public class AdmissionControl {
+	/** The attempts a user may make at once, and the rate at which they are regained. */
+	public static final int USER_BURST = 5;
+	public static final double USER_ATTEMPTS_PER_SECOND = 0.2;
+	/** The attempts the students of a tutorial may make at once, and the rate at which they are regained. */
+	public static final int TUTORIAL_BURST = 60;
+	public static final double TUTORIAL_ATTEMPTS_PER_SECOND = 10.0;
+	/** The maximum number of student queries running or waiting for a worker. */
+	public static final int MAX_IN_FLIGHT = 2 * QueryScheduler.POOL_SIZE;
+	/** Buckets idle this long are full and are dropped. */
+	public static final long IDLE_MINUTES = 10L;
+
+	/** Why an attempt was not admitted. */
+	public enum Rejection {
+		USER_RATE, TUTORIAL_RATE, CAPACITY
+	}
+
+	/** A token bucket.  Guarded by itself. */
+	private static final class TokenBucket {
+		private final int capacity;
+		private final double tokensPerNano;
+		private double tokens;
+		private long refilled = System.nanoTime();
+
+		public TokenBucket(int capacity, double tokensPerSecond) {
+			this.capacity = capacity;
+			this.tokensPerNano = tokensPerSecond / TimeUnit.SECONDS.toNanos(1);
+			this.tokens = capacity;
+		}
+
+		public synchronized boolean tryTake() {
+			final long now = System.nanoTime();
+			tokens = Math.min(capacity, tokens + (now - refilled) * tokensPerNano);
+			refilled = now;
+			if (tokens < 1)
+				return false;
+			--tokens;
+			return true;
+		}
+
+		/** Returns a token that was taken for an attempt that was rejected for another reason. */
+		public synchronized void giveBack() {
+			tokens = Math.min(capacity, tokens + 1);
+		}
+	}
+
+	private final Cache<String, TokenBucket> userBuckets = CacheBuilder.newBuilder()
+			.expireAfterAccess(IDLE_MINUTES, TimeUnit.MINUTES)
+			.build();
+	private final Cache<String, TokenBucket> tutorialBuckets = CacheBuilder.newBuilder()
+			.expireAfterAccess(IDLE_MINUTES, TimeUnit.MINUTES)
+			.build();
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicLong admittedCount = new AtomicLong();
+	private final AtomicLong userRateRejectedCount = new AtomicLong();
+	private final AtomicLong tutorialRateRejectedCount = new AtomicLong();
+	private final AtomicLong capacityRejectedCount = new AtomicLong();
+
+	/**
+	 * Takes a token for an attempt from the user's and the tutorial's buckets.
+	 *
+	 * @param user		the user making the attempt
+	 * @param schema	the tutorial schema
+	 * @return why the attempt is rejected, or <code>null</code> if it is admitted
+	 */
+	public Rejection tryAcquire(String user, String schema) {
+		final TokenBucket userBucket = bucket(userBuckets, String.valueOf(user), USER_BURST, USER_ATTEMPTS_PER_SECOND);
+		if (!userBucket.tryTake()) {
+			userRateRejectedCount.incrementAndGet();
+			return Rejection.USER_RATE;
+		}
+		if (!bucket(tutorialBuckets, String.valueOf(schema), TUTORIAL_BURST, TUTORIAL_ATTEMPTS_PER_SECOND).tryTake()) {
+			// the user is not charged for the class's load
+			userBucket.giveBack();
+			tutorialRateRejectedCount.incrementAndGet();
+			return Rejection.TUTORIAL_RATE;
+		}
+		admittedCount.incrementAndGet();
+		return null;
+	}
+
+	private static TokenBucket bucket(Cache<String, TokenBucket> buckets, String key, final int capacity, 
+			final double tokensPerSecond) {
+		try {
+			return buckets.get(key, new Callable<TokenBucket>() {
+				@Override
+				public TokenBucket call() {
+					return new TokenBucket(capacity, tokensPerSecond);
+				}
+			});
+		} catch (ExecutionException e) {
+			// creating a bucket does not fail
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * Counts a student query as in flight, unless too many are.
+	 * Each query that entered must {@link #exit()} once it is done.
+	 *
+	 * @return <code>false</code> if the query is rejected
+	 */
+	public boolean tryEnter() {
+		if (inFlight.incrementAndGet() > MAX_IN_FLIGHT) {
+			inFlight.decrementAndGet();
+			capacityRejectedCount.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	public void exit() {
+		inFlight.decrementAndGet();
+	}
+
+	/** Returns the number of student queries running or waiting. */
+	public int getInFlightCount() {
+		return inFlight.get();
+	}
+
+	/** Returns the number of attempts admitted so far. */
+	public long getAdmittedCount() {
+		return admittedCount.get();
+	}
+
+	/** Returns the number of attempts or queries rejected so far for a reason. */
+	public long getRejectedCount(Rejection reason) {
+		switch (reason) {
+		case USER_RATE:
+			return userRateRejectedCount.get();
+		case TUTORIAL_RATE:
+			return tutorialRateRejectedCount.get();
+		default:
+			return capacityRejectedCount.get();
+		}
+	}
+}
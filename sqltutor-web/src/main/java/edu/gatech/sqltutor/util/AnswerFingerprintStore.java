@@ -0,0 +1,232 @@
+/*
+ *   Copyright (c) 2015 Program Analysis Group, Georgia Tech
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package edu.gatech.sqltutor.util;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import edu.gatech.sqltutor.AnswerFingerprint;
+import edu.gatech.sqltutor.tuples.QuestionTuple;
+
+/**
+ * Fingerprints of the results of the stored answers, see {@link AnswerFingerprint}.
+ * <p>
+ * Fingerprints are computed when a question is saved and stored in the
+ * <code>schema_questions_fingerprint</code> table, so student results can be
+ * checked without running the answer.  They are keyed by tutorial, admin code,
+ * answer text and whether column order matters, so reordering questions does
+ * not affect them.  Stored fingerprints are read once and then kept in memory
+ * until {@link #EXPIRY_MINUTES} minutes without access.
+ * </p><p>
+ * When the instance data of a tutorial may have changed, its fingerprints are
+ * discarded at once and {@link #refresh(String, String) computed again} in the 
+ * background, one tutorial at a time.  Without a fingerprint, results are 
+ * compared to the answer's result as before.
+ * </p>
+ */
+public class AnswerFingerprintStore {
+	private static final Logger log = LoggerFactory.getLogger(AnswerFingerprintStore.class);
+
+	public static final long EXPIRY_MINUTES = 60L;
+	/** The maximum number of fingerprints kept in memory. */
+	public static final long MAXIMUM_FINGERPRINTS = 10_000L;
+
+	private static final class Key {
+		private final String tutorialName;
+		private final String adminCode;
+		private final String answer;
+		private final boolean columnOrderMatters;
+
+		public Key(String tutorialName, String adminCode, String answer, boolean columnOrderMatters) {
+			this.tutorialName = tutorialName;
+			this.adminCode = adminCode;
+			this.answer = answer;
+			this.columnOrderMatters = columnOrderMatters;
+		}
+
+		public boolean isOf(String tutorialName, String adminCode) {
+			return Objects.equal(this.tutorialName, tutorialName) && Objects.equal(this.adminCode, adminCode);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) return true;
+			if (!(obj instanceof Key)) return false;
+			final Key that = (Key) obj;
+			return Objects.equal(tutorialName, that.tutorialName) && Objects.equal(adminCode, that.adminCode)
+					&& Objects.equal(answer, that.answer) && columnOrderMatters == that.columnOrderMatters;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hashCode(tutorialName, adminCode, answer, columnOrderMatters);
+		}
+	}
+
+	private final DatabaseManager databaseManager;
+	private final Cache<Key, Optional<AnswerFingerprint>> fingerprints = CacheBuilder.newBuilder()
+			.maximumSize(MAXIMUM_FINGERPRINTS)
+			.expireAfterAccess(EXPIRY_MINUTES, TimeUnit.MINUTES)
+			.build();
+	/** The tutorials waiting to be refreshed, as admin code and name. */
+	private final Set<List<String>> pendingRefreshes = Collections.newSetFromMap(new ConcurrentHashMap<List<String>, Boolean>());
+	private final ExecutorService refresher = Executors.newSingleThreadExecutor(
+			new ThreadFactoryBuilder().setNameFormat("answer-fingerprints-%d").setDaemon(true).build());
+
+	public AnswerFingerprintStore(DatabaseManager databaseManager) {
+		this.databaseManager = databaseManager;
+	}
+
+	/**
+	 * Returns the fingerprint of a question's answer, reading it if it is not kept.
+	 *
+	 * @param tutorialName	the name of the tutorial the question belongs to
+	 * @param adminCode		the admin code of the tutorial
+	 * @param question		the question
+	 * @return the fingerprint, or <code>null</code> if there is none or it could not be read
+	 */
+	public AnswerFingerprint getFingerprint(final String tutorialName, final String adminCode, final QuestionTuple question) {
+		try {
+			return fingerprints.get(keyFor(tutorialName, adminCode, question), new Callable<Optional<AnswerFingerprint>>() {
+				@Override
+				public Optional<AnswerFingerprint> call() throws SQLException {
+					return Optional.fromNullable(databaseManager.readAnswerFingerprint(tutorialName, adminCode, 
+							question.getAnswer(), question.isColumnOrderMatters()));
+				}
+			}).orNull();
+		} catch (ExecutionException | UncheckedExecutionException e) {
+			log.warn("Could not read the answer fingerprint of {} question #{}.", tutorialName, question.getOrder(), e.getCause());
+			return null;
+		}
+	}
+
+	/**
+	 * Runs a question's answer, then stores and keeps its fingerprint.  The answer
+	 * is validated this way, so a failing answer is reported to the caller while a
+	 * failure to store the fingerprint is only logged.
+	 *
+	 * @param tutorialName	the name of the tutorial the question belongs to
+	 * @param adminCode		the admin code of the tutorial
+	 * @param question		the question
+	 * @return the fingerprint, or <code>null</code> if the answer's result is too large
+	 * @throws SQLException if the answer fails
+	 */
+	public AnswerFingerprint compute(String tutorialName, String adminCode, QuestionTuple question) throws SQLException {
+		final AnswerFingerprint fingerprint = databaseManager.computeAnswerFingerprint(adminCode + "_" + tutorialName, 
+				question.getAnswer(), question.isColumnOrderMatters());
+		if (fingerprint != null) {
+			try {
+				databaseManager.writeAnswerFingerprint(tutorialName, adminCode, question.getAnswer(), fingerprint);
+			} catch (SQLException e) {
+				log.warn("Could not store the answer fingerprint of {} question #{}.", tutorialName, question.getOrder(), e);
+			}
+		}
+		fingerprints.put(keyFor(tutorialName, adminCode, question), Optional.fromNullable(fingerprint));
+		return fingerprint;
+	}
+
+	/**
+	 * Discards the fingerprints of a tutorial, e.g. after it was deleted or its instance was replaced.
+	 */
+	public void invalidate(String tutorialName, String adminCode) {
+		// delete the stored rows first, so a concurrent read cannot keep them in memory again
+		try {
+			databaseManager.deleteAnswerFingerprints(tutorialName, adminCode);
+		} catch (SQLException e) {
+			log.warn("Could not delete the answer fingerprints of {}.", tutorialName, e);
+		}
+		for (Iterator<Key> it = fingerprints.asMap().keySet().iterator(); it.hasNext(); ) {
+			if (it.next().isOf(tutorialName, adminCode))
+				it.remove();
+		}
+	}
+
+	/**
+	 * Discards the fingerprints of a tutorial whose instance data may have changed, 
+	 * and computes them again in the background.
+	 */
+	public void refresh(final String tutorialName, final String adminCode) {
+		invalidate(tutorialName, adminCode);
+		final List<String> tutorial = Arrays.asList(adminCode, tutorialName);
+		if (!pendingRefreshes.add(tutorial))
+			return;
+		try {
+			refresher.execute(new Runnable() {
+				@Override
+				public void run() {
+					pendingRefreshes.remove(tutorial);
+					computeAll(tutorialName, adminCode);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			pendingRefreshes.remove(tutorial);
+		}
+	}
+
+	private void computeAll(String tutorialName, String adminCode) {
+		final List<QuestionTuple> questions;
+		try {
+			questions = databaseManager.getQuestions(tutorialName, adminCode);
+		} catch (SQLException e) {
+			log.warn("Could not read the questions of {} to fingerprint their answers.", tutorialName, e);
+			return;
+		}
+		if (questions == null)
+			return;
+		for (QuestionTuple question : questions) {
+			try {
+				compute(tutorialName, adminCode, question);
+			} catch (SQLException e) {
+				log.warn("Could not fingerprint the answer of {} question #{}: {}", tutorialName, question.getOrder(), e.getMessage());
+			}
+		}
+	}
+
+	private static Key keyFor(String tutorialName, String adminCode, QuestionTuple question) {
+		return new Key(tutorialName, adminCode, question.getAnswer(), question.isColumnOrderMatters());
+	}
+
+	/** Stops computing fingerprints in the background. */
+	public void shutdown() {
+		refresher.shutdownNow();
+	}
+
+	/** Returns the approximate number of fingerprints kept. */
+	public long size() {
+		return fingerprints.size();
+	}
+}
@@ -0,0 +1,213 @@
+/*
+ *   Copyright (c) 2015 Program Analysis Group, Georgia Tech
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package edu.gatech.sqltutor.util;
+
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import edu.gatech.sqltutor.QueryResult;
+import edu.gatech.sqltutor.ResultComparator;
+import edu.gatech.sqltutor.tuples.QuestionTuple;
+
+/**
+ * Result sets of the stored answers, shared by all sessions.
+ * <p>
+ * Entries are keyed by tutorial, admin code, question order and answer text,
+ * so each answer is run at most once while it is cached no matter how many
+ * students view the question.  Concurrent requests for the same answer wait
+ * on a single query.  The cached results are shared and must not be modified.
+ * </p><p>
+ * Failed queries are not cached.  Entries are weighed by their number of
+ * cells and the least recently used are evicted once {@link #MAXIMUM_CELLS}
+ * is reached.
+ * </p>
+ */
+public class AnswerResultCache {
+	private static final Logger log = LoggerFactory.getLogger(AnswerResultCache.class);
+
+	/** The maximum total number of cached result cells. */
+	public static final long MAXIMUM_CELLS = 5_000_000L;
+
+	private static final class Key {
+		private final String tutorialName;
+		private final String adminCode;
+		private final int order;
+		private final String answer;
+
+		public Key(String tutorialName, String adminCode, int order, String answer) {
+			this.tutorialName = tutorialName;
+			this.adminCode = adminCode;
+			this.order = order;
+			this.answer = answer;
+		}
+
+		public boolean isOf(String tutorialName, String adminCode) {
+			return this.tutorialName.equals(tutorialName) && this.adminCode.equals(adminCode);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) return true;
+			if (!(obj instanceof Key)) return false;
+			final Key that = (Key) obj;
+			return order == that.order && tutorialName.equals(that.tutorialName)
+					&& adminCode.equals(that.adminCode) && answer.equals(that.answer);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hashCode(tutorialName, adminCode, order, answer);
+		}
+	}
+
+	private final DatabaseManager databaseManager;
+	private final Cache<Key, QueryResult> results;
+	/** Comparators of the cached results, by identity and by column and row order flags. */
+	private final LoadingCache<QueryResult, ResultComparator[]> comparators = CacheBuilder.newBuilder()
+			.weakKeys()
+			.build(new CacheLoader<QueryResult, ResultComparator[]>() {
+				@Override
+				public ResultComparator[] load(QueryResult result) {
+					return new ResultComparator[4];
+				}
+			});
+
+	public AnswerResultCache(DatabaseManager databaseManager) {
+		this.databaseManager = databaseManager;
+		this.results = CacheBuilder.newBuilder()
+				.maximumWeight(MAXIMUM_CELLS)
+				.weigher(new Weigher<Key, QueryResult>() {
+					@Override
+					public int weigh(Key key, QueryResult result) {
+						final List<List<String>> data = result.getData();
+						final int columns = result.getColumns() != null ? result.getColumns().size() : 0;
+						return 1 + (data != null ? data.size() * Math.max(columns, 1) : 0);
+					}
+				})
+				.recordStats()
+				.build();
+	}
+
+	/**
+	 * Returns the result of the question's stored answer, running it only if it is not cached.
+	 *
+	 * @param tutorialName	the name of the tutorial the question belongs to
+	 * @param adminCode		the admin code of the tutorial
+	 * @param question		the question whose answer to run
+	 * @return				the shared result, which must not be modified
+	 * @throws SQLException	if the stored answer fails
+	 */
+	public QueryResult getResult(final String tutorialName, final String adminCode, final QuestionTuple question) throws SQLException {
+		try {
+			return results.get(keyFor(tutorialName, adminCode, question), new Callable<QueryResult>() {
+				@Override
+				public QueryResult call() throws SQLException {
+					return databaseManager.getQueryResult(adminCode + "_" + tutorialName, question.getAnswer(), false);
+				}
+			});
+		} catch (ExecutionException | UncheckedExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof SQLException)
+				throw (SQLException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new RuntimeException(cause);
+		}
+	}
+
+	/**
+	 * Returns the cached result of the question's stored answer,
+	 * or <code>null</code> if it is not cached.
+	 */
+	public QueryResult getCachedResult(String tutorialName, String adminCode, QuestionTuple question) {
+		return results.getIfPresent(keyFor(tutorialName, adminCode, question));
+	}
+
+	/**
+	 * Caches the result of the question's stored answer, computed elsewhere.
+	 */
+	public void putResult(String tutorialName, String adminCode, QuestionTuple question, QueryResult result) {
+		results.put(keyFor(tutorialName, adminCode, question), result);
+	}
+
+	/**
+	 * Returns a comparator for an answer result, creating it only once per result.
+	 *
+	 * @param answer				a result returned by this cache
+	 * @param columnOrderMatters	whether the values of a row must be in the same order
+	 * @param rowOrderMatters		whether the rows must be in the same order
+	 * @return the shared comparator
+	 */
+	public ResultComparator getComparator(QueryResult answer, boolean columnOrderMatters, boolean rowOrderMatters) {
+		final ResultComparator[] byOrder = comparators.getUnchecked(answer);
+		final int index = (columnOrderMatters ? 2 : 0) + (rowOrderMatters ? 1 : 0);
+		synchronized (byOrder) {
+			if (byOrder[index] == null)
+				byOrder[index] = new ResultComparator(answer, columnOrderMatters, rowOrderMatters);
+			return byOrder[index];
+		}
+	}
+
+	private static Key keyFor(String tutorialName, String adminCode, QuestionTuple question) {
+		return new Key(tutorialName, adminCode, question.getOrder(), question.getAnswer());
+	}
+
+	/**
+	 * Discards the cached results of a tutorial's questions.
+	 */
+	public void invalidate(String tutorialName, String adminCode) {
+		int invalidated = 0;
+		for (Iterator<Key> it = results.asMap().keySet().iterator(); it.hasNext(); ) {
+			if (it.next().isOf(tutorialName, adminCode)) {
+				it.remove();
+				++invalidated;
+			}
+		}
+		log.debug("Invalidated {} cached answer results of {} ({}).", invalidated, tutorialName, adminCode);
+	}
+
+	/**
+	 * Discards all cached results.
+	 */
+	public void invalidateAll() {
+		results.invalidateAll();
+	}
+
+	/** Returns the hit, miss and eviction statistics of this cache. */
+	public CacheStats getStats() {
+		return results.stats();
+	}
+
+	/** Returns the approximate number of cached results. */
+	public long size() {
+		return results.size();
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ *   Copyright (c) 2015 Program Analysis Group, Georgia Tech
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package edu.gatech.sqltutor.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import edu.gatech.sqltutor.clustering.QueryNormalizer;
+
+/**
+ * Canonical forms of queries, with those of the stored answers cached.
+ * <p>
+ * Queries are normalized by the {@link QueryNormalizer}, which rewrites boolean
+ * expressions into a normal form, turns greater-than comparisons around and
+ * sorts the operands of commutative operators, so a query whose canonical form
+ * equals the answer's returns the same rows as the answer on every instance.
+ * Queries that cannot be parsed or normalized have no canonical form.
+ * </p><p>
+ * Answers are keyed by their text, so entries never need to be invalidated
+ * when questions change.  The least recently used are evicted once
+ * {@link #MAXIMUM_ANSWERS} is reached.
+ * </p>
+ */
+public class CanonicalQueryCache {
+	private static final Logger log = LoggerFactory.getLogger(CanonicalQueryCache.class);
+
+	/** The maximum number of cached answers. */
+	public static final long MAXIMUM_ANSWERS = 10_000L;
+
+	private final QueryNormalizer normalizer = new QueryNormalizer();
+	private final Cache<String, Optional<String>> answers = CacheBuilder.newBuilder()
+			.maximumSize(MAXIMUM_ANSWERS)
+			.recordStats()
+			.build();
+
+	/**
+	 * Returns the canonical form of a stored answer, normalizing it only if it is not cached.
+	 * @return the canonical form, or <code>null</code> if the answer cannot be normalized
+	 */
+	public String getCanonicalAnswer(final String answer) {
+		try {
+			return answers.get(answer, new Callable<Optional<String>>() {
+				@Override
+				public Optional<String> call() {
+					return Optional.fromNullable(canonicalize(answer));
+				}
+			}).orNull();
+		} catch (ExecutionException | UncheckedExecutionException e) {
+			log.warn("Could not normalize answer: {}", answer, e.getCause());
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the canonical form of a query.
+	 * @return the canonical form, or <code>null</code> if the query cannot be normalized
+	 */
+	public String canonicalize(String query) {
+		try {
+			return normalizer.normalize(query);
+		} catch (RuntimeException e) {
+			// the parser does not know every dialect, the query is then compared by its result
+			log.debug("Could not normalize query: {}", query, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Returns whether a query is equivalent to a stored answer, by their canonical forms.
+	 * <code>false</code> only means that the equivalence is not known.
+	 */
+	public boolean isEquivalent(String query, String answer) {
+		final String canonicalAnswer = getCanonicalAnswer(answer);
+		return canonicalAnswer != null && canonicalAnswer.equals(canonicalize(query));
+	}
+
+	/** Returns the hit, miss and eviction statistics of the answers. */
+	public CacheStats getStats() {
+		return answers.stats();
+	}
+
+	/** Returns the approximate number of cached answers. */
+	public long size() {
+		return answers.size();
+	}
+}
@@ -0,0 +1,144 @@
+/*
+ *   Copyright (c) 2015 Program Analysis Group, Georgia Tech
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package edu.gatech.sqltutor.util;
+
+import java.sql.SQLException;
+
+import edu.gatech.sqltutor.QueryResult;
+import edu.gatech.sqltutor.ResultComparator;
+import edu.gatech.sqltutor.tuples.QuestionTuple;
+
+/**
+ * Decides whether a student's result matches the stored answer of a question.
+ * <p>
+ * {@link #IN_MEMORY} compares the rows read into the JVM, {@link #IN_DATABASE}
+ * has PostgreSQL compare both queries so that only the rows to show need
+ * to be read.  {@link #choose(QueryResult, long)} picks one by the
+ * estimated size of the results.
+ * </p>
+ */
+public abstract class ComparisonStrategy {
+	public enum Outcome {
+		MATCH, ROW_COUNT_DIFFERS, DATA_DIFFERS
+	}
+
+	/** Results estimated to have more rows than this are compared in the database. */
+	public static final long IN_MEMORY_ROW_LIMIT = 10_000L;
+
+	/** 
+	 * Compares the results read into the JVM by row fingerprints.  Results whose rows were 
+	 * spilled are compared by the fingerprints kept as they were read.
+	 */
+	public static final ComparisonStrategy IN_MEMORY = new ComparisonStrategy() {
+		@Override
+		public int getRowsToRead() {
+			return 0;
+		}
+
+		@Override
+		public Outcome compare(QueryScheduler scheduler, String user, String schema, QuestionTuple question,
+				QueryResult answerResult, String answer, QueryResult queryResult, String query) {
+			final int answerRows = rowCount(answerResult);
+			if (queryResult.isIncomplete() ? queryResult.getOriginalSize() > answerRows : queryResult.getOriginalSize() != answerRows)
+				return Outcome.ROW_COUNT_DIFFERS;
+
+			// compared while reading, if the answer was ready
+			final Boolean matches = queryResult.getMatchesExpected();
+			if (matches != null)
+				return matches ? Outcome.MATCH : Outcome.DATA_DIFFERS;
+
+			final ResultComparator comparator = scheduler.getDatabaseManager().getAnswerResultCache()
+					.getComparator(answerResult, question.isColumnOrderMatters(), question.isRowOrderMatters());
+			final ResultComparator.Fingerprints fingerprints = queryResult.getFingerprints();
+			if (fingerprints != null && fingerprints.isColumnOrderMatters() == question.isColumnOrderMatters())
+				return comparator.matches(fingerprints) ? Outcome.MATCH : Outcome.DATA_DIFFERS;
+			return comparator.matches(queryResult) ? Outcome.MATCH : Outcome.DATA_DIFFERS;
+		}
+	};
+
+	/**
+	 * Compares both queries in PostgreSQL.  Each row is reduced to the text array
+	 * of its values, sorted if column order does not matter and numbered if row
+	 * order matters, and both ways of <code>EXCEPT ALL</code> must be empty.
+	 */
+	public static final ComparisonStrategy IN_DATABASE = new ComparisonStrategy() {
+		@Override
+		public int getRowsToRead() {
+			return DatabaseManager.DIFFERING_ROWS_KEPT;
+		}
+
+		@Override
+		public Outcome compare(QueryScheduler scheduler, String user, String schema, QuestionTuple question,
+				QueryResult answerResult, String answer, QueryResult queryResult, String query) throws SQLException {
+			final String values = question.isColumnOrderMatters()
+					? "ARRAY(SELECT e.value FROM json_each_text(row_to_json(t)) WITH ORDINALITY e ORDER BY e.ordinality)"
+					: "ARRAY(SELECT e.value FROM json_each_text(row_to_json(t)) e ORDER BY e.value)";
+			final String compared = question.isRowOrderMatters() ? "n, r" : "r";
+			// both texts become subqueries: a trailing semicolon would end the statement, 
+			// and a trailing line comment would swallow the closing parenthesis
+			final String sql = "WITH q AS (SELECT row_number() OVER () AS n, " + values + " AS r FROM (" 
+					+ QueryPlanCache.normalize(query) + "\n) t), "
+					+ "a AS (SELECT row_number() OVER () AS n, " + values + " AS r FROM (" 
+					+ QueryPlanCache.normalize(answer) + "\n) t) "
+					+ "SELECT (SELECT count(*) FROM q), (SELECT count(*) FROM a), (SELECT count(*) FROM ("
+					+ "(SELECT " + compared + " FROM q EXCEPT ALL SELECT " + compared + " FROM a) UNION ALL "
+					+ "(SELECT " + compared + " FROM a EXCEPT ALL SELECT " + compared + " FROM q)) d)";
+
+			final QueryResult counts = scheduler.execute(user, schema, sql, false);
+			if (!counts.getValue(0, 0).equals(counts.getValue(0, 1)))
+				return Outcome.ROW_COUNT_DIFFERS;
+			return "0".equals(counts.getValue(0, 2)) ? Outcome.MATCH : Outcome.DATA_DIFFERS;
+		}
+	};
+
+	/**
+	 * Returns the strategy for the given results.  When the answer is known, 
+	 * no estimate is needed: comparing while reading stops once the student's 
+	 * rows outnumber the answer's.
+	 *
+	 * @param answerResult		the answer's result, or <code>null</code> if it is not known yet
+	 * @param estimatedRows		the planner's estimate of the student's rows, or <code>-1</code> if unknown
+	 */
+	public static ComparisonStrategy choose(QueryResult answerResult, long estimatedRows) {
+		if (answerResult != null && answerResult.isTruncated())
+			return IN_DATABASE;
+		final long answerRows = answerResult != null ? answerResult.getOriginalSize() : -1;
+		return Math.max(answerRows, estimatedRows) > IN_MEMORY_ROW_LIMIT ? IN_DATABASE : IN_MEMORY;
+	}
+
+	/** Returns the maximum number of the student's rows to read, or 0 to read them all. */
+	public abstract int getRowsToRead();
+
+	/**
+	 * Compares a student's result to the answer's.  Both have the same number of columns.
+	 *
+	 * @param scheduler		the scheduler to run queries with
+	 * @param user			the student
+	 * @param schema		the schema of the queries
+	 * @param question		the question
+	 * @param answerResult	the answer's result
+	 * @param answer		the answer, as stored
+	 * @param queryResult	the student's result
+	 * @param query			the student's query, as entered
+	 * @throws SQLException if a query fails
+	 */
+	public abstract Outcome compare(QueryScheduler scheduler, String user, String schema, QuestionTuple question,
+			QueryResult answerResult, String answer, QueryResult queryResult, String query) throws SQLException;
+
+	private static int rowCount(QueryResult result) {
+		return result.getData() == null ? 0 : result.getData().size();
+	}
+}
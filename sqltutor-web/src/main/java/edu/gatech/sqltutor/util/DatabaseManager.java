@@ -16,6 +16,7 @@
 package edu.gatech.sqltutor.util;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.Serializable;
@@ -29,23 +30,28 @@ import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 import java.util.TimeZone;
 import java.util.UUID;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 import javax.faces.bean.ApplicationScoped;
 import javax.faces.bean.ManagedBean;
+import javax.faces.context.FacesContext;
 import javax.naming.Context;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
@@ -54,11 +60,16 @@ import javax.sql.DataSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Objects;
 import com.google.common.io.BaseEncoding;
 
+import edu.gatech.sqltutor.AnswerFingerprint;
+import edu.gatech.sqltutor.ColumnarData;
 import edu.gatech.sqltutor.DatabaseTable;
 import edu.gatech.sqltutor.QueryResult;
-import edu.gatech.sqltutor.QueryUtils;
+import edu.gatech.sqltutor.ResultComparator;
+import edu.gatech.sqltutor.RowSpill;
+import edu.gatech.sqltutor.sql.SchemaCatalog;
 import edu.gatech.sqltutor.tuples.QuestionCommentTuple;
 import edu.gatech.sqltutor.tuples.QuestionHardnessTuple;
 import edu.gatech.sqltutor.tuples.QuestionTuple;
@@ -82,6 +93,81 @@ public class DatabaseManager implements Serializable {
 	private DataSource readUserDataSource;
 
 	public static final int QUERY_TIMEOUT_SECONDS = 30;
+	/** The number of rows still read once a result is known to differ from the expected one, so that they can be shown. */
+	public static final int DIFFERING_ROWS_KEPT = 50;
+	/** The context parameter with the number of rows of each table kept in schema snapshots. */
+	public static final String SNAPSHOT_ROWS_PER_TABLE_PARAM = "edu.gatech.sqltutor.SNAPSHOT_ROWS_PER_TABLE";
+	/** The context parameter with the number of rows of each displayed result kept in the heap. */
+	public static final String RESULT_HEAP_ROWS_PARAM = "edu.gatech.sqltutor.RESULT_HEAP_ROWS";
+	public static final int DEFAULT_RESULT_HEAP_ROWS = 1000;
+	/** How long counters read from the logs wait for the rows queued before them to be written. */
+	public static final long LOG_FLUSH_TIMEOUT_MS = 5000L;
+	private static final Pattern PLAN_ROWS_PATTERN = Pattern.compile("\"Plan Rows\":\\s*(\\d+)");
+	private static final Pattern TOTAL_COST_PATTERN = Pattern.compile("\"Total Cost\":\\s*([0-9.]+)");
+	private static final Pattern EXECUTION_TIME_PATTERN = Pattern.compile("\"Execution Time\":\\s*([0-9.]+)");
+	private static final Pattern SHARED_BLOCKS_PATTERN = Pattern.compile("\"Shared (?:Hit|Read) Blocks\":\\s*(\\d+)");
+
+	private transient AnswerResultCache answerResultCache = new AnswerResultCache(this);
+	private transient CanonicalQueryCache canonicalQueryCache = new CanonicalQueryCache();
+	private transient AnswerFingerprintStore answerFingerprintStore = new AnswerFingerprintStore(this);
+	private transient PerformanceBaselineStore performanceBaselineStore = new PerformanceBaselineStore(this);
+	private transient QueryPlanCache queryPlanCache = new QueryPlanCache(this);
+	private transient SchemaSnapshotCache schemaSnapshotCache = new SchemaSnapshotCache(this);
+	private transient StudentProgressStore studentProgressStore = new StudentProgressStore(this);
+	private transient HardnessAnalytics hardnessAnalytics = new HardnessAnalytics(this);
+	/** Table metadata of the developers' public schema and of the tutorial schemas. */
+	private transient SchemaCatalog devSchemaCatalog, schemaCatalog;
+	private transient LogWriter logWriter = new LogWriter(this, 
+			new File(System.getProperty("java.io.tmpdir"), "sqltutor-log-spill"));
+	/** The directory of the rows of displayed results that are not kept in the heap. */
+	private transient File resultSpillDirectory = new File(System.getProperty("java.io.tmpdir"), "sqltutor-result-spill");
+	private int resultHeapRows = DEFAULT_RESULT_HEAP_ROWS;
+
+	/**
+	 * How to keep the rows of a result that is shown a page at a time, see
+	 * {@link DatabaseManager#readQueryResult(String, Statement, ResultComparator, int, Paging)}.
+	 */
+	public static final class Paging {
+		private final int heapRows;
+		private final boolean fingerprinted;
+		private final boolean columnOrderMatters;
+
+		/**
+		 * @param heapRows	the number of rows kept in the heap, the rest are spilled
+		 */
+		public Paging(int heapRows) {
+			this(heapRows, false, false);
+		}
+
+		/**
+		 * @param heapRows				the number of rows kept in the heap, the rest are spilled
+		 * @param columnOrderMatters	whether column order matters when the result is compared 
+		 * 								to an expected result that is not known yet
+		 */
+		public Paging(int heapRows, boolean columnOrderMatters) {
+			this(heapRows, true, columnOrderMatters);
+		}
+
+		private Paging(int heapRows, boolean fingerprinted, boolean columnOrderMatters) {
+			this.heapRows = heapRows;
+			this.fingerprinted = fingerprinted;
+			this.columnOrderMatters = columnOrderMatters;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) return true;
+			if (!(obj instanceof Paging)) return false;
+			final Paging that = (Paging) obj;
+			return heapRows == that.heapRows && fingerprinted == that.fingerprinted 
+					&& columnOrderMatters == that.columnOrderMatters;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hashCode(heapRows, fingerprinted, columnOrderMatters);
+		}
+	}
 
 	public DatabaseManager() {
 	}
@@ -106,6 +192,48 @@ public class DatabaseManager implements Serializable {
 		} catch( ClassCastException e ) {
 			e.printStackTrace();
 		}
+		if (dataSource != null)
+			devSchemaCatalog = new SchemaCatalog(dataSource);
+		if (userDataSource != null)
+			schemaCatalog = new SchemaCatalog(userDataSource);
+
+		final FacesContext facesContext = FacesContext.getCurrentInstance();
+		final String rowsPerTable = facesContext != null 
+				? facesContext.getExternalContext().getInitParameter(SNAPSHOT_ROWS_PER_TABLE_PARAM) : null;
+		if (rowsPerTable != null)
+			schemaSnapshotCache.setRowsPerTable(Integer.parseInt(rowsPerTable.trim()));
+		final String heapRows = facesContext != null 
+				? facesContext.getExternalContext().getInitParameter(RESULT_HEAP_ROWS_PARAM) : null;
+		if (heapRows != null)
+			resultHeapRows = Integer.parseInt(heapRows.trim());
+		deleteResultSpills();
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		logWriter.close();
+		answerFingerprintStore.shutdown();
+		performanceBaselineStore.shutdown();
+		deleteResultSpills();
+	}
+
+	/**
+	 * Returns the number of rows of a displayed result kept in the heap, beyond
+	 * which they are spilled, see {@link #RESULT_HEAP_ROWS_PARAM}.
+	 */
+	public int getResultHeapRows() {
+		return resultHeapRows;
+	}
+
+	/** Deletes the spilled rows of all results, which are no longer shown after a restart. */
+	private void deleteResultSpills() {
+		final File[] files = resultSpillDirectory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.getName().endsWith(RowSpill.SUFFIX) && !file.delete())
+					log.warn("Could not delete result spill file {}.", file);
+			}
+		}
 	}
 
 	public boolean isAdmin(String email) throws SQLException {
@@ -129,8 +257,8 @@ public class DatabaseManager implements Serializable {
 		try (final Connection connection = dataSource.getConnection()) {
 			
 			try (final PreparedStatement preparedStatement = connection.prepareStatement("SELECT visible_to_users, in_order_questions, "
-					+ "link, open_access, close_access, max_question_attempts, admin_code, schema FROM schema_options WHERE schema = ? "
-					+ "AND admin_code = ?")) {
+					+ "link, open_access, close_access, max_question_attempts, max_query_cost, max_query_rows, admin_code, schema FROM schema_options "
+					+ "WHERE schema = ? AND admin_code = ?")) {
 				preparedStatement.setString(1, tutorialName);
 				preparedStatement.setString(2, tutorialAdminCode);
 
@@ -138,7 +266,8 @@ public class DatabaseManager implements Serializable {
 					if (resultSet.next()) {
 						final Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("EST"));
 						options = new TutorialOptionsTuple(resultSet.getBoolean(1), resultSet.getBoolean(2), resultSet.getString(3),
-								resultSet.getTimestamp(4, cal), resultSet.getTimestamp(5, cal), resultSet.getInt(6), resultSet.getString(7), resultSet.getString(8));
+								resultSet.getTimestamp(4, cal), resultSet.getTimestamp(5, cal), resultSet.getInt(6), resultSet.getDouble(7), resultSet.getLong(8),
+								resultSet.getString(9), resultSet.getString(10));
 					}
 				}
 			}
@@ -170,7 +299,14 @@ public class DatabaseManager implements Serializable {
 				preparedStatement.setString(2, tutorialAdminCode);
 				preparedStatement.executeUpdate();
 			}
-		} 
+		} finally {
+			answerResultCache.invalidate(tutorialName, tutorialAdminCode);
+			studentProgressStore.invalidate(tutorialName, tutorialAdminCode);
+			hardnessAnalytics.invalidate(tutorialName, tutorialAdminCode);
+			answerFingerprintStore.invalidate(tutorialName, tutorialAdminCode);
+			performanceBaselineStore.invalidate(tutorialName, tutorialAdminCode);
+			schemaChanged(tutorial);
+		}
 	}
 
 	public boolean checkTutorialPermissions(String tutorialName, String tutorialAdminCode) throws SQLException {
@@ -207,6 +343,9 @@ public class DatabaseManager implements Serializable {
 				preparedStatement.setString(9, tutorialAdminCode);
 				preparedStatement.executeUpdate();
 			}
+		} finally {
+			answerResultCache.invalidate(tutorialName, tutorialAdminCode);
+			hardnessAnalytics.invalidate(tutorialName, tutorialAdminCode);
 		}
 	}
 
@@ -290,7 +429,8 @@ public class DatabaseManager implements Serializable {
 		try (final Connection connection = dataSource.getConnection()) {
 			
 			try (final PreparedStatement preparedStatement = connection.prepareStatement("UPDATE schema_options SET visible_to_users = ?, in_order_questions = ?, "
-					+ "open_access = ?, close_access = ?, link = ?, max_question_attempts = ? WHERE schema = ? AND admin_code = ?;")) {
+					+ "open_access = ?, close_access = ?, link = ?, max_question_attempts = ?, max_query_cost = ?, max_query_rows = ? "
+					+ "WHERE schema = ? AND admin_code = ?;")) {
 				preparedStatement.setBoolean(1, options.isVisibleToUsers());
 				preparedStatement.setBoolean(2, options.isInOrderQuestions());
 				final Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("EST"));
@@ -298,8 +438,10 @@ public class DatabaseManager implements Serializable {
 				preparedStatement.setTimestamp(4, options.getCloseAccess(), cal);
 				preparedStatement.setString(5, options.getLink());
 				preparedStatement.setInt(6, options.getMaxQuestionAttempts());
-				preparedStatement.setString(7, tutorialName);
-				preparedStatement.setString(8, tutorialAdminCode);
+				preparedStatement.setDouble(7, options.getMaxQueryCost());
+				preparedStatement.setLong(8, options.getMaxQueryRows());
+				preparedStatement.setString(9, tutorialName);
+				preparedStatement.setString(10, tutorialAdminCode);
 				preparedStatement.executeUpdate();
 			}
 		} 
@@ -345,7 +487,13 @@ public class DatabaseManager implements Serializable {
 				statement.addBatch("GRANT USAGE ON SCHEMA " + modifiedSchemaName + " TO readonly_user;");
 				statement.executeBatch();
 			}
-		} 
+		} finally {
+			// a replaced schema may hold different data for the same answers, and 
+			// anything read while the script ran may be stale
+			answerFingerprintStore.invalidate(schemaName, tutorialAdminCode);
+			performanceBaselineStore.invalidate(schemaName, tutorialAdminCode);
+			schemaChanged(tutorialAdminCode + "_" + schemaName);
+		}
 		
 		try (final Connection connection = dataSource.getConnection()) {
 
@@ -359,6 +507,75 @@ public class DatabaseManager implements Serializable {
 		return tutorialAdminCode + "_" + schemaName;
 	}
 
+	/**
+	 * Returns the answer results shared by all sessions.
+	 */
+	public AnswerResultCache getAnswerResultCache() {
+		return answerResultCache;
+	}
+
+	/**
+	 * Returns the canonical forms of the stored answers, shared by all sessions.
+	 */
+	public CanonicalQueryCache getCanonicalQueryCache() {
+		return canonicalQueryCache;
+	}
+
+	/**
+	 * Returns the fingerprints of the stored answers.
+	 */
+	public AnswerFingerprintStore getAnswerFingerprintStore() {
+		return answerFingerprintStore;
+	}
+
+	/**
+	 * Returns the execution baselines of the stored answers.
+	 */
+	public PerformanceBaselineStore getPerformanceBaselineStore() {
+		return performanceBaselineStore;
+	}
+
+	/**
+	 * Returns the planner's estimates for students' queries.
+	 */
+	public QueryPlanCache getQueryPlanCache() {
+		return queryPlanCache;
+	}
+
+	public SchemaSnapshotCache getSchemaSnapshotCache() {
+		return schemaSnapshotCache;
+	}
+
+	/**
+	 * Returns the attempt counters of the students, shared by all sessions.
+	 */
+	public StudentProgressStore getStudentProgressStore() {
+		return studentProgressStore;
+	}
+
+	/**
+	 * Returns the question hardness counters, shared by all sessions.
+	 */
+	public HardnessAnalytics getHardnessAnalytics() {
+		return hardnessAnalytics;
+	}
+
+	/**
+	 * Discards the cached tables, data and answer results of a tutorial schema, 
+	 * after it was created, dropped or altered.
+	 * @param schema the schema, named by the tutorial's admin code and name
+	 */
+	public void schemaChanged(String schema) {
+		if (schemaCatalog != null)
+			schemaCatalog.invalidate(schema);
+		schemaSnapshotCache.invalidate(schema);
+		queryPlanCache.invalidate(schema);
+		// the answers were run against the old data
+		final String[] split = schema.split("_", 2);
+		if (split.length == 2)
+			answerResultCache.invalidate(split[1], split[0]);
+	}
+
 	public DataSource getDataSource() {
 		return dataSource;
 	}
@@ -395,7 +612,11 @@ public class DatabaseManager implements Serializable {
 				statement.addBatch("UPDATE schema_questions SET \"order\" = (\"order\" * -1) WHERE \"order\" < 0;");
 				statement.executeBatch();
 			}
-		} 
+		} finally {
+			// the questions do not say which tutorial they belong to
+			answerResultCache.invalidateAll();
+			hardnessAnalytics.invalidateAll();
+		}
 	}
 
 	public void deleteQuestions(String schema, String schemaAdminCode, List<QuestionTuple> questions) throws SQLException {
@@ -410,6 +631,13 @@ public class DatabaseManager implements Serializable {
 				}
 				preparedStatement.executeBatch();
 			}
+		} finally {
+			answerResultCache.invalidate(schema, schemaAdminCode);
+			final List<Integer> orders = new ArrayList<Integer>(questions.size());
+			for (QuestionTuple question : questions)
+				orders.add(question.getOrder());
+			studentProgressStore.removeQuestions(schema, schemaAdminCode, orders);
+			hardnessAnalytics.invalidate(schema, schemaAdminCode);
 		}
 	}
 
@@ -525,75 +753,55 @@ public class DatabaseManager implements Serializable {
 		return emailExists;
 	}
 	
-	public HashMap<String, QueryResult> getAllData(String schemaName) throws SQLException {
-		return getAllData(schemaName, getSchemaTableNames(schemaName));
+	/**
+	 * Returns the rows of each table of a schema, by table name, from the schema's snapshot.
+	 * @see SchemaSnapshotCache
+	 */
+	public Map<String, QueryResult> getAllData(String schemaName) throws SQLException {
+		return schemaSnapshotCache.getSnapshot(schemaName).getTableData();
 	}
-	
-	public HashMap<String, QueryResult> getAllData(String schemaName, List<String> tables) throws SQLException {
-		HashMap<String, QueryResult> allData = null;
+
+	/**
+	 * Reads the tables of a schema and at most <code>rowsPerTable</code> rows of each.
+	 */
+	SchemaSnapshotCache.Snapshot readSnapshot(String schemaName, long version, int rowsPerTable) throws SQLException {
 		try (final Connection connection = userDataSource.getConnection()) {
-			
+			final List<DatabaseTable> tables = schemaCatalog.getTables(schemaName);
+			final Map<String, QueryResult> allData = new HashMap<String, QueryResult>();
 			try (final Statement statement = connection.createStatement()) {
 				statement.execute("SET search_path TO '" + schemaName + "'");
-	
-				if (tables != null && tables.size() > 0)
-					allData = new HashMap<String, QueryResult>();
-				for (String tableName : tables) {
-					List<String> columnNames = null;
-					List<List<String>> queryData = null;
-					
-					try (ResultSet resultSet = statement.executeQuery("SELECT * FROM \"" + tableName + "\";")) {
-						// get column names
-						columnNames = new LinkedList<String>();
-						final ResultSetMetaData resultSetMetaData = resultSet.getMetaData();
-						final int columnCount = resultSetMetaData.getColumnCount();
-						for (int i = 1; i <=  columnCount; i++) {
-							columnNames.add(resultSetMetaData.getColumnName(i));
-						}
-						// get query data
-						if (resultSet.isBeforeFirst()) 
-							queryData = new LinkedList<List<String>>();
-						while (resultSet.next()) {
-							final List<String> rowData = new LinkedList<String>();
-							for (int i = 1; i <= columnCount; i++) {
-								rowData.add(resultSet.getString(i));
-							}
-							queryData.add(rowData);
-						}
+				// one more row tells whether there were more
+				statement.setMaxRows(rowsPerTable + 1);
+				for (DatabaseTable table : tables) {
+					try (ResultSet resultSet = statement.executeQuery("SELECT * FROM \"" + table.getTableName() + "\";")) {
+						allData.put(table.getTableName(), readTable(resultSet, rowsPerTable));
 					} 
-					allData.put(tableName, new QueryResult(columnNames, queryData));
 				}
 			}
+			return new SchemaSnapshotCache.Snapshot(version, tables, allData);
 		}
-		return allData;
 	}
 	
 	public List<DatabaseTable> getDevSchemaTables() throws SQLException {
-		try (final Connection connection = dataSource.getConnection()) {
-			return QueryUtils.readTableInfo(connection.getMetaData(), "public");
-		}
+		return devSchemaCatalog.getTables("public");
 	}
 	
+	/**
+	 * Returns the tables of a schema from the schema's snapshot.
+	 * @see SchemaSnapshotCache
+	 */
 	public List<DatabaseTable> getSchemaTables(String schema) throws SQLException {
-		try (Connection connection = userDataSource.getConnection()) {
-			return QueryUtils.readTableInfo(connection.getMetaData(), schema);
-		}
+		return schemaSnapshotCache.getSnapshot(schema).getTables();
 	}
 	
 	public List<String> getSchemaTableNames(String schema) throws SQLException {
-		try (Connection connection = userDataSource.getConnection()) {
-			final List<DatabaseTable> databaseTables = QueryUtils.readTableInfo(connection.getMetaData(), schema);
-			final List<String> tableNames = new ArrayList<String>(databaseTables.size());
-			for (DatabaseTable t : databaseTables) 
-				tableNames.add(t.getTableName());
-			return tableNames;
-		}
+		return schemaCatalog.getTableNames(schema);
 	}
 
 	public HashMap<String, QueryResult> getAllDevData() throws SQLException {
 		HashMap<String, QueryResult> allData = null;
 		try (final Connection connection = dataSource.getConnection()) {
-			final List<DatabaseTable> devTables = QueryUtils.readTableInfo(connection.getMetaData(), "public");
+			final List<DatabaseTable> devTables = devSchemaCatalog.getTables("public");
 			List<String> tables = new LinkedList<String>();
 			for(DatabaseTable dt : devTables)
 				tables.add(dt.getTableName());
@@ -605,29 +813,9 @@ public class DatabaseManager implements Serializable {
 				}
 
 				for(String tableName : tables) {
-					List<String> columnNames = null;
-					List<List<String>> queryData = null;
-						
 					try (ResultSet resultSet = statement.executeQuery("SELECT * FROM \"" + tableName + "\";")) {
-						// get column names
-						columnNames = new LinkedList<String>();
-						final ResultSetMetaData resultSetMetaData = resultSet.getMetaData();
-						final int columnCount = resultSetMetaData.getColumnCount();
-						for(int i = 1; i <=  columnCount; i++) {
-							columnNames.add(resultSetMetaData.getColumnName(i));
-						}
-						// get query data
-						if (resultSet.isBeforeFirst()) 
-							queryData = new LinkedList<List<String>>();
-						while(resultSet.next()) {
-							final List<String> rowData = new LinkedList<String>();
-							for (int i = 1; i <= columnCount; i++) {
-								rowData.add(resultSet.getString(i));
-							}
-							queryData.add(rowData);
-						}
+						allData.put(tableName, readTable(resultSet));
 					} 
-					allData.put(tableName, new QueryResult(columnNames, queryData));
 				}
 			}
 		} 
@@ -635,27 +823,100 @@ public class DatabaseManager implements Serializable {
 	}
 	
 	public QueryResult getQueryResult(String schema, String query, boolean dev) throws SQLException {
+		return getQueryResult(schema, query, dev, null);
+	}
+
+	/**
+	 * Runs a query whose result is shown a page at a time, see 
+	 * {@link #readQueryResult(String, Statement, ResultComparator, int, Paging)}.
+	 * @param paging	how to keep the rows, or <code>null</code> to keep them all in the heap
+	 */
+	public QueryResult getQueryResult(String schema, String query, boolean dev, Paging paging) throws SQLException {
 		QueryResult queryResult = null;
 		try (final Connection connection = dev ? userDataSource.getConnection() : readUserDataSource.getConnection()) {
 			
 				try (final Statement statement = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
-					queryResult = getQueryResult(schema, query, connection, statement);
+					connection.setAutoCommit(false);
+					setSessionState(schema, statement);
+					queryResult = readQueryResult(query, statement, null, 0, paging);
 				}
 		}
 		return queryResult;
 	}
 	
 	public QueryResult getQueryResult(String schema, String query, Connection connection, Statement statement) throws SQLException {
+		return getQueryResult(schema, query, connection, statement, null);
+	}
+
+	/**
+	 * Runs a query, comparing its rows to an expected result as they are read.  Once the rows are known 
+	 * to differ, at most {@link #DIFFERING_ROWS_KEPT} rows are read and the result is marked incomplete, 
+	 * so that the remaining rows are never fetched.
+	 * @param comparator	the expected result to compare to, or <code>null</code> to read all rows
+	 */
+	public QueryResult getQueryResult(String schema, String query, Connection connection, Statement statement,
+			ResultComparator comparator) throws SQLException {
+		return getQueryResult(schema, query, connection, statement, comparator, 0);
+	}
+
+	/**
+	 * Runs a query, reading at most <code>maxRows</code> rows.  If there are more, the result is marked 
+	 * incomplete.
+	 * @param comparator	the expected result to compare to, or <code>null</code> to read all rows
+	 * @param maxRows		the maximum number of rows to read, or 0 for no maximum
+	 * @see #getQueryResult(String, String, Connection, Statement, ResultComparator)
+	 */
+	public QueryResult getQueryResult(String schema, String query, Connection connection, Statement statement,
+			ResultComparator comparator, int maxRows) throws SQLException {
+		connection.setAutoCommit(false);
+		setSessionState(schema, statement);
+		return readQueryResult(query, statement, comparator, maxRows);
+	}
+
+	/**
+	 * Sets the schema and the statement timeout of a connection's session, in one round trip.
+	 */
+	public static void setSessionState(String schema, Statement statement) throws SQLException {
+		statement.execute("SET search_path TO '" + schema + "'; SET statement_timeout TO " + (QUERY_TIMEOUT_SECONDS * 1000));
+	}
+
+	/**
+	 * Sets the schema and the statement timeout for the current transaction only, so that a 
+	 * connection borrowed from a shared pool is returned unchanged.
+	 */
+	public static void setLocalSessionState(String schema, Statement statement) throws SQLException {
+		statement.execute("SET LOCAL search_path TO '" + schema + "'; SET LOCAL statement_timeout TO " + (QUERY_TIMEOUT_SECONDS * 1000));
+	}
+
+	/**
+	 * Runs a query on a connection whose session state is already set, see 
+	 * {@link #setSessionState(String, Statement)}.
+	 * @see #getQueryResult(String, String, Connection, Statement, ResultComparator, int)
+	 */
+	public QueryResult readQueryResult(String query, Statement statement, ResultComparator comparator, int maxRows) 
+			throws SQLException {
+		return readQueryResult(query, statement, comparator, maxRows, null);
+	}
+
+	/**
+	 * Runs a query whose result is shown a page at a time.  Only the first rows are kept in the heap, 
+	 * the others are spilled to a file, see {@link QueryResult#getSpill()}.  Unless the result is 
+	 * compared as it is read, the fingerprints of its rows are kept to compare it later, see 
+	 * {@link QueryResult#getFingerprints()}.
+	 * @param paging	how to keep the rows, or <code>null</code> to keep them all in the heap
+	 * @see #readQueryResult(String, Statement, ResultComparator, int)
+	 */
+	public QueryResult readQueryResult(String query, Statement statement, ResultComparator comparator, int maxRows,
+			Paging paging) throws SQLException {
 		QueryResult queryResult = null;
+		RowSpill spill = null;
 		
-		connection.setAutoCommit(false);
-			
 		statement.setFetchSize(1000);
-		statement.execute("SET search_path TO '" + schema + "'");
-		statement.execute("SET statement_timeout TO " + (QUERY_TIMEOUT_SECONDS * 1000));
+		// one more row tells whether there were more
+		if (maxRows > 0)
+			statement.setMaxRows(maxRows + 1);
 		
-		System.out.println("SET search_path TO '" + schema + "'");
-		System.out.println(query);
+		log.debug("Running query: {}", query);
 			
 		final long queryStart = System.currentTimeMillis();
 		try (final ResultSet resultSet = statement.executeQuery(query)) {
@@ -663,18 +924,17 @@ public class DatabaseManager implements Serializable {
 			queryResult = new QueryResult();
 			queryResult.setExecutionTime(queryEnd - queryStart);
 			// get column names
-			List<String> columnNames = new LinkedList<String>();
 			final ResultSetMetaData resultSetMetaData = resultSet.getMetaData();
 			final int columnCount = resultSetMetaData.getColumnCount();
-			for(int i = 1; i <=  columnCount; i++) {
-				columnNames.add(resultSetMetaData.getColumnName(i));
-			}
-			queryResult.setColumns(columnNames);
+			queryResult.setColumns(getColumnNames(resultSetMetaData));
 			// get query data
 			int rows = 0;
-			List<List<String>> queryData = null;
-			if (resultSet.isBeforeFirst())
-				queryData = new LinkedList<List<String>>();
+			final boolean hasRows = resultSet.isBeforeFirst();
+			final ColumnarData.Builder queryData = ColumnarData.builder(getColumnTypes(resultSetMetaData));
+			final String[] rowData = new String[columnCount];
+			final ResultComparator.Comparison comparison = comparator != null ? comparator.compare(columnCount) : null;
+			final ResultComparator.Fingerprints fingerprints = paging != null && paging.fingerprinted && comparator == null 
+					? new ResultComparator.Fingerprints(paging.columnOrderMatters, columnCount) : null;
 			while (resultSet.next()) {
 				// stop reading rows from the driver at all when the limit is reached
 				if (rows >= QueryResult.QUERY_READ_LIMIT) {
@@ -682,19 +942,47 @@ public class DatabaseManager implements Serializable {
 					queryResult.setReadLimitExceeded(true);
 					break;
 				}
+				// or once the rows are known to differ and enough have been read to show them
+				if (comparison != null && comparison.isDifferent() && rows >= DIFFERING_ROWS_KEPT 
+						|| maxRows > 0 && rows >= maxRows) {
+					queryResult.setIncomplete(true);
+					break;
+				}
 
 				++rows;
 
 				// stop adding to the QueryResult after a certain number of rows
 				if (rows <= QueryResult.QUERY_SIZE_LIMIT) {
-					List<String> rowData = new LinkedList<String>();
 					for (int i = 1; i <= columnCount; i++) {
-						rowData.add(resultSet.getString(i));
+						rowData[i - 1] = resultSet.getString(i);
+					}
+					if (paging == null || rows <= paging.heapRows) {
+						queryData.addRow(rowData);
+					} else {
+						if (spill == null)
+							spill = new RowSpill(resultSpillDirectory, columnCount);
+						spill.addRow(rowData);
+					}
+					if (comparison != null)
+						comparison.addRow(rowData);
+					if (fingerprints != null)
+						fingerprints.addRow(rowData);
+				} else if (comparison != null && !comparison.isDifferent()) {
+					for (int i = 1; i <= columnCount; i++) {
+						rowData[i - 1] = resultSet.getString(i);
 					}
-					queryData.add(rowData);
+					comparison.addRow(rowData);
 				}
 			}
-			queryResult.setData(queryData);
+			queryResult.setColumnarData(hasRows ? queryData.build() : null);
+			if (comparison != null)
+				queryResult.setMatchesExpected(comparison.isMatch());
+			queryResult.setFingerprints(fingerprints);
+			if (spill != null) {
+				spill.finish();
+				queryResult.setSpill(spill);
+				spill = null;
+			}
 			
 			if (rows > QueryResult.QUERY_SIZE_LIMIT)
 				queryResult.setTruncated(true);
@@ -702,11 +990,398 @@ public class DatabaseManager implements Serializable {
 			queryResult.setOriginalSize(rows);
 			
 			queryResult.setTotalTime(System.currentTimeMillis() - queryStart);
+		} catch (IOException e) {
+			throw new SQLException("Could not spill the rows of the result.", e);
+		} finally {
+			// only when reading failed
+			if (spill != null)
+				spill.release();
+		}
+		return queryResult;
+	}
+
+	/**
+	 * Runs a stored answer and returns the fingerprint of its result, without keeping its rows.
+	 * @param schema				the tutorial schema
+	 * @param answer				the answer
+	 * @param columnOrderMatters	whether the row fingerprints depend on the order of the values
+	 * @return the fingerprint, or <code>null</code> if the answer has more than {@link QueryResult#QUERY_READ_LIMIT} rows
+	 * @throws SQLException if the answer fails
+	 */
+	public AnswerFingerprint computeAnswerFingerprint(String schema, String answer, boolean columnOrderMatters) 
+			throws SQLException {
+		try (final Connection connection = userDataSource.getConnection()) {
+			connection.setAutoCommit(false);
+			try (final Statement statement = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+				setLocalSessionState(schema, statement);
+				statement.setFetchSize(1000);
+
+				final long queryStart = System.currentTimeMillis();
+				try (final ResultSet resultSet = statement.executeQuery(answer)) {
+					final long executionTime = System.currentTimeMillis() - queryStart;
+					final ResultSetMetaData resultSetMetaData = resultSet.getMetaData();
+					final int columnCount = resultSetMetaData.getColumnCount();
+					final List<String> columnTypes = new ArrayList<String>(columnCount);
+					for (int i = 1; i <= columnCount; i++)
+						columnTypes.add(resultSetMetaData.getColumnTypeName(i));
+
+					final ResultComparator.Fingerprints fingerprints = new ResultComparator.Fingerprints(columnOrderMatters, columnCount);
+					final String[] rowData = new String[columnCount];
+					while (resultSet.next()) {
+						if (fingerprints.getRowCount() >= QueryResult.QUERY_READ_LIMIT)
+							return null;
+						for (int i = 1; i <= columnCount; i++)
+							rowData[i - 1] = resultSet.getString(i);
+						fingerprints.addRow(rowData);
+					}
+					return new AnswerFingerprint(getColumnNames(resultSetMetaData), columnTypes, fingerprints, executionTime);
+				}
+			} finally {
+				connection.rollback();
+				connection.setAutoCommit(true);
+			}
+		}
+	}
+
+	/**
+	 * Returns the stored fingerprint of an answer, or <code>null</code> if there is none.
+	 */
+	public AnswerFingerprint readAnswerFingerprint(String tutorialName, String tutorialAdminCode, String answer, 
+			boolean columnOrderMatters) throws SQLException {
+		try (final Connection connection = dataSource.getConnection();
+				final PreparedStatement preparedStatement = connection.prepareStatement(
+					"SELECT columns, column_types, row_count, ordered_digest, unordered_digest, execution_time "
+					+ "FROM schema_questions_fingerprint WHERE schema = ? AND admin_code = ? AND md5(answer) = md5(?) "
+					+ "AND answer = ? AND column_order_matters = ?")) {
+			preparedStatement.setString(1, tutorialName);
+			preparedStatement.setString(2, tutorialAdminCode);
+			preparedStatement.setString(3, answer);
+			preparedStatement.setString(4, answer);
+			preparedStatement.setBoolean(5, columnOrderMatters);
+			try (final ResultSet resultSet = preparedStatement.executeQuery()) {
+				if (!resultSet.next())
+					return null;
+				return new AnswerFingerprint(Arrays.asList((String[]) resultSet.getArray(1).getArray()), 
+						Arrays.asList((String[]) resultSet.getArray(2).getArray()), resultSet.getInt(3), columnOrderMatters, 
+						resultSet.getBytes(4), resultSet.getBytes(5), resultSet.getLong(6));
+			}
+		}
+	}
+
+	/**
+	 * Stores the fingerprint of an answer, replacing any previous one.
+	 */
+	public void writeAnswerFingerprint(String tutorialName, String tutorialAdminCode, String answer, 
+			AnswerFingerprint fingerprint) throws SQLException {
+		try (final Connection connection = dataSource.getConnection()) {
+			connection.setAutoCommit(false);
+			try (final PreparedStatement delete = connection.prepareStatement(
+						"DELETE FROM schema_questions_fingerprint WHERE schema = ? AND admin_code = ? AND md5(answer) = md5(?) "
+						+ "AND answer = ? AND column_order_matters = ?");
+					final PreparedStatement insert = connection.prepareStatement(
+						"INSERT INTO schema_questions_fingerprint (schema, admin_code, answer, column_order_matters, columns, "
+						+ "column_types, row_count, ordered_digest, unordered_digest, execution_time) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)")) {
+				delete.setString(1, tutorialName);
+				delete.setString(2, tutorialAdminCode);
+				delete.setString(3, answer);
+				delete.setString(4, answer);
+				delete.setBoolean(5, fingerprint.isColumnOrderMatters());
+				delete.executeUpdate();
+
+				final List<String> columns = fingerprint.getColumns(), columnTypes = fingerprint.getColumnTypes();
+				insert.setString(1, tutorialName);
+				insert.setString(2, tutorialAdminCode);
+				insert.setString(3, answer);
+				insert.setBoolean(4, fingerprint.isColumnOrderMatters());
+				insert.setArray(5, connection.createArrayOf("text", columns.toArray(new String[columns.size()])));
+				insert.setArray(6, connection.createArrayOf("text", columnTypes.toArray(new String[columnTypes.size()])));
+				insert.setInt(7, fingerprint.getRowCount());
+				insert.setBytes(8, fingerprint.getOrderedDigest());
+				insert.setBytes(9, fingerprint.getUnorderedDigest());
+				insert.setLong(10, fingerprint.getExecutionTime());
+				insert.executeUpdate();
+				connection.commit();
+			} catch (SQLException e) {
+				connection.rollback();
+				throw e;
+			} finally {
+				connection.setAutoCommit(true);
+			}
+		}
+	}
+
+	/**
+	 * Deletes the stored fingerprints of a tutorial's answers.
+	 */
+	public void deleteAnswerFingerprints(String tutorialName, String tutorialAdminCode) throws SQLException {
+		try (final Connection connection = dataSource.getConnection();
+				final PreparedStatement preparedStatement = connection.prepareStatement(
+					"DELETE FROM schema_questions_fingerprint WHERE schema = ? AND admin_code = ?")) {
+			preparedStatement.setString(1, tutorialName);
+			preparedStatement.setString(2, tutorialAdminCode);
+			preparedStatement.executeUpdate();
+		}
+	}
+
+	/**
+	 * Returns the planner's estimate of the number of rows a query returns, without running it.
+	 * @return the estimate, or <code>-1</code> if it is unknown
+	 * @throws SQLException if the query cannot be planned
+	 * @see QueryPlanCache
+	 */
+	public long estimateRows(String schema, String query) throws SQLException {
+		return queryPlanCache.getEstimate(schema, query).getRows();
+	}
+
+	/**
+	 * Returns the planner's total cost of a query, without running it.
+	 * @return the cost, or <code>-1</code> if it is unknown
+	 * @throws SQLException if the query cannot be planned
+	 * @see QueryPlanCache
+	 */
+	public double estimateCost(String schema, String query) throws SQLException {
+		return queryPlanCache.getEstimate(schema, query).getTotalCost();
+	}
+
+	/**
+	 * Checks the planner's estimates for a student's query against its tutorial's budget, 
+	 * so that a query that would run until the statement timeout is not run at all.  
+	 * Queries that cannot be planned pass, their error is reported when they are run.
+	 * @param options	the tutorial's options, with the maximum cost and rows
+	 * @throws QueryBudgetExceededException if the query exceeds the budget
+	 */
+	public void checkQueryBudget(String schema, String query, TutorialOptionsTuple options) throws QueryBudgetExceededException {
+		if (options == null || options.getMaxQueryCost() <= 0 && options.getMaxQueryRows() <= 0)
+			return;
+		final QueryPlanCache.Estimate estimate;
+		try {
+			estimate = queryPlanCache.getEstimate(schema, query);
+		} catch (SQLException e) {
+			return;
+		}
+		if (estimate.exceeds(options.getMaxQueryCost(), options.getMaxQueryRows()))
+			throw new QueryBudgetExceededException(estimate, options.getMaxQueryCost(), options.getMaxQueryRows());
+	}
+
+	/**
+	 * Plans a query with <code>EXPLAIN</code>, without running it or caching its plan.
+	 * @throws SQLException if the query cannot be planned
+	 */
+	public QueryPlanCache.Estimate explain(String schema, String query) throws SQLException {
+		try (final Connection connection = readUserDataSource.getConnection()) {
+			connection.setAutoCommit(false);
+			try (final Statement statement = connection.createStatement()) {
+				setLocalSessionState(schema, statement);
+				try (final ResultSet resultSet = statement.executeQuery("EXPLAIN (FORMAT JSON) " + query)) {
+					final String plan = resultSet.next() ? resultSet.getString(1) : "";
+					// the first rows and cost are the top node's
+					final Matcher rows = PLAN_ROWS_PATTERN.matcher(plan);
+					final Matcher cost = TOTAL_COST_PATTERN.matcher(plan);
+					return new QueryPlanCache.Estimate(rows.find() ? Long.parseLong(rows.group(1)) : -1, 
+							cost.find() ? Double.parseDouble(cost.group(1)) : -1);
+				}
+			} finally {
+				connection.rollback();
+				connection.setAutoCommit(true);
+			}
+		}
+	}
+
+	/**
+	 * Measures the performance of a stored answer.  The answer is run several times, each 
+	 * timed the way students' queries are, until its first rows are returned, and then 
+	 * once under <code>EXPLAIN (ANALYZE, BUFFERS)</code>.
+	 * @param schema	the tutorial schema
+	 * @param answer	the answer
+	 * @param runs		the number of timed runs
+	 * @throws SQLException if the answer fails
+	 */
+	public PerformanceBaselineStore.Baseline measurePerformanceBaseline(String schema, String answer, int runs) 
+			throws SQLException {
+		final long[] executionTimes = new long[runs];
+		final String plan;
+		try (final Connection connection = readUserDataSource.getConnection()) {
+			connection.setAutoCommit(false);
+			try (final Statement statement = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+				setLocalSessionState(schema, statement);
+				statement.setFetchSize(1000);
+				for (int run = 0; run < runs; ++run) {
+					final long queryStart = System.currentTimeMillis();
+					statement.executeQuery(answer).close();
+					executionTimes[run] = System.currentTimeMillis() - queryStart;
+				}
+
+				try (final ResultSet resultSet = statement.executeQuery("EXPLAIN (ANALYZE, BUFFERS, FORMAT JSON) " + answer)) {
+					plan = resultSet.next() ? resultSet.getString(1) : "";
+				}
+			} finally {
+				connection.rollback();
+				connection.setAutoCommit(true);
+			}
+		}
+
+		// the first cost and buffer counts are the top node's, which include its children's
+		final Matcher cost = TOTAL_COST_PATTERN.matcher(plan);
+		final Matcher executionTime = EXECUTION_TIME_PATTERN.matcher(plan);
+		final Matcher sharedBlocks = SHARED_BLOCKS_PATTERN.matcher(plan);
+		long sharedBuffers = 0;
+		for (int i = 0; i < 2 && sharedBlocks.find(); ++i)
+			sharedBuffers += Long.parseLong(sharedBlocks.group(1));
+		Arrays.sort(executionTimes);
+		return new PerformanceBaselineStore.Baseline(runs, executionTimes[runs / 2], 
+				cost.find() ? Double.parseDouble(cost.group(1)) : -1, 
+				executionTime.find() ? Double.parseDouble(executionTime.group(1)) : -1, sharedBuffers);
+	}
+
+	/**
+	 * Returns the stored execution baseline of an answer, or <code>null</code> if there is none.
+	 */
+	public PerformanceBaselineStore.Baseline readPerformanceBaseline(String tutorialName, String tutorialAdminCode, 
+			String answer) throws SQLException {
+		try (final Connection connection = dataSource.getConnection();
+				final PreparedStatement preparedStatement = connection.prepareStatement(
+					"SELECT runs, median_execution_time, total_cost, analyzed_execution_time, shared_buffers "
+					+ "FROM schema_questions_baseline WHERE schema = ? AND admin_code = ? AND md5(answer) = md5(?) AND answer = ?")) {
+			preparedStatement.setString(1, tutorialName);
+			preparedStatement.setString(2, tutorialAdminCode);
+			preparedStatement.setString(3, answer);
+			preparedStatement.setString(4, answer);
+			try (final ResultSet resultSet = preparedStatement.executeQuery()) {
+				if (!resultSet.next())
+					return null;
+				return new PerformanceBaselineStore.Baseline(resultSet.getInt(1), resultSet.getLong(2), resultSet.getDouble(3), 
+						resultSet.getDouble(4), resultSet.getLong(5));
+			}
 		}
+	}
+
+	/**
+	 * Stores the execution baseline of an answer, replacing any previous one.
+	 */
+	public void writePerformanceBaseline(String tutorialName, String tutorialAdminCode, String answer, 
+			PerformanceBaselineStore.Baseline baseline) throws SQLException {
+		try (final Connection connection = dataSource.getConnection()) {
+			connection.setAutoCommit(false);
+			try (final PreparedStatement delete = connection.prepareStatement(
+						"DELETE FROM schema_questions_baseline WHERE schema = ? AND admin_code = ? AND md5(answer) = md5(?) AND answer = ?");
+					final PreparedStatement insert = connection.prepareStatement(
+						"INSERT INTO schema_questions_baseline (schema, admin_code, answer, runs, median_execution_time, "
+						+ "total_cost, analyzed_execution_time, shared_buffers) VALUES (?, ?, ?, ?, ?, ?, ?, ?)")) {
+				delete.setString(1, tutorialName);
+				delete.setString(2, tutorialAdminCode);
+				delete.setString(3, answer);
+				delete.setString(4, answer);
+				delete.executeUpdate();
+
+				insert.setString(1, tutorialName);
+				insert.setString(2, tutorialAdminCode);
+				insert.setString(3, answer);
+				insert.setInt(4, baseline.getRuns());
+				insert.setLong(5, baseline.getMedianExecutionTime());
+				insert.setDouble(6, baseline.getTotalCost());
+				insert.setDouble(7, baseline.getAnalyzedExecutionTime());
+				insert.setLong(8, baseline.getSharedBuffers());
+				insert.executeUpdate();
+				connection.commit();
+			} catch (SQLException e) {
+				connection.rollback();
+				throw e;
+			} finally {
+				connection.setAutoCommit(true);
+			}
+		}
+	}
+
+	/**
+	 * Deletes the stored execution baselines of a tutorial's answers.
+	 */
+	public void deletePerformanceBaselines(String tutorialName, String tutorialAdminCode) throws SQLException {
+		try (final Connection connection = dataSource.getConnection();
+				final PreparedStatement preparedStatement = connection.prepareStatement(
+					"DELETE FROM schema_questions_baseline WHERE schema = ? AND admin_code = ?")) {
+			preparedStatement.setString(1, tutorialName);
+			preparedStatement.setString(2, tutorialAdminCode);
+			preparedStatement.executeUpdate();
+		}
+	}
+
+	/**
+	 * Reads all rows of a result set.  The data is <code>null</code> if there are no rows.
+	 */
+	private static QueryResult readTable(ResultSet resultSet) throws SQLException {
+		return readTable(resultSet, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Reads at most <code>maxRows</code> rows of a result set, marking the result incomplete if there are more.
+	 */
+	private static QueryResult readTable(ResultSet resultSet, int maxRows) throws SQLException {
+		final ResultSetMetaData resultSetMetaData = resultSet.getMetaData();
+		final int columnCount = resultSetMetaData.getColumnCount();
+		final QueryResult queryResult = new QueryResult();
+		queryResult.setColumns(getColumnNames(resultSetMetaData));
+
+		final boolean hasRows = resultSet.isBeforeFirst();
+		final ColumnarData.Builder queryData = ColumnarData.builder(getColumnTypes(resultSetMetaData));
+		final String[] rowData = new String[columnCount];
+		while (resultSet.next()) {
+			if (queryData.getRowCount() >= maxRows) {
+				queryResult.setIncomplete(true);
+				break;
+			}
+			for (int i = 1; i <= columnCount; i++) {
+				rowData[i - 1] = resultSet.getString(i);
+			}
+			queryData.addRow(rowData);
+		}
+		queryResult.setColumnarData(hasRows ? queryData.build() : null);
+		queryResult.setOriginalSize(queryData.getRowCount());
 		return queryResult;
 	}
 
+	private static List<String> getColumnNames(ResultSetMetaData resultSetMetaData) throws SQLException {
+		final int columnCount = resultSetMetaData.getColumnCount();
+		final List<String> columnNames = new ArrayList<String>(columnCount);
+		for (int i = 1; i <= columnCount; i++) {
+			columnNames.add(resultSetMetaData.getColumnName(i));
+		}
+		return columnNames;
+	}
+
+	private static int[] getColumnTypes(ResultSetMetaData resultSetMetaData) throws SQLException {
+		final int[] columnTypes = new int[resultSetMetaData.getColumnCount()];
+		for (int i = 0; i < columnTypes.length; i++) {
+			columnTypes[i] = resultSetMetaData.getColumnType(i + 1);
+		}
+		return columnTypes;
+	}
+
 	public QueryResult getDevQueryResult(String query, boolean dev) throws SQLException {
+		return getDevQueryResult(query, dev, null);
+	}
+
+	/**
+	 * Runs a query on the developers' public schema.
+	 * @param paging	how to keep the rows, or <code>null</code> to keep them all in the heap
+	 * @see #readQueryResult(String, Statement, ResultComparator, int, Paging)
+	 */
+	public QueryResult getDevQueryResult(String query, boolean dev, Paging paging) throws SQLException {
+		if (paging == null)
+			return getDevQueryResult(query);
+
+		try (final Connection connection = dataSource.getConnection()) {
+			try (final Statement statement = connection.createStatement()) {
+				statement.execute("SET search_path TO 'public'");
+				statement.execute("SET statement_timeout TO " + (QUERY_TIMEOUT_SECONDS * 1000));
+				return readQueryResult(query, statement, null, 0, paging);
+			}
+		} finally {
+			// the query may have changed the tables
+			devSchemaCatalog.invalidate("public");
+		}
+	}
+
+	private QueryResult getDevQueryResult(String query) throws SQLException {
 		QueryResult queryResult = null;
 		try (final Connection connection = dataSource.getConnection()) {
 			
@@ -715,30 +1390,13 @@ public class DatabaseManager implements Serializable {
 				statement.execute("SET statement_timeout TO " + (QUERY_TIMEOUT_SECONDS * 1000));
 				
 				try (final ResultSet resultSet = statement.executeQuery(query)) {
-					queryResult = new QueryResult();
-					// get columns
-					List<String> columnNames = new LinkedList<String>();
-					final ResultSetMetaData resultSetMetaData = resultSet.getMetaData();
-					final int columnCount = resultSetMetaData.getColumnCount();
-					for(int i = 1; i <=  columnCount; i++) {
-						columnNames.add(resultSetMetaData.getColumnName(i));
-					}
-					queryResult.setColumns(columnNames);
-					// get data
-					List<List<String>> queryData = null;
-					if (resultSet.isBeforeFirst())
-						queryData = new LinkedList<List<String>>();
-					while (resultSet.next()) {
-						final List<String> rowData = new LinkedList<String>();
-						for (int i = 1; i <= columnCount; i++) {
-							rowData.add(resultSet.getString(i));
-						}
-						queryData.add(rowData);
-					}
-					queryResult.setData(queryData);
+					queryResult = readTable(resultSet);
 				}
 			}
-		} 
+		} finally {
+			// the query may have changed the tables
+			devSchemaCatalog.invalidate("public");
+		}
 		return queryResult;
 	}
 
@@ -876,54 +1534,44 @@ public class DatabaseManager implements Serializable {
 		return isCorrect;
 	}
 
+	/**
+	 * Logs an attempt.  The row is written in the background by the {@link LogWriter}, 
+	 * stamped with the time of the attempt rather than of the write, and the attempt is counted by the {@link StudentProgressStore} and the {@link HardnessAnalytics}.
+	 */
 	public void log(String sessionId, String email, String schemaName, int order, String correctAnswer, String userQuery, String question, boolean parsed, boolean correct, String nlpFeedback,
 			double totalTimeSeconds, double queryTotalTimeSeconds, double answerTotalTimeSeconds, double queryExecutionTimeSeconds, double answerExecutionTimeSeconds, boolean truncated, 
-			boolean readLimitExceeded, int originalSize, String schemaAdminCode) throws SQLException {
-		try (final Connection connection = dataSource.getConnection()) {
-
-			try (final PreparedStatement preparedStatement = connection.prepareStatement("INSERT INTO \"log\" (\"session_id\", "
-					+ "\"email\", \"schema\", \"order\", \"correct_answer\", \"query\", "
-					+ "\"parsed\", \"correct\", \"nlp_feedback\", \"total_time_seconds\", "
-					+ "\"query_total_time_seconds\", \"answer_total_time_seconds\", \"query_execution_time_seconds\", "
-					+ "\"answer_execution_time_seconds\", \"truncated\", "
-					+ "\"read_limit_exceeded\", \"original_size\", \"schema_admin_code\", \"question\") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)")) {
-				preparedStatement.setString(1, sessionId);
-				preparedStatement.setString(2, email);
-				preparedStatement.setString(3, schemaName);
-				preparedStatement.setInt(4, order);
-				preparedStatement.setString(5, correctAnswer);
-				preparedStatement.setString(6, userQuery);
-				preparedStatement.setBoolean(7, parsed);
-				preparedStatement.setBoolean(8, correct);
-				preparedStatement.setString(9, nlpFeedback);
-				preparedStatement.setDouble(10, totalTimeSeconds);
-				preparedStatement.setDouble(11, queryTotalTimeSeconds);
-				preparedStatement.setDouble(12, answerTotalTimeSeconds);
-				preparedStatement.setDouble(13, queryExecutionTimeSeconds);
-				preparedStatement.setDouble(14, answerExecutionTimeSeconds);
-				preparedStatement.setBoolean(15, truncated);
-				preparedStatement.setBoolean(16, readLimitExceeded);
-				preparedStatement.setInt(17, originalSize);
-				preparedStatement.setString(18, schemaAdminCode);
-				preparedStatement.setString(19, question);
-				preparedStatement.executeUpdate();
-			}
-		} 
+			boolean readLimitExceeded, int originalSize, String schemaAdminCode) {
+		try {
+			studentProgressStore.attempted(email, schemaName, schemaAdminCode, order, parsed, correct);
+		} catch (SQLException e) {
+			log.warn("Could not read the progress of a student in {} ({}).", schemaName, schemaAdminCode, e);
+		}
+		hardnessAnalytics.attempted(email, schemaName, schemaAdminCode, order, parsed, correct);
+		logWriter.add("INSERT INTO \"log\" (\"session_id\", "
+				+ "\"email\", \"schema\", \"order\", \"correct_answer\", \"query\", "
+				+ "\"parsed\", \"correct\", \"nlp_feedback\", \"total_time_seconds\", "
+				+ "\"query_total_time_seconds\", \"answer_total_time_seconds\", \"query_execution_time_seconds\", "
+				+ "\"answer_execution_time_seconds\", \"truncated\", "
+				+ "\"read_limit_exceeded\", \"original_size\", \"schema_admin_code\", \"question\", \"timestamp\") "
+				+ "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
+				sessionId, email, schemaName, order, correctAnswer, userQuery, parsed, correct, nlpFeedback, 
+				totalTimeSeconds, queryTotalTimeSeconds, answerTotalTimeSeconds, queryExecutionTimeSeconds, answerExecutionTimeSeconds, 
+				truncated, readLimitExceeded, originalSize, schemaAdminCode, question, new Timestamp(System.currentTimeMillis()));
 	}
 
-	public void logQuestionPresentation(String sessionId, String email, String schemaName, int order, String schemaAdminCode) throws SQLException {
-		try (final Connection connection = dataSource.getConnection()) {
-
-			try (final PreparedStatement preparedStatement = connection.prepareStatement("INSERT INTO \"log_question_presentation\" (\"session_id\", "
-					+ "\"email\", \"schema\", \"order\", \"schema_admin_code\") VALUES (?, ?, ?, ?, ?)")) {
-				preparedStatement.setString(1, sessionId);
-				preparedStatement.setString(2, email);
-				preparedStatement.setString(3, schemaName);
-				preparedStatement.setInt(4, order);
-				preparedStatement.setString(5, schemaAdminCode);
-				preparedStatement.executeUpdate();
-			}
-		} 
+	/**
+	 * Logs that a question was shown.  The row is written in the background by the {@link LogWriter}, 
+	 * stamped with the time it was shown, and the question is kept as the student's most recent by the {@link StudentProgressStore}.
+	 */
+	public void logQuestionPresentation(String sessionId, String email, String schemaName, int order, String schemaAdminCode) {
+		try {
+			studentProgressStore.presented(email, schemaName, schemaAdminCode, order);
+		} catch (SQLException e) {
+			log.warn("Could not read the progress of a student in {} ({}).", schemaName, schemaAdminCode, e);
+		}
+		logWriter.add("INSERT INTO \"log_question_presentation\" (\"session_id\", "
+				+ "\"email\", \"schema\", \"order\", \"schema_admin_code\", \"timestamp\") VALUES (?, ?, ?, ?, ?, ?)", 
+				sessionId, email, schemaName, order, schemaAdminCode, new Timestamp(System.currentTimeMillis()));
 	}
 
 	public void logException(String sessionId, String email, String exception) throws SQLException {
@@ -1126,70 +1774,63 @@ public class DatabaseManager implements Serializable {
 	}
 	
 	public int getMostRecentlyPresentedQuestion(String hashedEmail, String schema, String schemaAdminCode) throws SQLException {
-		int mostRecentlyPresentedQuestion = 0;
+		return studentProgressStore.getProgress(hashedEmail, schema, schemaAdminCode).getMostRecentlyPresentedQuestion();
+	}
+	
+	public int getNumberOfAttempts(String hashedEmail, String schema, int order, boolean parsed, boolean correct, String schemaAdminCode) throws SQLException {
+		return studentProgressStore.getProgress(hashedEmail, schema, schemaAdminCode).getAttempts(order, parsed, correct);
+	}
+	
+	/**
+	 * Returns whether each question a student attempted was answered correctly, by question order.
+	 */
+	public Map<Integer, Boolean> getQuestionAttemptStatuses(String hashedEmail, String schema, String schemaAdminCode) throws SQLException {
+		return studentProgressStore.getProgress(hashedEmail, schema, schemaAdminCode).getAttemptStatuses();
+	}
+
+	/**
+	 * Waits for the log rows queued so far to be written, so that counters read from the logs include them.
+	 * @throws SQLException if they are not written in time
+	 */
+	void awaitLogWritten() throws SQLException {
+		if (!logWriter.flush(LOG_FLUSH_TIMEOUT_MS))
+			throw new SQLException("Log rows are still being written, the logs cannot be read yet.");
+	}
+
+	/**
+	 * Reads the progress of a student in a tutorial from the logs, for the {@link StudentProgressStore}.
+	 * @see #awaitLogWritten()
+	 */
+	StudentProgressStore.Progress readStudentProgress(String hashedEmail, String schema, String schemaAdminCode) throws SQLException {
+		final StudentProgressStore.Progress progress = new StudentProgressStore.Progress();
 		try (final Connection connection = dataSource.getConnection()) {
 
-			try (final PreparedStatement preparedStatement = connection.prepareStatement("SELECT s.\"order\" FROM log_question_presentation p, "
-					+ "schema_questions s WHERE p.\"order\" = s.\"order\" AND p.schema = s.schema AND p.email = ? AND p.schema = ? AND schema_admin_code = ?"
-					+ " GROUP BY s.\"order\" ORDER BY max(timestamp) DESC LIMIT 1")) {
+			try (final PreparedStatement preparedStatement = connection.prepareStatement("SELECT \"order\", parsed, correct, count(*) FROM log "
+					+ "WHERE email = ? AND schema = ? AND schema_admin_code = ? GROUP BY \"order\", parsed, correct")) {
 				preparedStatement.setString(1, hashedEmail);
 				preparedStatement.setString(2, schema);
 				preparedStatement.setString(3, schemaAdminCode);
 
 				try (final ResultSet resultSet = preparedStatement.executeQuery()) {
-					if (resultSet.next())
-						mostRecentlyPresentedQuestion = resultSet.getInt(1);
+					while (resultSet.next())
+						progress.addAttempts(resultSet.getInt(1), resultSet.getBoolean(2), resultSet.getBoolean(3), resultSet.getInt(4));
 				}
 			}
-		} 
-		return mostRecentlyPresentedQuestion;
-	}
-	
-	public int getNumberOfAttempts(String hashedEmail, String schema, int order, boolean parsed, boolean correct, String schemaAdminCode) throws SQLException {
-		int numberOfParsedAttempts = 0;
-		try (final Connection connection = dataSource.getConnection()) {
 
-			try (final PreparedStatement preparedStatement = connection.prepareStatement("SELECT count(*) FROM log "
-					+ "WHERE email = ? AND \"order\" = ? AND schema = ? AND correct = ? AND parsed = ? AND schema_admin_code = ?")) {
+			try (final PreparedStatement preparedStatement = connection.prepareStatement("SELECT s.\"order\" FROM log_question_presentation p, "
+					+ "schema_questions s WHERE p.\"order\" = s.\"order\" AND p.schema = s.schema AND p.email = ? AND p.schema = ? AND schema_admin_code = ?"
+					+ " GROUP BY s.\"order\" ORDER BY max(timestamp) DESC LIMIT 1")) {
 				preparedStatement.setString(1, hashedEmail);
-				preparedStatement.setInt(2, order);
-				preparedStatement.setString(3, schema);
-				preparedStatement.setBoolean(4, correct);
-				preparedStatement.setBoolean(5, parsed);
-				preparedStatement.setString(6, schemaAdminCode);
+				preparedStatement.setString(2, schema);
+				preparedStatement.setString(3, schemaAdminCode);
 
 				try (final ResultSet resultSet = preparedStatement.executeQuery()) {
 					if (resultSet.next())
-						numberOfParsedAttempts = resultSet.getInt(1);
-				}
-			}
-		}
-		return numberOfParsedAttempts;
-	}
-	
-	public Map<Integer, Boolean> getQuestionAttemptStatuses(String hashedEmail, String schema, String schemaAdminCode) throws SQLException {
-		try (final Connection connection = dataSource.getConnection()) {
-
-			try (final PreparedStatement preparedStatement = connection.prepareStatement(
-					"SELECT DISTINCT \"order\", correct FROM log l, \"user\" u "
-					+ "WHERE u.email = l.email AND NOT u.admin AND NOT u.developer AND schema = ? AND schema_admin_code = ? AND u.email = ?")) {
-				preparedStatement.setString(1, schema);
-				preparedStatement.setString(2, schemaAdminCode);
-				preparedStatement.setString(3, hashedEmail);
-
-				try (final ResultSet resultSet = preparedStatement.executeQuery()) {
-					Map<Integer, Boolean> attemptStatusMap = null;
-					if (resultSet.isBeforeFirst())
-						attemptStatusMap = new HashMap<Integer, Boolean>();
-					if (resultSet.next()) {
-						final Boolean currentAttemptStatus = attemptStatusMap.get(resultSet.getInt(1));
-						if (currentAttemptStatus != null && currentAttemptStatus != true && currentAttemptStatus != resultSet.getBoolean(2))
-							attemptStatusMap.put(resultSet.getInt(1), resultSet.getBoolean(2));
-					}
-					return attemptStatusMap;
+						progress.setMostRecentlyPresentedQuestion(resultSet.getInt(1));
 				}
 			}
 		}
+		return progress;
 	}
 	
 	public int getNumberOfUsersAboveThreshold(String schema, String schemaAdminCode, int minimumAttemptCount) throws SQLException {
@@ -1208,38 +1849,45 @@ public class DatabaseManager implements Serializable {
 		}
 	}
 	
+	/**
+	 * Returns the hardness of a tutorial's questions, computed by the {@link HardnessAnalytics}.
+	 *
+	 * @see HardnessAnalytics#getHardnessRatings(String, String, int, boolean, boolean)
+	 */
 	public List<QuestionHardnessTuple> getHardnessRatings(String schema, String schemaAdminCode, int maxIncorrectCount, boolean useMedian, boolean parsed) throws SQLException {
-		List<QuestionHardnessTuple> hardnessRatings = null;
-		
-		if (maxIncorrectCount <= 0)
-			return null;
-		
+		return hardnessAnalytics.getHardnessRatings(schema, schemaAdminCode, maxIncorrectCount, useMedian, parsed);
+	}
+
+	/**
+	 * Reads the incorrect attempts of the students at a tutorial's questions from the logs, 
+	 * for the {@link HardnessAnalytics}.
+	 */
+	HardnessAnalytics.TutorialCounts readHardnessCounts(String schema, String schemaAdminCode) throws SQLException {
 		try (final Connection connection = dataSource.getConnection()) {
+			final Set<String> excludedEmails = new HashSet<String>();
+			try (final Statement statement = connection.createStatement();
+					final ResultSet resultSet = statement.executeQuery("SELECT email FROM \"user\" WHERE admin OR developer")) {
+				while (resultSet.next())
+					excludedEmails.add(resultSet.getString(1));
+			}
 
-			try (final PreparedStatement preparedStatement = connection.prepareStatement("SELECT \"order\", (sum1 / avg1) as HARDNESS, sum1, avg1 FROM ( SELECT \"order\", SUM(incorrect_count) AS sum1 FROM ( SELECT \"order\", CASE WHEN COUNT(*) > ? THEN ? ELSE COUNT(*) END AS incorrect_count FROM log l, \"user\" u WHERE l.email = u.email AND NOT admin AND NOT developer AND schema = ? AND schema_admin_code = ? AND NOT correct AND \"order\" IN ( SELECT \"order\" FROM schema_questions WHERE schema = ? AND admin_code = ? ) " + (parsed ? "AND parsed" : "") + " GROUP BY \"order\", u.email ) t1 GROUP BY \"order\" ) t1, ( SELECT " + (useMedian ? "MEDIAN" : "AVG") + "(totals) AS avg1 FROM ( SELECT \"order\", SUM(incorrect_count) AS totals FROM ( SELECT \"order\", CASE WHEN COUNT(*) > ? THEN ? ELSE COUNT(*) END AS incorrect_count FROM log l, \"user\" u WHERE l.email = u.email AND NOT admin AND NOT developer AND schema = ? AND schema_admin_code = ? AND NOT correct AND \"order\" IN ( SELECT \"order\" FROM schema_questions WHERE schema = ? AND admin_code = ? ) " + (parsed ? "AND parsed" : "") + " GROUP BY \"order\", u.email ) t GROUP BY \"order\" ) tt ) t2 ORDER BY HARDNESS DESC")) {
-				preparedStatement.setInt(1, maxIncorrectCount);
-				preparedStatement.setInt(2, maxIncorrectCount);
+			final HardnessAnalytics.TutorialCounts counts = new HardnessAnalytics.TutorialCounts(excludedEmails);
+			try (final PreparedStatement preparedStatement = connection.prepareStatement("SELECT \"order\", l.email, parsed, COUNT(*) FROM log l, \"user\" u "
+					+ "WHERE l.email = u.email AND NOT admin AND NOT developer AND schema = ? AND schema_admin_code = ? AND NOT correct "
+					+ "AND \"order\" IN ( SELECT \"order\" FROM schema_questions WHERE schema = ? AND admin_code = ? ) "
+					+ "GROUP BY \"order\", l.email, parsed")) {
+				preparedStatement.setString(1, schema);
+				preparedStatement.setString(2, schemaAdminCode);
 				preparedStatement.setString(3, schema);
 				preparedStatement.setString(4, schemaAdminCode);
-				preparedStatement.setString(5, schema);
-				preparedStatement.setString(6, schemaAdminCode);
-				preparedStatement.setInt(7, maxIncorrectCount);
-				preparedStatement.setInt(8, maxIncorrectCount);
-				preparedStatement.setString(9, schema);
-				preparedStatement.setString(10, schemaAdminCode);
-				preparedStatement.setString(11, schema);
-				preparedStatement.setString(12, schemaAdminCode);
-	
+
 				try (ResultSet resultSet = preparedStatement.executeQuery()) {
-					if (resultSet.isBeforeFirst()) 
-						hardnessRatings = new LinkedList<QuestionHardnessTuple>();
-					final double roundTo = 1e3;
-					while (resultSet.next()) 
-						hardnessRatings.add(new QuestionHardnessTuple(resultSet.getInt(1), Math.floor(resultSet.getDouble(2) * roundTo) / roundTo, resultSet.getInt(3), Math.floor(resultSet.getDouble(4) * roundTo) / roundTo));
-				} 
+					while (resultSet.next())
+						counts.addIncorrect(resultSet.getInt(1), resultSet.getString(2), resultSet.getBoolean(3), resultSet.getInt(4));
+				}
 			}
+			return counts;
 		}
-		return hardnessRatings;
 	}
 	
 	public List<String> getQuestionComments(String schema, int order, String schemaAdminCode) throws SQLException {
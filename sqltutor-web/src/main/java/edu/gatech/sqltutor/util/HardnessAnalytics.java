@@ -0,0 +1,313 @@
+/*
+ *   Copyright (c) 2015 Program Analysis Group, Georgia Tech
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package edu.gatech.sqltutor.util;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import edu.gatech.sqltutor.tuples.QuestionHardnessTuple;
+
+/**
+ * Question hardness ratings computed in memory from incrementally maintained counters.
+ * <p>
+ * The incorrect attempts of each student at each question of a tutorial are
+ * read from the <code>log</code> table once, with a single grouped query, and
+ * are then counted as attempts are logged.  For each question, the number of
+ * students with at least <i>k</i> incorrect attempts is kept for every
+ * <i>k</i>, so the sum of the students' attempts capped at any maximum is
+ * computed without looking at the students, and the ratings of a tutorial are
+ * computed in time proportional to its number of questions times the maximum.
+ * </p><p>
+ * The logs are only read once the rows queued before are written, see
+ * {@link DatabaseManager#awaitLogWritten()}, and attempts counted while they
+ * are read are added once they are.  Attempts of admins and developers are not
+ * counted, as of when the tutorial was read.  Tutorials are evicted after
+ * {@link #EXPIRY_MINUTES} minutes without access, and may be invalidated to
+ * read them again.
+ * </p>
+ */
+public class HardnessAnalytics {
+	public static final long EXPIRY_MINUTES = 60L;
+
+	/** The incorrect attempts of the students at one question, either all of them or only the parsed ones. */
+	private static final class AttemptCounts {
+		private final Map<String, Integer> byStudent = new HashMap<String, Integer>();
+		/** The number of students with at least <i>k</i> attempts at index <i>k</i>, index 0 is unused. */
+		private int[] studentsWithAtLeast = new int[8];
+
+		public void add(String email, int count) {
+			final Integer previous = byStudent.get(email);
+			final int from = previous != null ? previous : 0, to = from + count;
+			byStudent.put(email, to);
+			if (to >= studentsWithAtLeast.length)
+				studentsWithAtLeast = Arrays.copyOf(studentsWithAtLeast, Math.max(to + 1, studentsWithAtLeast.length * 2));
+			for (int k = from + 1; k <= to; ++k)
+				++studentsWithAtLeast[k];
+		}
+
+		/** Returns the sum of the students' attempts, each capped at a maximum. */
+		public int getCappedSum(int maxCount) {
+			int sum = 0;
+			for (int k = Math.min(maxCount, studentsWithAtLeast.length - 1); k > 0; --k)
+				sum += studentsWithAtLeast[k];
+			return sum;
+		}
+
+		public boolean isEmpty() {
+			return byStudent.isEmpty();
+		}
+	}
+
+	/** The counters of one tutorial.  Guarded by itself. */
+	public static final class TutorialCounts {
+		private final Set<String> excludedEmails;
+		/** Counts by question order. */
+		private final Map<Integer, AttemptCounts> incorrect = new TreeMap<Integer, AttemptCounts>();
+		private final Map<Integer, AttemptCounts> incorrectParsed = new TreeMap<Integer, AttemptCounts>();
+
+		/**
+		 * @param excludedEmails the hashed emails of the admins and developers, whose attempts are not counted
+		 */
+		public TutorialCounts(Set<String> excludedEmails) {
+			this.excludedEmails = new HashSet<String>(excludedEmails);
+		}
+
+		/**
+		 * Counts incorrect attempts, as read from the logs or as they are logged.
+		 */
+		public synchronized void addIncorrect(int order, String email, boolean parsed, int count) {
+			if (excludedEmails.contains(email))
+				return;
+			add(incorrect, order, email, count);
+			if (parsed)
+				add(incorrectParsed, order, email, count);
+		}
+
+		private static void add(Map<Integer, AttemptCounts> counts, int order, String email, int count) {
+			AttemptCounts question = counts.get(order);
+			if (question == null)
+				counts.put(order, question = new AttemptCounts());
+			question.add(email, count);
+		}
+
+		/**
+		 * Returns the hardness of the questions that were answered incorrectly, hardest first,
+		 * and in question order among equally hard ones.
+		 *
+		 * @see HardnessAnalytics#getHardnessRatings(String, String, int, boolean, boolean)
+		 */
+		public synchronized List<QuestionHardnessTuple> getHardnessRatings(int maxIncorrectCount, boolean useMedian, boolean parsed) {
+			final Map<Integer, AttemptCounts> counts = parsed ? incorrectParsed : incorrect;
+			final List<Integer> orders = new ArrayList<Integer>();
+			final List<Integer> sums = new ArrayList<Integer>();
+			for (Map.Entry<Integer, AttemptCounts> question : counts.entrySet()) {
+				if (question.getValue().isEmpty())
+					continue;
+				orders.add(question.getKey());
+				sums.add(question.getValue().getCappedSum(maxIncorrectCount));
+			}
+			if (sums.isEmpty())
+				return null;
+
+			final double average = useMedian ? median(sums) : average(sums);
+			final List<QuestionHardnessTuple> hardnessRatings = new LinkedList<QuestionHardnessTuple>();
+			final double roundTo = 1e3;
+			for (int i = 0; i < orders.size(); ++i) {
+				final int sum = sums.get(i);
+				hardnessRatings.add(new QuestionHardnessTuple(orders.get(i), Math.floor(sum / average * roundTo) / roundTo,
+						sum, Math.floor(average * roundTo) / roundTo));
+			}
+			Collections.sort(hardnessRatings, Collections.reverseOrder());
+			return hardnessRatings;
+		}
+
+		private static double average(List<Integer> values) {
+			long total = 0;
+			for (int value : values)
+				total += value;
+			return (double) total / values.size();
+		}
+
+		private static double median(List<Integer> values) {
+			final List<Integer> sorted = new ArrayList<Integer>(values);
+			Collections.sort(sorted);
+			final int middle = sorted.size() / 2;
+			return sorted.size() % 2 != 0 ? sorted.get(middle) : (sorted.get(middle - 1) + sorted.get(middle)) / 2.0;
+		}
+	}
+
+	/** The incorrect attempts counted while a tutorial is read, added once it is.  Guarded by itself. */
+	private static final class Loading {
+		private final List<Integer> orders = new ArrayList<Integer>();
+		private final List<String> emails = new ArrayList<String>();
+		private final List<Boolean> parsed = new ArrayList<Boolean>();
+		private TutorialCounts counts;
+
+		public synchronized void addIncorrect(int order, String email, boolean parsed) {
+			if (counts != null) {
+				counts.addIncorrect(order, email, parsed, 1);
+				return;
+			}
+			orders.add(order);
+			emails.add(email);
+			this.parsed.add(parsed);
+		}
+
+		public synchronized void loaded(TutorialCounts counts) {
+			for (int i = 0; i < orders.size(); ++i)
+				counts.addIncorrect(orders.get(i), emails.get(i), parsed.get(i), 1);
+			this.counts = counts;
+		}
+	}
+
+	private static final class Key {
+		private final String tutorialName;
+		private final String adminCode;
+
+		public Key(String tutorialName, String adminCode) {
+			this.tutorialName = tutorialName;
+			this.adminCode = adminCode;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) return true;
+			if (!(obj instanceof Key)) return false;
+			final Key that = (Key) obj;
+			return Objects.equal(tutorialName, that.tutorialName) && Objects.equal(adminCode, that.adminCode);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hashCode(tutorialName, adminCode);
+		}
+	}
+
+	private final DatabaseManager databaseManager;
+	private final Cache<Key, TutorialCounts> tutorials = CacheBuilder.newBuilder()
+			.expireAfterAccess(EXPIRY_MINUTES, TimeUnit.MINUTES)
+			.build();
+	/** The tutorials being read, until their counts are kept. */
+	private final ConcurrentMap<Key, Loading> loading = new ConcurrentHashMap<Key, Loading>();
+
+	public HardnessAnalytics(DatabaseManager databaseManager) {
+		this.databaseManager = databaseManager;
+	}
+
+	/**
+	 * Returns the hardness of a tutorial's questions, reading its attempts if they are not kept.
+	 * The hardness of a question is the sum of the students' incorrect attempts at it, each
+	 * capped at a maximum, divided by the average or median of these sums over all questions.
+	 * Questions without incorrect attempts are not rated.
+	 *
+	 * @param tutorialName		the name of the tutorial
+	 * @param adminCode			the admin code of the tutorial
+	 * @param maxIncorrectCount	the maximum number of incorrect attempts counted per student and question
+	 * @param useMedian			whether to divide by the median instead of the average
+	 * @param parsed			whether to only count attempts that parsed
+	 * @return the ratings, hardest first, or <code>null</code> if there are none
+	 * @throws SQLException if reading the logs fails
+	 */
+	public List<QuestionHardnessTuple> getHardnessRatings(String tutorialName, String adminCode, int maxIncorrectCount,
+			boolean useMedian, boolean parsed) throws SQLException {
+		if (maxIncorrectCount <= 0)
+			return null;
+		return getCounts(tutorialName, adminCode).getHardnessRatings(maxIncorrectCount, useMedian, parsed);
+	}
+
+	private TutorialCounts getCounts(final String tutorialName, final String adminCode) throws SQLException {
+		final Key key = new Key(tutorialName, adminCode);
+		final Loading load = new Loading();
+		try {
+			return tutorials.get(key, new Callable<TutorialCounts>() {
+				@Override
+				public TutorialCounts call() throws SQLException {
+					databaseManager.awaitLogWritten();
+					// attempts counted from now on are added to what is read, their rows are queued 
+					// behind the ones just written and wait for the next batch
+					loading.put(key, load);
+					final TutorialCounts counts = databaseManager.readHardnessCounts(tutorialName, adminCode);
+					load.loaded(counts);
+					return counts;
+				}
+			});
+		} catch (ExecutionException | UncheckedExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof SQLException)
+				throw (SQLException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new RuntimeException(cause);
+		} finally {
+			// the counts are kept by now, or were not read
+			loading.remove(key, load);
+		}
+	}
+
+	/**
+	 * Counts an attempt, if the tutorial's attempts are kept or being read.  
+	 * Otherwise it is counted when they are read.
+	 */
+	public void attempted(String hashedEmail, String tutorialName, String adminCode, int order, boolean parsed, boolean correct) {
+		if (correct)
+			return;
+		final Key key = new Key(tutorialName, adminCode);
+		// checked first, since the counts are only kept before the tutorial stops being read
+		final Loading load = loading.get(key);
+		if (load != null) {
+			load.addIncorrect(order, hashedEmail, parsed);
+			return;
+		}
+		final TutorialCounts counts = tutorials.getIfPresent(key);
+		if (counts != null)
+			counts.addIncorrect(order, hashedEmail, parsed, 1);
+	}
+
+	/**
+	 * Discards the counters of a tutorial, so that they are read again.
+	 */
+	public void invalidate(String tutorialName, String adminCode) {
+		tutorials.invalidate(new Key(tutorialName, adminCode));
+	}
+
+	public void invalidateAll() {
+		tutorials.invalidateAll();
+	}
+
+	/** Returns the approximate number of tutorials kept. */
+	public long size() {
+		return tutorials.size();
+	}
+}
@@ -0,0 +1,525 @@
+/*
+ *   Copyright (c) 2015 Program Analysis Group, Georgia Tech
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package edu.gatech.sqltutor.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes log rows in the background, so that logging never delays a request.
+ * <p>
+ * Rows are queued in memory and inserted in JDBC batches of up to
+ * {@link #BATCH_SIZE} rows, at least every {@link #FLUSH_INTERVAL_MS}
+ * milliseconds.  Rows that cannot be queued because the database is too slow
+ * are handed to the writer thread, which spills them to files in the spill
+ * directory along with rows that fail to insert, and inserts them once the
+ * database accepts rows again.  Request threads only write spill files
+ * themselves once the writer is closed or too far behind.  Closing the writer
+ * inserts, or else spills, all rows still queued.
+ * </p><p>
+ * When the database rejects a batch rather than being unavailable, its rows
+ * are inserted one at a time, and only the rows it rejects on their own are 
+ * moved to <code>.failed</code> files in the spill directory, which are never
+ * read again.  Spill files that cannot be read are renamed the same way, so
+ * that neither holds back the rows spilled after them.
+ * </p><p>
+ * Readers of the logs may {@link #flush(long) wait} for the rows added before
+ * them to be inserted, so that what they read includes them.
+ * </p>
+ */
+public class LogWriter implements Closeable {
+	private static final Logger log = LoggerFactory.getLogger(LogWriter.class);
+
+	public static final int QUEUE_CAPACITY = 10_000;
+	/** The maximum number of rows that did not fit in the queue and wait for the writer to spill them. */
+	public static final int OVERFLOW_CAPACITY = 10_000;
+	public static final int BATCH_SIZE = 500;
+	public static final long FLUSH_INTERVAL_MS = 1000L;
+	private static final long CLOSE_TIMEOUT_MS = 10_000L;
+	private static final String SPILL_SUFFIX = ".spill";
+	private static final String FAILED_SUFFIX = ".failed";
+
+	/** How an attempt to insert rows ended. */
+	private static enum Result {
+		WRITTEN,
+		/** The database rejected the rows, retrying them would fail again. */
+		REJECTED,
+		/** The database could not be reached or is overloaded, the rows may be retried. */
+		UNAVAILABLE
+	}
+
+	/** One row to insert. */
+	private static class Entry implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final String sql;
+		private final Object[] parameters;
+
+		public Entry(String sql, Object[] parameters) {
+			this.sql = sql;
+			this.parameters = parameters;
+		}
+	}
+
+	/** A mark queued behind the rows to wait for, see {@link LogWriter#flush(long)}.  Never spilled. */
+	private static final class Flush extends Entry {
+		private static final long serialVersionUID = 1L;
+
+		private final transient CountDownLatch done = new CountDownLatch(1);
+		private volatile boolean written;
+
+		public Flush() {
+			super(null, null);
+		}
+
+		public void release(boolean written) {
+			this.written = written;
+			done.countDown();
+		}
+	}
+
+	private final DatabaseManager databaseManager;
+	private final File spillDirectory;
+	private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<Entry>(QUEUE_CAPACITY);
+	/** Rows to spill on the writer thread.  Guarded by itself. */
+	private final List<Entry> overflow = new ArrayList<Entry>();
+	private final AtomicLong spillSequence = new AtomicLong();
+	private final AtomicLong writtenCount = new AtomicLong();
+	private final AtomicLong spilledCount = new AtomicLong();
+	private final AtomicLong rejectedCount = new AtomicLong();
+	/** The number of threads waiting in {@link #flush(long)}, which the writer does not keep waiting for a full batch. */
+	private final AtomicInteger flushing = new AtomicInteger();
+	/** Whether there may be spill files to insert. */
+	private volatile boolean spilled = true;
+	private Thread thread;
+	private volatile boolean closed;
+
+	/**
+	 * @param databaseManager	the manager whose data source to write to
+	 * @param spillDirectory	the directory to spill rows to, created if needed
+	 */
+	public LogWriter(DatabaseManager databaseManager, File spillDirectory) {
+		this.databaseManager = databaseManager;
+		this.spillDirectory = spillDirectory;
+	}
+
+	/**
+	 * Queues a row to insert.  Never blocks on the database.
+	 *
+	 * @param sql			the insert statement
+	 * @param parameters	the statement's parameters
+	 */
+	public void add(String sql, Object... parameters) {
+		final Entry entry = new Entry(sql, parameters);
+		if (!closed && start() && (queue.offer(entry) || addOverflow(entry)))
+			return;
+		log.warn("Log writer is closed or too far behind, spilling row to disk.");
+		spill(Arrays.asList(entry));
+	}
+
+	/**
+	 * Waits until the rows added before are inserted, along with the rows spilled before.
+	 *
+	 * @param timeoutMs	the longest time to wait
+	 * @return whether the rows were inserted in time, which they are not while the writer 
+	 *         is closed or too far behind, or while the database is unavailable
+	 */
+	public boolean flush(long timeoutMs) {
+		final Flush flush = new Flush();
+		flushing.incrementAndGet();
+		try {
+			if (closed || !start() || !queue.offer(flush))
+				return false;
+			return flush.done.await(timeoutMs, TimeUnit.MILLISECONDS) && flush.written;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			flushing.decrementAndGet();
+		}
+	}
+
+	/** Removes the flush marks from rows taken from the queue. */
+	private static List<Flush> removeFlushes(List<Entry> entries) {
+		List<Flush> flushes = Collections.emptyList();
+		for (Iterator<Entry> it = entries.iterator(); it.hasNext(); ) {
+			final Entry entry = it.next();
+			if (entry instanceof Flush) {
+				if (flushes.isEmpty())
+					flushes = new ArrayList<Flush>();
+				flushes.add((Flush) entry);
+				it.remove();
+			}
+		}
+		return flushes;
+	}
+
+	private boolean addOverflow(Entry entry) {
+		synchronized (overflow) {
+			// once closed, close() may already have spilled the overflow
+			if (closed || overflow.size() >= OVERFLOW_CAPACITY)
+				return false;
+			if (overflow.isEmpty())
+				log.warn("Log writer queue is full, spilling rows to disk.");
+			overflow.add(entry);
+			return true;
+		}
+	}
+
+	/** Spills the rows that did not fit in the queue. */
+	private void spillOverflow() {
+		final List<Entry> entries;
+		synchronized (overflow) {
+			if (overflow.isEmpty())
+				return;
+			entries = new ArrayList<Entry>(overflow);
+			overflow.clear();
+		}
+		spill(entries);
+	}
+
+	private synchronized boolean start() {
+		if (closed)
+			return false;
+		if (thread == null) {
+			thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					writeQueued();
+				}
+			}, "log-writer");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		return true;
+	}
+
+	/**
+	 * Stops the writer, waiting for the queued rows to be inserted.  Rows that
+	 * are not inserted in time are spilled.
+	 */
+	@Override
+	public void close() {
+		final Thread running;
+		synchronized (this) {
+			closed = true;
+			running = thread;
+		}
+		if (running != null) {
+			try {
+				running.join(CLOSE_TIMEOUT_MS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		spillOverflow();
+		final List<Entry> remaining = new ArrayList<Entry>();
+		queue.drainTo(remaining);
+		for (Flush flush : removeFlushes(remaining))
+			flush.release(false);
+		if (!remaining.isEmpty())
+			spill(remaining);
+	}
+
+	private void writeQueued() {
+		final List<Entry> batch = new ArrayList<Entry>(BATCH_SIZE);
+		while (!closed || !queue.isEmpty()) {
+			spillOverflow();
+			try {
+				final long deadline = System.currentTimeMillis() + FLUSH_INTERVAL_MS;
+				queue.drainTo(batch, BATCH_SIZE);
+				while (batch.size() < BATCH_SIZE && !closed && flushing.get() == 0) {
+					final long wait = deadline - System.currentTimeMillis();
+					if (wait <= 0)
+						break;
+					final Entry entry = queue.poll(wait, TimeUnit.MILLISECONDS);
+					if (entry == null)
+						break;
+					batch.add(entry);
+					queue.drainTo(batch, BATCH_SIZE - batch.size());
+				}
+			} catch (InterruptedException e) {
+				closed = true;
+			}
+
+			final List<Flush> flushes = removeFlushes(batch);
+			boolean written = true;
+			if (!batch.isEmpty()) {
+				final List<Entry> pending = write(batch);
+				if (pending.isEmpty()) {
+					writeSpilled();
+				} else {
+					spill(pending);
+					written = false;
+				}
+				batch.clear();
+			} else if (spilled && !closed) {
+				writeSpilled();
+			}
+			if (!flushes.isEmpty()) {
+				// the rows queued before the marks were just written, the rows that overflowed before them are spilled
+				if (written) {
+					spillOverflow();
+					writeSpilled();
+				}
+				for (Flush flush : flushes)
+					flush.release(written && !spilled);
+			}
+		}
+	}
+
+	/**
+	 * Inserts rows, one at a time if the database rejects them together, so that 
+	 * the rows it rejects do not hold back the others.  Those are moved aside.
+	 * @return the rows not inserted because the database is unavailable, which may be retried
+	 */
+	private List<Entry> write(List<Entry> entries) {
+		switch (insert(entries)) {
+		case WRITTEN:
+			return Collections.emptyList();
+		case UNAVAILABLE:
+			return entries;
+		default:
+			if (entries.size() == 1) {
+				reject(entries);
+				return Collections.emptyList();
+			}
+			break;
+		}
+
+		final List<Entry> rejected = new ArrayList<Entry>();
+		for (int i = 0; i < entries.size(); i++) {
+			final Result result = insert(entries.subList(i, i + 1));
+			if (result == Result.UNAVAILABLE) {
+				reject(rejected);
+				return new ArrayList<Entry>(entries.subList(i, entries.size()));
+			}
+			if (result == Result.REJECTED)
+				rejected.add(entries.get(i));
+		}
+		reject(rejected);
+		return Collections.emptyList();
+	}
+
+	/**
+	 * Inserts rows in one transaction, batching the rows of each statement.
+	 * @return whether the rows were inserted, rejected or could not be written at all
+	 */
+	private Result insert(List<Entry> entries) {
+		final Map<String, List<Entry>> bySql = new LinkedHashMap<String, List<Entry>>();
+		for (Entry entry : entries) {
+			List<Entry> same = bySql.get(entry.sql);
+			if (same == null)
+				bySql.put(entry.sql, same = new ArrayList<Entry>());
+			same.add(entry);
+		}
+
+		final Connection connection;
+		try {
+			connection = databaseManager.getDataSource().getConnection();
+		} catch (SQLException e) {
+			log.warn("Could not connect to write {} log rows.", entries.size(), e);
+			return Result.UNAVAILABLE;
+		}
+		try {
+			connection.setAutoCommit(false);
+			try {
+				for (Map.Entry<String, List<Entry>> same : bySql.entrySet()) {
+					try (final PreparedStatement preparedStatement = connection.prepareStatement(same.getKey())) {
+						for (Entry entry : same.getValue()) {
+							for (int i = 0; i < entry.parameters.length; i++)
+								preparedStatement.setObject(i + 1, entry.parameters[i]);
+							preparedStatement.addBatch();
+						}
+						preparedStatement.executeBatch();
+					}
+				}
+				connection.commit();
+			} catch (SQLException | RuntimeException e) {
+				connection.rollback();
+				throw e;
+			} finally {
+				connection.setAutoCommit(true);
+			}
+		} catch (SQLException e) {
+			log.warn("Could not write {} log rows.", entries.size(), e);
+			return isUnavailable(e) ? Result.UNAVAILABLE : Result.REJECTED;
+		} catch (RuntimeException e) {
+			log.warn("Could not write {} log rows.", entries.size(), e);
+			return Result.REJECTED;
+		} finally {
+			try {
+				connection.close();
+			} catch (SQLException e) {
+				log.warn("Could not close a log writer connection.", e);
+			}
+		}
+		writtenCount.addAndGet(entries.size());
+		return Result.WRITTEN;
+	}
+
+	/**
+	 * Returns whether an error means the database cannot take rows at the moment: connection 
+	 * errors, insufficient resources, operator intervention and rolled back transactions.  
+	 * Errors without a state cannot be told apart and are treated the same.
+	 */
+	private static boolean isUnavailable(SQLException e) {
+		final String state = e.getNextException() != null && e.getNextException().getSQLState() != null 
+				? e.getNextException().getSQLState() : e.getSQLState();
+		return state == null || state.startsWith("08") || state.startsWith("53") || state.startsWith("57") 
+				|| state.startsWith("40");
+	}
+
+	/** Writes rows to a new spill file. */
+	private void spill(List<Entry> entries) {
+		if (writeFile(entries, SPILL_SUFFIX) == null)
+			return;
+		spilledCount.addAndGet(entries.size());
+		spilled = true;
+	}
+
+	/** Writes rows the database rejected to a new file that is kept for inspection, but never read again. */
+	private void reject(List<Entry> entries) {
+		if (entries.isEmpty())
+			return;
+		final File file = writeFile(entries, FAILED_SUFFIX);
+		if (file != null)
+			log.error("The database rejected {} log rows, they were moved to {}.", entries.size(), file);
+		rejectedCount.addAndGet(entries.size());
+	}
+
+	/** 
+	 * Writes rows to a new file in the spill directory.
+	 * @return the file, or <code>null</code> if the rows were lost
+	 */
+	private File writeFile(List<Entry> entries, String suffix) {
+		if (!spillDirectory.isDirectory() && !spillDirectory.mkdirs()) {
+			log.error("Could not create log spill directory {}, {} log rows lost.", spillDirectory, entries.size());
+			return null;
+		}
+		// names sort in the order the files were written
+		final String name = String.format("%d-%010d", System.currentTimeMillis(), spillSequence.incrementAndGet());
+		final File temporary = new File(spillDirectory, name + ".tmp");
+		try (final ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+			out.writeObject(new ArrayList<Entry>(entries));
+		} catch (IOException e) {
+			log.error("Could not spill {} log rows to {}.", entries.size(), temporary, e);
+			temporary.delete();
+			return null;
+		}
+		// only complete files are ever read back
+		final File file = new File(spillDirectory, name + suffix);
+		if (!temporary.renameTo(file)) {
+			log.error("Could not rename log spill file {}.", temporary);
+			return null;
+		}
+		return file;
+	}
+
+	/** 
+	 * Inserts the rows of the spill files in the order they were written, until the 
+	 * database is unavailable.  Rows it rejects and unreadable files are moved aside.
+	 */
+	@SuppressWarnings("unchecked")
+	private void writeSpilled() {
+		if (!spilled)
+			return;
+		// cleared before listing, so that a file spilled meanwhile sets it again
+		spilled = false;
+		final File[] files = spillDirectory.listFiles();
+		if (files != null) {
+			Arrays.sort(files);
+			for (File file : files) {
+				if (!file.getName().endsWith(SPILL_SUFFIX))
+					continue;
+				final List<Entry> entries;
+				try (final ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+					entries = (List<Entry>) in.readObject();
+				} catch (IOException | ClassNotFoundException e) {
+					final File failed = new File(spillDirectory, file.getName().replace(SPILL_SUFFIX, FAILED_SUFFIX));
+					log.error("Could not read log spill file {}, moving it to {}.", file, failed, e);
+					if (!file.renameTo(failed))
+						log.error("Could not rename log spill file {}.", file);
+					continue;
+				}
+				final List<Entry> pending = write(entries);
+				if (!pending.isEmpty()) {
+					// rows inserted before the database became unavailable are not written again
+					if (pending.size() < entries.size()) {
+						spill(pending);
+						if (!file.delete())
+							log.error("Could not delete log spill file {}, its rows may be written again.", file);
+					}
+					spilled = true;
+					return;
+				}
+				if (!file.delete())
+					log.error("Could not delete log spill file {}, its rows may be written again.", file);
+			}
+		}
+	}
+
+	public File getSpillDirectory() {
+		return spillDirectory;
+	}
+
+	/** Returns the number of rows waiting in memory. */
+	public int getQueuedCount() {
+		return queue.size();
+	}
+
+	/** Returns the number of rows inserted so far. */
+	public long getWrittenCount() {
+		return writtenCount.get();
+	}
+
+	/** Returns the number of rows spilled to disk so far. */
+	public long getSpilledCount() {
+		return spilledCount.get();
+	}
+
+	/** Returns the number of rows the database rejected so far, see {@link #getSpillDirectory()}. */
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+}
@@ -0,0 +1,294 @@
+/*
+ *   Copyright (c) 2015 Program Analysis Group, Georgia Tech
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package edu.gatech.sqltutor.util;
+
+import java.io.Serializable;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import edu.gatech.sqltutor.tuples.QuestionTuple;
+
+/**
+ * Execution baselines of the stored answers, used to grade the performance of
+ * students' queries, see {@link QuestionTuple#getPerformanceLeniencySeconds()}.
+ * <p>
+ * A baseline is collected in the background by running the answer
+ * {@link #BASELINE_RUNS} times and taking the median time, and by running it
+ * once more under <code>EXPLAIN (ANALYZE, BUFFERS)</code> for its planned cost,
+ * its server-side execution time and the shared buffers it touched.  Baselines
+ * are stored in the <code>schema_questions_baseline</code> table, keyed by
+ * tutorial and answer text, and are kept in memory until
+ * {@link #EXPIRY_MINUTES} minutes without access.
+ * </p><p>
+ * A missing baseline is collected when it is first asked for, and is collected
+ * again when the tutorial's instance data may have changed.  Collections run
+ * one at a time, so that they do not compete with students for the database
+ * and so that their times are measured under a single extra query's load.
+ * </p>
+ */
+public class PerformanceBaselineStore {
+	private static final Logger log = LoggerFactory.getLogger(PerformanceBaselineStore.class);
+
+	public static final long EXPIRY_MINUTES = 60L;
+	/** The maximum number of baselines kept in memory. */
+	public static final long MAXIMUM_BASELINES = 10_000L;
+	/** The number of timed runs of an answer, of which the median is taken. */
+	public static final int BASELINE_RUNS = 5;
+
+	/** The measured performance of an answer. */
+	public static final class Baseline implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final int runs;
+		private final long medianExecutionTime;
+		private final double totalCost;
+		private final double analyzedExecutionTime;
+		private final long sharedBuffers;
+
+		/**
+		 * @param runs					the number of timed runs
+		 * @param medianExecutionTime	the median time until the first rows were returned, in milliseconds
+		 * @param totalCost				the planner's total cost
+		 * @param analyzedExecutionTime	the server-side execution time reported by <code>EXPLAIN ANALYZE</code>, in milliseconds
+		 * @param sharedBuffers			the shared buffers hit or read
+		 */
+		public Baseline(int runs, long medianExecutionTime, double totalCost, double analyzedExecutionTime, long sharedBuffers) {
+			this.runs = runs;
+			this.medianExecutionTime = medianExecutionTime;
+			this.totalCost = totalCost;
+			this.analyzedExecutionTime = analyzedExecutionTime;
+			this.sharedBuffers = sharedBuffers;
+		}
+
+		public int getRuns() {
+			return runs;
+		}
+
+		public long getMedianExecutionTime() {
+			return medianExecutionTime;
+		}
+
+		public double getTotalCost() {
+			return totalCost;
+		}
+
+		public double getAnalyzedExecutionTime() {
+			return analyzedExecutionTime;
+		}
+
+		public long getSharedBuffers() {
+			return sharedBuffers;
+		}
+
+		/**
+		 * Returns the planned cost a query may exceed this answer's by, for a
+		 * leniency in milliseconds.  The leniency is converted at the rate the
+		 * answer's cost was executed at, counting at least one millisecond.
+		 */
+		public double getLeniencyCost(double leniencyMillis) {
+			return leniencyMillis * totalCost / Math.max(analyzedExecutionTime, 1d);
+		}
+
+		/**
+		 * Returns whether a query took longer than this answer plus a leniency.  A query
+		 * is only too slow if its planned cost is too high as well, so that time lost to
+		 * contention with other queries is not held against it.
+		 *
+		 * @param executionTime		the query's time until its first rows were returned, in milliseconds
+		 * @param totalCost			the query's planned total cost, or a negative number if unknown
+		 * @param leniencyMillis	the leniency, in milliseconds
+		 */
+		public boolean isExceededBy(long executionTime, double totalCost, double leniencyMillis) {
+			if (executionTime <= medianExecutionTime + leniencyMillis)
+				return false;
+			return totalCost < 0 || totalCost > this.totalCost + getLeniencyCost(leniencyMillis);
+		}
+	}
+
+	private static final class Key {
+		private final String tutorialName;
+		private final String adminCode;
+		private final String answer;
+
+		public Key(String tutorialName, String adminCode, String answer) {
+			this.tutorialName = tutorialName;
+			this.adminCode = adminCode;
+			this.answer = answer;
+		}
+
+		public boolean isOf(String tutorialName, String adminCode) {
+			return Objects.equal(this.tutorialName, tutorialName) && Objects.equal(this.adminCode, adminCode);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) return true;
+			if (!(obj instanceof Key)) return false;
+			final Key that = (Key) obj;
+			return Objects.equal(tutorialName, that.tutorialName) && Objects.equal(adminCode, that.adminCode)
+					&& Objects.equal(answer, that.answer);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hashCode(tutorialName, adminCode, answer);
+		}
+	}
+
+	private final DatabaseManager databaseManager;
+	private final Cache<Key, Optional<Baseline>> baselines = CacheBuilder.newBuilder()
+			.maximumSize(MAXIMUM_BASELINES)
+			.expireAfterAccess(EXPIRY_MINUTES, TimeUnit.MINUTES)
+			.build();
+	/** The answers waiting to be measured, as admin code, tutorial name and answer. */
+	private final Set<List<String>> pending = Collections.newSetFromMap(new ConcurrentHashMap<List<String>, Boolean>());
+	private final ExecutorService collector = Executors.newSingleThreadExecutor(
+			new ThreadFactoryBuilder().setNameFormat("performance-baselines-%d").setDaemon(true).build());
+
+	public PerformanceBaselineStore(DatabaseManager databaseManager) {
+		this.databaseManager = databaseManager;
+	}
+
+	/**
+	 * Returns the baseline of a question's answer, reading it if it is not kept.  If there
+	 * is none, it is collected in the background.
+	 *
+	 * @param tutorialName	the name of the tutorial the question belongs to
+	 * @param adminCode		the admin code of the tutorial
+	 * @param question		the question
+	 * @return the baseline, or <code>null</code> if it is not collected yet or could not be read
+	 */
+	public Baseline getBaseline(final String tutorialName, final String adminCode, final QuestionTuple question) {
+		try {
+			return baselines.get(new Key(tutorialName, adminCode, question.getAnswer()), new Callable<Optional<Baseline>>() {
+				@Override
+				public Optional<Baseline> call() throws SQLException {
+					final Baseline baseline = databaseManager.readPerformanceBaseline(tutorialName, adminCode, question.getAnswer());
+					if (baseline == null)
+						collect(tutorialName, adminCode, question.getAnswer());
+					return Optional.fromNullable(baseline);
+				}
+			}).orNull();
+		} catch (ExecutionException | UncheckedExecutionException e) {
+			log.warn("Could not read the performance baseline of {} question #{}.", tutorialName, question.getOrder(), e.getCause());
+			return null;
+		}
+	}
+
+	/**
+	 * Collects the baseline of an answer in the background, unless it is already waiting to be.
+	 */
+	public void collect(final String tutorialName, final String adminCode, final String answer) {
+		final List<String> key = Arrays.asList(adminCode, tutorialName, answer);
+		if (!pending.add(key))
+			return;
+		try {
+			collector.execute(new Runnable() {
+				@Override
+				public void run() {
+					pending.remove(key);
+					measure(tutorialName, adminCode, answer);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			pending.remove(key);
+		}
+	}
+
+	private void measure(String tutorialName, String adminCode, String answer) {
+		final Baseline baseline;
+		try {
+			baseline = databaseManager.measurePerformanceBaseline(adminCode + "_" + tutorialName, answer, BASELINE_RUNS);
+		} catch (SQLException e) {
+			log.warn("Could not measure an answer of {}: {}", tutorialName, e.getMessage());
+			return;
+		}
+		try {
+			databaseManager.writePerformanceBaseline(tutorialName, adminCode, answer, baseline);
+		} catch (SQLException e) {
+			log.warn("Could not store the performance baseline of an answer of {}.", tutorialName, e);
+		}
+		baselines.put(new Key(tutorialName, adminCode, answer), Optional.of(baseline));
+	}
+
+	/**
+	 * Discards the baselines of a tutorial, e.g. after it was deleted or its instance was replaced.
+	 */
+	public void invalidate(String tutorialName, String adminCode) {
+		// delete the stored rows first, so a concurrent read cannot keep them in memory again
+		try {
+			databaseManager.deletePerformanceBaselines(tutorialName, adminCode);
+		} catch (SQLException e) {
+			log.warn("Could not delete the performance baselines of {}.", tutorialName, e);
+		}
+		for (Iterator<Key> it = baselines.asMap().keySet().iterator(); it.hasNext(); ) {
+			if (it.next().isOf(tutorialName, adminCode))
+				it.remove();
+		}
+	}
+
+	/**
+	 * Discards the baselines of a tutorial whose instance data may have changed, 
+	 * and collects them again in the background.
+	 */
+	public void refresh(String tutorialName, String adminCode) {
+		invalidate(tutorialName, adminCode);
+		final List<QuestionTuple> questions;
+		try {
+			questions = databaseManager.getQuestions(tutorialName, adminCode);
+		} catch (SQLException e) {
+			log.warn("Could not read the questions of {} to measure their answers.", tutorialName, e);
+			return;
+		}
+		if (questions == null)
+			return;
+		for (QuestionTuple question : questions) {
+			if (question.getPerformanceLeniencySeconds() != 0)
+				collect(tutorialName, adminCode, question.getAnswer());
+		}
+	}
+
+	/** Stops collecting baselines in the background. */
+	public void shutdown() {
+		collector.shutdownNow();
+	}
+
+	/** Returns the approximate number of baselines kept. */
+	public long size() {
+		return baselines.size();
+	}
+}
@@ -0,0 +1,39 @@
+/*
+ *   Copyright (c) 2015 Program Analysis Group, Georgia Tech
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package edu.gatech.sqltutor.util;
+
+import java.sql.SQLException;
+
+/**
+ * Thrown instead of running a query whose plan exceeds its tutorial's budget.
+ */
+public class QueryBudgetExceededException extends SQLException {
+	private static final long serialVersionUID = 1L;
+	/** PostgreSQL's program_limit_exceeded class. */
+	public static final String SQL_STATE = "54000";
+
+	private final QueryPlanCache.Estimate estimate;
+
+	public QueryBudgetExceededException(QueryPlanCache.Estimate estimate, double maxCost, long maxRows) {
+		super("Estimated cost " + estimate.getTotalCost() + " and rows " + estimate.getRows() 
+				+ " exceed the budget of cost " + maxCost + " and rows " + maxRows, SQL_STATE);
+		this.estimate = estimate;
+	}
+
+	public QueryPlanCache.Estimate getEstimate() {
+		return estimate;
+	}
+}
@@ -0,0 +1,170 @@
+/*
+ *   Copyright (c) 2015 Program Analysis Group, Georgia Tech
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package edu.gatech.sqltutor.util;
+
+import java.io.Serializable;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * The planner's estimates for students' queries, kept per schema and query text.
+ * <p>
+ * Students resubmit the same queries, and a query's plan is needed to choose how to compare it, 
+ * to check it against its tutorial's budget and to grade its performance, so each query is only
+ * planned once.  Plans go stale as the planner's statistics change, so they expire 
+ * {@link #EXPIRY_MINUTES} minutes after they were made, and are discarded when their schema 
+ * changes.  Queries that fail to plan are not kept.
+ * </p>
+ */
+public class QueryPlanCache {
+	public static final long EXPIRY_MINUTES = 10L;
+	/** The maximum number of plans kept. */
+	public static final long MAXIMUM_PLANS = 10_000L;
+
+	/** The top node's estimates of a plan. */
+	public static final class Estimate implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final long rows;
+		private final double totalCost;
+
+		/**
+		 * @param rows		the estimated number of rows, or <code>-1</code> if unknown
+		 * @param totalCost	the estimated total cost, or <code>-1</code> if unknown
+		 */
+		public Estimate(long rows, double totalCost) {
+			this.rows = rows;
+			this.totalCost = totalCost;
+		}
+
+		public long getRows() {
+			return rows;
+		}
+
+		public double getTotalCost() {
+			return totalCost;
+		}
+
+		/**
+		 * Returns whether this plan exceeds a budget.
+		 * @param maxCost	the maximum total cost, or 0 for no maximum
+		 * @param maxRows	the maximum number of rows, or 0 for no maximum
+		 */
+		public boolean exceeds(double maxCost, long maxRows) {
+			return maxCost > 0 && totalCost > maxCost || maxRows > 0 && rows > maxRows;
+		}
+	}
+
+	private static final class Key {
+		private final String schema;
+		private final String query;
+
+		public Key(String schema, String query) {
+			this.schema = schema;
+			this.query = query;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) return true;
+			if (!(obj instanceof Key)) return false;
+			final Key that = (Key) obj;
+			return Objects.equal(schema, that.schema) && Objects.equal(query, that.query);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hashCode(schema, query);
+		}
+	}
+
+	private final DatabaseManager databaseManager;
+	private final Cache<Key, Estimate> estimates = CacheBuilder.newBuilder()
+			.maximumSize(MAXIMUM_PLANS)
+			.expireAfterWrite(EXPIRY_MINUTES, TimeUnit.MINUTES)
+			.recordStats()
+			.build();
+
+	public QueryPlanCache(DatabaseManager databaseManager) {
+		this.databaseManager = databaseManager;
+	}
+
+	/**
+	 * Returns the planner's estimates for a query, planning it if it is not kept.
+	 *
+	 * @param schema	the schema of the query
+	 * @param query		the query
+	 * @throws SQLException if the query cannot be planned
+	 */
+	public Estimate getEstimate(final String schema, final String query) throws SQLException {
+		try {
+			return estimates.get(new Key(schema, normalize(query)), new Callable<Estimate>() {
+				@Override
+				public Estimate call() throws SQLException {
+					return databaseManager.explain(schema, query);
+				}
+			});
+		} catch (ExecutionException | UncheckedExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof SQLException)
+				throw (SQLException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new RuntimeException(cause);
+		}
+	}
+
+	/**
+	 * Returns a query without its surrounding whitespace and trailing semicolons.  Nothing 
+	 * else is changed, since comments, dollar quotes and escaped strings make any other 
+	 * rewriting of the text unsafe.
+	 */
+	static String normalize(String query) {
+		String trimmed = query.trim();
+		while (trimmed.endsWith(";"))
+			trimmed = trimmed.substring(0, trimmed.length() - 1).trim();
+		return trimmed;
+	}
+
+	/**
+	 * Discards the plans of a schema, after it was altered.
+	 */
+	public void invalidate(String schema) {
+		for (Iterator<Key> it = estimates.asMap().keySet().iterator(); it.hasNext(); ) {
+			if (Objects.equal(it.next().schema, schema))
+				it.remove();
+		}
+	}
+
+	/** Returns the hit, miss and eviction statistics of this cache. */
+	public CacheStats getStats() {
+		return estimates.stats();
+	}
+
+	/** Returns the approximate number of plans kept. */
+	public long size() {
+		return estimates.size();
+	}
+}
@@ -0,0 +1,57 @@
+/*
+ *   Copyright (c) 2015 Program Analysis Group, Georgia Tech
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package edu.gatech.sqltutor.util;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.primefaces.model.LazyDataModel;
+import org.primefaces.model.SortOrder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.gatech.sqltutor.QueryResult;
+
+/**
+ * Serves the rows of a result to a lazy data table a page at a time, reading
+ * pages past the rows kept in the heap from the result's spill.
+ */
+public class QueryResultDataModel extends LazyDataModel<List<String>> {
+	private static final long serialVersionUID = 1L;
+	private static final Logger log = LoggerFactory.getLogger(QueryResultDataModel.class);
+
+	private final QueryResult result;
+
+	public QueryResultDataModel(QueryResult result) {
+		this.result = result;
+		setRowCount(result.getRowCount());
+	}
+
+	@Override
+	public List<List<String>> load(int first, int pageSize, String sortField, SortOrder sortOrder,
+			Map<String, Object> filters) {
+		// the spill is lost when the view is serialized
+		setRowCount(result.getRowCount());
+		try {
+			return result.getRows(first, pageSize);
+		} catch (IOException e) {
+			log.warn("Could not read rows {} to {} of a spilled result.", first, first + pageSize, e);
+			return Collections.emptyList();
+		}
+	}
+}
@@ -0,0 +1,591 @@
+/*
+ *   Copyright (c) 2015 Program Analysis Group, Georgia Tech
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package edu.gatech.sqltutor.util;
+
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.faces.bean.ApplicationScoped;
+import javax.faces.bean.ManagedBean;
+import javax.faces.bean.ManagedProperty;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Objects;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import edu.gatech.sqltutor.QueryResult;
+import edu.gatech.sqltutor.ResultComparator;
+import edu.gatech.sqltutor.RowSpill;
+import edu.gatech.sqltutor.Utils;
+import edu.gatech.sqltutor.tuples.QuestionTuple;
+
+/**
+ * Runs the queries of all sessions on a fixed pool of workers.
+ * <p>
+ * Each user may have at most {@link #MAX_QUERIES_PER_USER} queries pending,
+ * further queries are rejected, and users' queries are rejected altogether
+ * while {@link AdmissionControl#MAX_IN_FLIGHT} are pending.  At most {@link #MAX_QUERIES_PER_SCHEMA}
+ * queries of one schema run at a time, the rest wait their turn so that a
+ * busy tutorial cannot take every worker.  When the pool's queue is full,
+ * queries are rejected rather than piling up request threads.
+ * </p><p>
+ * Identical queries that are pending at the same time are run once and
+ * share the result.  Cancelling a returned future cancels the query's
+ * statement once no other caller is waiting on it.
+ * </p>
+ */
+@ManagedBean(name="queryScheduler", eager=true)
+@ApplicationScoped
+public class QueryScheduler implements Serializable {
+	private static final long serialVersionUID = 1L;
+	private static final Logger log = LoggerFactory.getLogger(QueryScheduler.class);
+
+	public static final int POOL_SIZE = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+	public static final int QUEUE_CAPACITY = 256;
+	public static final int MAX_QUERIES_PER_USER = 2;
+	public static final int MAX_QUERIES_PER_SCHEMA = Math.max(1, POOL_SIZE / 2);
+
+	private static final class Key {
+		private final String schema;
+		private final String query;
+		private final boolean dev;
+		private final ResultComparator comparator;
+		private final int maxRows;
+		private final DatabaseManager.Paging paging;
+
+		public Key(String schema, String query, boolean dev, ResultComparator comparator, int maxRows,
+				DatabaseManager.Paging paging) {
+			this.schema = schema;
+			this.query = query;
+			this.dev = dev;
+			this.comparator = comparator;
+			this.maxRows = maxRows;
+			this.paging = paging;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) return true;
+			if (!(obj instanceof Key)) return false;
+			final Key that = (Key) obj;
+			return dev == that.dev && schema.equals(that.schema) && query.equals(that.query)
+					&& comparator == that.comparator && maxRows == that.maxRows && Objects.equal(paging, that.paging);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hashCode(schema, query, dev, comparator, maxRows, paging);
+		}
+	}
+
+	/** The queries of one schema that are running or waiting to run. */
+	private static final class Lane {
+		private int running;
+		private final Queue<Execution> waiting = new ArrayDeque<Execution>();
+	}
+
+	/** One run of a query, shared by all callers waiting on it. */
+	private final class Execution implements Runnable {
+		private final Key key;
+		private final SettableFuture<QueryResult> result = SettableFuture.create();
+		private int subscribers;
+		private Statement statement;
+		private QueryResult completed;
+
+		public Execution(Key key) {
+			this.key = key;
+		}
+
+		/** Adds a caller, returns <code>false</code> if this execution is already complete. */
+		public synchronized boolean subscribe() {
+			if (result.isDone())
+				return false;
+			++subscribers;
+			return true;
+		}
+
+		/** Removes a caller, cancelling the query if it was the last one. */
+		public void unsubscribe() {
+			final Statement running;
+			synchronized (this) {
+				// cancelled after the result was set, so the caller never takes its reference
+				if (completed != null && completed.getSpill() != null)
+					completed.getSpill().release();
+				if (--subscribers > 0 || !result.cancel(false))
+					return;
+				running = statement;
+			}
+			if (running != null) {
+				try {
+					running.cancel();
+				} catch (SQLException e) {
+					log.debug("Could not cancel query: {}", key.query, e);
+				}
+			}
+		}
+
+		/**
+		 * Sets the result.  Each subscriber gets its own reference to the spilled rows 
+		 * of the result, if any, and subscribers cancelled later release theirs in 
+		 * {@link #unsubscribe()}.
+		 */
+		private synchronized void complete(QueryResult queryResult) {
+			final RowSpill spill = queryResult.getSpill();
+			if (spill != null) {
+				// the reference of the reader is the first subscriber's
+				for (int i = 1; i < subscribers; ++i)
+					spill.retain();
+			}
+			if (result.set(queryResult))
+				completed = queryResult;
+			else if (spill != null)
+				spill.release();
+		}
+
+		private synchronized boolean setStatement(Statement statement) {
+			if (result.isDone())
+				return false;
+			this.statement = statement;
+			return true;
+		}
+
+		@Override
+		public void run() {
+			Connection connection = null;
+			Statement statement = null;
+			boolean reusable = false;
+			try {
+				// cancelled while waiting
+				if (result.isDone())
+					return;
+				connection = connectionPool.borrow(key.schema, key.dev);
+				statement = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+				if (!setStatement(statement))
+					return;
+				final QueryResult queryResult = databaseManager.readQueryResult(key.query, statement, 
+						key.comparator, key.maxRows, key.paging);
+				complete(queryResult);
+				// cancelled queries are not reused either
+				reusable = !result.isCancelled() && SchemaConnectionPool.isReusableAfter(key.query);
+			} catch (SQLException | RuntimeException e) {
+				result.setException(e);
+			} finally {
+				setStatement(null);
+				Utils.tryClose(statement);
+				if (connection != null)
+					connectionPool.release(key.schema, key.dev, connection, reusable);
+				release(key.schema);
+			}
+		}
+	}
+
+	@ManagedProperty(value="#{databaseManager}")
+	private DatabaseManager databaseManager;
+
+	private transient ThreadPoolExecutor executor;
+	private transient SchemaConnectionPool connectionPool;
+	private transient ConcurrentMap<Key, Execution> inFlight;
+	private transient ConcurrentMap<String, AtomicInteger> userQueries;
+	private transient AdmissionControl admissionControl;
+	/** Guarded by itself. */
+	private transient Map<String, Lane> lanes;
+	private final AtomicLong submittedCount = new AtomicLong();
+	private final AtomicLong coalescedCount = new AtomicLong();
+	private final AtomicLong rejectedCount = new AtomicLong();
+
+	public QueryScheduler() {
+	}
+
+	@PostConstruct
+	public void startup() {
+		executor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY),
+				new ThreadFactoryBuilder().setNameFormat("query-%d").setDaemon(true).build(),
+				new ThreadPoolExecutor.AbortPolicy());
+		connectionPool = new SchemaConnectionPool(databaseManager);
+		inFlight = new ConcurrentHashMap<Key, Execution>();
+		userQueries = new ConcurrentHashMap<String, AtomicInteger>();
+		admissionControl = new AdmissionControl();
+		lanes = new HashMap<String, Lane>();
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		if (executor != null)
+			executor.shutdownNow();
+		if (connectionPool != null)
+			connectionPool.close();
+	}
+
+	/**
+	 * Submits a query.
+	 * <p>
+	 * The returned future fails with a <code>RejectedExecutionException</code> if
+	 * the user or the scheduler has too many queries pending, and with an
+	 * <code>SQLException</code> if the query fails.
+	 * </p>
+	 *
+	 * @param user		the user running the query
+	 * @param schema	the schema to run the query against
+	 * @param query		the query
+	 * @param dev		whether to run the query with the developer's rights
+	 * @return			the future result, which is shared and must not be modified
+	 */
+	public ListenableFuture<QueryResult> submit(String user, String schema, String query, boolean dev) {
+		return submit(user, schema, query, dev, null);
+	}
+
+	/**
+	 * Submits a query whose rows are compared to an expected result as they are read, 
+	 * see {@link DatabaseManager#getQueryResult(String, String, java.sql.Connection, Statement, ResultComparator)}.
+	 * Only queries with the same comparator instance share their results.
+	 *
+	 * @see #submit(String, String, String, boolean)
+	 * @param comparator	the expected result, or <code>null</code> to read all rows
+	 */
+	public ListenableFuture<QueryResult> submit(String user, String schema, String query, boolean dev,
+			ResultComparator comparator) {
+		return submit(user, schema, query, dev, comparator, 0);
+	}
+
+	/**
+	 * Submits a query of which at most <code>maxRows</code> rows are read, 
+	 * see {@link DatabaseManager#getQueryResult(String, String, java.sql.Connection, Statement, ResultComparator, int)}.
+	 *
+	 * @see #submit(String, String, String, boolean, ResultComparator)
+	 * @param maxRows		the maximum number of rows to read, or 0 for no maximum
+	 */
+	public ListenableFuture<QueryResult> submit(String user, String schema, String query, boolean dev,
+			ResultComparator comparator, int maxRows) {
+		return submit(user, schema, query, dev, comparator, maxRows, null);
+	}
+
+	/**
+	 * Submits a query whose result is shown a page at a time, see 
+	 * {@link DatabaseManager#readQueryResult(String, Statement, ResultComparator, int, DatabaseManager.Paging)}.
+	 * The caller must release the result's spill, if it has one, once it is no longer shown.
+	 *
+	 * @see #submit(String, String, String, boolean, ResultComparator, int)
+	 * @param paging		how to keep the rows, or <code>null</code> to keep them all in the heap
+	 */
+	public ListenableFuture<QueryResult> submit(String user, String schema, String query, boolean dev,
+			ResultComparator comparator, int maxRows, DatabaseManager.Paging paging) {
+		final AtomicInteger pending = pendingQueries(user);
+		if (pending.incrementAndGet() > MAX_QUERIES_PER_USER) {
+			pending.decrementAndGet();
+			rejectedCount.incrementAndGet();
+			return Futures.immediateFailedFuture(new RejectedExecutionException(
+					"Too many queries pending for user: " + user));
+		}
+		if (!admissionControl.tryEnter()) {
+			pending.decrementAndGet();
+			rejectedCount.incrementAndGet();
+			return Futures.immediateFailedFuture(new RejectedExecutionException(
+					"Too many user queries pending: " + admissionControl.getInFlightCount()));
+		}
+		final ListenableFuture<QueryResult> future = subscribe(new Key(schema, query, dev, comparator, maxRows, paging));
+		future.addListener(new Runnable() {
+			@Override
+			public void run() {
+				pending.decrementAndGet();
+				admissionControl.exit();
+			}
+		}, MoreExecutors.directExecutor());
+		return future;
+	}
+
+	/**
+	 * Submits the stored answer of a question, unless its result is already
+	 * in the {@link AnswerResultCache}.  The result is added to the cache.
+	 * Answers are not limited per user since they are shared by all sessions.
+	 *
+	 * @param tutorialName	the name of the tutorial the question belongs to
+	 * @param adminCode		the admin code of the tutorial
+	 * @param question		the question whose answer to run
+	 * @return				the future result, which is shared and must not be modified
+	 */
+	public ListenableFuture<QueryResult> submitAnswer(final String tutorialName, final String adminCode,
+			final QuestionTuple question) {
+		final AnswerResultCache cache = databaseManager.getAnswerResultCache();
+		final QueryResult cached = cache.getCachedResult(tutorialName, adminCode, question);
+		if (cached != null)
+			return Futures.immediateFuture(cached);
+
+		final ListenableFuture<QueryResult> future = subscribe(new Key(adminCode + "_" + tutorialName, question.getAnswer(), false, null, 0, null));
+		Futures.addCallback(future, new FutureCallback<QueryResult>() {
+			@Override
+			public void onSuccess(QueryResult result) {
+				cache.putResult(tutorialName, adminCode, question, result);
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+			}
+		}, MoreExecutors.directExecutor());
+		return future;
+	}
+
+	/**
+	 * Runs a query, waiting for the result.
+	 *
+	 * @see #submit(String, String, String, boolean)
+	 * @throws SQLException if the query fails
+	 * @throws RejectedExecutionException if too many queries are pending
+	 */
+	public QueryResult execute(String user, String schema, String query, boolean dev) throws SQLException {
+		return execute(user, schema, query, dev, null);
+	}
+
+	/**
+	 * Runs a query whose rows are compared to an expected result as they are read, waiting for the result.
+	 *
+	 * @see #submit(String, String, String, boolean, ResultComparator)
+	 * @throws SQLException if the query fails
+	 * @throws RejectedExecutionException if too many queries are pending
+	 */
+	public QueryResult execute(String user, String schema, String query, boolean dev, ResultComparator comparator)
+			throws SQLException {
+		return execute(user, schema, query, dev, comparator, 0);
+	}
+
+	/**
+	 * Runs a query of which at most <code>maxRows</code> rows are read, waiting for the result.
+	 *
+	 * @see #submit(String, String, String, boolean, ResultComparator, int)
+	 * @throws SQLException if the query fails
+	 * @throws RejectedExecutionException if too many queries are pending
+	 */
+	public QueryResult execute(String user, String schema, String query, boolean dev, ResultComparator comparator,
+			int maxRows) throws SQLException {
+		return execute(user, schema, query, dev, comparator, maxRows, null);
+	}
+
+	/**
+	 * Runs a query whose result is shown a page at a time, waiting for the result.
+	 *
+	 * @see #submit(String, String, String, boolean, ResultComparator, int, DatabaseManager.Paging)
+	 * @throws SQLException if the query fails
+	 * @throws RejectedExecutionException if too many queries are pending
+	 */
+	public QueryResult execute(String user, String schema, String query, boolean dev, ResultComparator comparator,
+			int maxRows, DatabaseManager.Paging paging) throws SQLException {
+		final ListenableFuture<QueryResult> future = submit(user, schema, query, dev, comparator, maxRows, paging);
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			future.cancel(false);
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for query.", e);
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof SQLException)
+				throw (SQLException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new SQLException(cause);
+		}
+	}
+
+	private AtomicInteger pendingQueries(String user) {
+		final String key = String.valueOf(user);
+		AtomicInteger pending = userQueries.get(key);
+		if (pending == null) {
+			final AtomicInteger created = new AtomicInteger();
+			pending = userQueries.putIfAbsent(key, created);
+			if (pending == null)
+				pending = created;
+		}
+		return pending;
+	}
+
+	/**
+	 * Returns a future for the result of the query, joining an identical
+	 * pending execution if there is one.
+	 */
+	private ListenableFuture<QueryResult> subscribe(final Key key) {
+		submittedCount.incrementAndGet();
+		Execution execution;
+		while (true) {
+			final Execution pending = inFlight.get(key);
+			if (pending != null && pending.subscribe()) {
+				coalescedCount.incrementAndGet();
+				execution = pending;
+				break;
+			}
+			final Execution created = new Execution(key);
+			created.subscribe();
+			final boolean added = pending == null ? inFlight.putIfAbsent(key, created) == null
+					: inFlight.replace(key, pending, created);
+			if (added) {
+				execution = created;
+				execution.result.addListener(new Runnable() {
+					@Override
+					public void run() {
+						inFlight.remove(key, created);
+					}
+				}, MoreExecutors.directExecutor());
+				schedule(execution);
+				break;
+			}
+		}
+
+		// each caller gets its own future so that it may cancel without affecting the others
+		final Execution subscribed = execution;
+		final SettableFuture<QueryResult> future = SettableFuture.create();
+		Futures.addCallback(subscribed.result, new FutureCallback<QueryResult>() {
+			@Override
+			public void onSuccess(QueryResult result) {
+				// with this caller's reference to the spilled rows, see Execution.complete()
+				future.set(result);
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				if (t instanceof CancellationException)
+					future.cancel(false);
+				else
+					future.setException(t);
+			}
+		}, MoreExecutors.directExecutor());
+		future.addListener(new Runnable() {
+			@Override
+			public void run() {
+				if (future.isCancelled())
+					subscribed.unsubscribe();
+			}
+		}, MoreExecutors.directExecutor());
+		return future;
+	}
+
+	private void schedule(Execution execution) {
+		final boolean runNow;
+		synchronized (lanes) {
+			Lane lane = lanes.get(execution.key.schema);
+			if (lane == null)
+				lanes.put(execution.key.schema, lane = new Lane());
+			runNow = lane.running < MAX_QUERIES_PER_SCHEMA;
+			if (runNow)
+				++lane.running;
+			else
+				lane.waiting.add(execution);
+		}
+		if (runNow)
+			dispatch(execution);
+	}
+
+	private void dispatch(Execution execution) {
+		try {
+			executor.execute(execution);
+		} catch (RejectedExecutionException e) {
+			rejectedCount.incrementAndGet();
+			log.warn("Query rejected, {} queries queued.", executor.getQueue().size());
+			execution.result.setException(e);
+			release(execution.key.schema);
+		}
+	}
+
+	/** Starts the next waiting query of a schema after one of its queries has finished. */
+	private void release(String schema) {
+		final Execution next;
+		synchronized (lanes) {
+			final Lane lane = lanes.get(schema);
+			next = lane.waiting.poll();
+			if (next == null && --lane.running == 0)
+				lanes.remove(schema);
+		}
+		if (next != null)
+			dispatch(next);
+	}
+
+	/** Returns the number of queries waiting for a worker, including those held back by the per-schema limit. */
+	public int getQueuedCount() {
+		int waiting = 0;
+		synchronized (lanes) {
+			for (Lane lane : lanes.values())
+				waiting += lane.waiting.size();
+		}
+		return executor.getQueue().size() + waiting;
+	}
+
+	/** Returns the number of queries currently running. */
+	public int getActiveCount() {
+		return executor.getActiveCount();
+	}
+
+	/** Returns the rate limits and the cap on pending queries of users. */
+	public AdmissionControl getAdmissionControl() {
+		return admissionControl;
+	}
+
+	/** Returns the pool of connections kept per schema. */
+	public SchemaConnectionPool getConnectionPool() {
+		return connectionPool;
+	}
+
+	/** Returns the number of distinct queries pending. */
+	public int getInFlightCount() {
+		return inFlight.size();
+	}
+
+	/** Returns the number of queries submitted so far. */
+	public long getSubmittedCount() {
+		return submittedCount.get();
+	}
+
+	/** Returns the number of submitted queries that joined an identical pending query. */
+	public long getCoalescedCount() {
+		return coalescedCount.get();
+	}
+
+	/** Returns the number of queries rejected so far. */
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	public DatabaseManager getDatabaseManager() {
+		return databaseManager;
+	}
+
+	public void setDatabaseManager(DatabaseManager databaseManager) {
+		this.databaseManager = databaseManager;
+	}
+}
@@ -0,0 +1,212 @@
+/*
+ *   Copyright (c) 2015 Program Analysis Group, Georgia Tech
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package edu.gatech.sqltutor.util;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.gatech.sqltutor.Utils;
+
+/**
+ * Idle connections kept per schema with their session state already set.
+ * <p>
+ * A connection borrowed from the container's pool needs its
+ * <code>search_path</code> and <code>statement_timeout</code> set before each
+ * student query.  Connections released to this pool keep their session,
+ * so the next query on the same schema runs without those statements.
+ * The transaction of each query is rolled back on release, which also undoes
+ * any <code>SET</code> the query made.  Queries with more than one statement
+ * could change the session outside of the transaction, so their connections
+ * are never kept.
+ * </p><p>
+ * At most {@link #MAX_IDLE_PER_SCHEMA} connections are kept per schema and
+ * {@link #MAX_IDLE} in all, and connections idle for longer than
+ * {@link #MAX_IDLE_MS} are closed, returning them to the container's pool.
+ * </p>
+ */
+public class SchemaConnectionPool implements Closeable {
+	private static final Logger log = LoggerFactory.getLogger(SchemaConnectionPool.class);
+
+	public static final int MAX_IDLE_PER_SCHEMA = 2;
+	public static final int MAX_IDLE = 16;
+	public static final long MAX_IDLE_MS = 60_000L;
+
+	private static final class IdleConnection {
+		private final Connection connection;
+		private final long releasedAt = System.currentTimeMillis();
+
+		public IdleConnection(Connection connection) {
+			this.connection = connection;
+		}
+	}
+
+	private final DatabaseManager databaseManager;
+	/** Idle connections by schema, most recently released first.  Guarded by itself. */
+	private final Map<String, Deque<IdleConnection>> idle = new HashMap<String, Deque<IdleConnection>>();
+	private int idleCount;
+	private boolean closed;
+	private final AtomicLong reusedCount = new AtomicLong();
+	private final AtomicLong openedCount = new AtomicLong();
+
+	public SchemaConnectionPool(DatabaseManager databaseManager) {
+		this.databaseManager = databaseManager;
+	}
+
+	/**
+	 * Returns a connection whose session is set for a schema, in a new transaction.
+	 *
+	 * @param schema	the schema
+	 * @param dev		whether to connect with the developer's rights
+	 * @throws SQLException if a new connection cannot be set up
+	 */
+	public Connection borrow(String schema, boolean dev) throws SQLException {
+		final List<Connection> expired = new ArrayList<Connection>();
+		IdleConnection reused = null;
+		synchronized (idle) {
+			final long oldest = System.currentTimeMillis() - MAX_IDLE_MS;
+			for (Iterator<Deque<IdleConnection>> it = idle.values().iterator(); it.hasNext(); ) {
+				final Deque<IdleConnection> connections = it.next();
+				while (!connections.isEmpty() && connections.peekLast().releasedAt < oldest) {
+					expired.add(connections.pollLast().connection);
+					--idleCount;
+				}
+				if (connections.isEmpty())
+					it.remove();
+			}
+			final Deque<IdleConnection> connections = idle.get(key(schema, dev));
+			if (connections != null && !connections.isEmpty()) {
+				reused = connections.pollFirst();
+				--idleCount;
+			}
+		}
+		for (Connection connection : expired)
+			Utils.tryClose(connection);
+
+		if (reused != null) {
+			reusedCount.incrementAndGet();
+			return reused.connection;
+		}
+
+		final Connection connection = dev ? databaseManager.getUserDataSource().getConnection()
+				: databaseManager.getReadUserDataSource().getConnection();
+		try {
+			// set the session outside of a transaction, so that rolling back queries keeps it
+			connection.setAutoCommit(true);
+			try (final Statement statement = connection.createStatement()) {
+				DatabaseManager.setSessionState(schema, statement);
+			}
+			connection.setAutoCommit(false);
+		} catch (SQLException | RuntimeException e) {
+			Utils.tryClose(connection);
+			throw e;
+		}
+		openedCount.incrementAndGet();
+		return connection;
+	}
+
+	/**
+	 * Ends the connection's transaction and keeps it for the schema, or closes it.
+	 *
+	 * @param schema		the schema the connection was borrowed for
+	 * @param dev			whether it was borrowed with the developer's rights
+	 * @param connection	the connection
+	 * @param reusable		whether the connection's session may be reused, <code>false</code> if
+	 * 						its query failed or could have changed the session
+	 */
+	public void release(String schema, boolean dev, Connection connection, boolean reusable) {
+		try {
+			connection.rollback();
+		} catch (SQLException e) {
+			log.debug("Could not roll back connection for schema {}", schema, e);
+			reusable = false;
+		}
+		if (reusable) {
+			synchronized (idle) {
+				final String key = key(schema, dev);
+				Deque<IdleConnection> connections = idle.get(key);
+				if (connections == null)
+					idle.put(key, connections = new ArrayDeque<IdleConnection>(MAX_IDLE_PER_SCHEMA));
+				if (!closed && connections.size() < MAX_IDLE_PER_SCHEMA && idleCount < MAX_IDLE) {
+					connections.addFirst(new IdleConnection(connection));
+					++idleCount;
+					return;
+				}
+			}
+		}
+		Utils.tryClose(connection);
+	}
+
+	/**
+	 * Returns whether a query's connection may be reused, that is, whether the
+	 * query is a single statement.  Semicolons in literals are counted too, so
+	 * this may refuse queries that are safe.
+	 */
+	public static boolean isReusableAfter(String query) {
+		int end = query.length();
+		while (end > 0 && (query.charAt(end - 1) == ';' || Character.isWhitespace(query.charAt(end - 1))))
+			--end;
+		return query.lastIndexOf(';', end - 1) < 0;
+	}
+
+	/** Closes all idle connections.  Connections released afterwards are closed. */
+	@Override
+	public void close() {
+		final List<IdleConnection> connections = new ArrayList<IdleConnection>();
+		synchronized (idle) {
+			closed = true;
+			for (Deque<IdleConnection> schemaConnections : idle.values())
+				connections.addAll(schemaConnections);
+			idle.clear();
+			idleCount = 0;
+		}
+		for (IdleConnection connection : connections)
+			Utils.tryClose(connection.connection);
+	}
+
+	private static String key(String schema, boolean dev) {
+		return (dev ? "dev:" : "read:") + schema;
+	}
+
+	/** Returns the number of idle connections. */
+	public int getIdleCount() {
+		synchronized (idle) {
+			return idleCount;
+		}
+	}
+
+	/** Returns the number of times an idle connection was reused. */
+	public long getReusedCount() {
+		return reusedCount.get();
+	}
+
+	/** Returns the number of connections set up. */
+	public long getOpenedCount() {
+		return openedCount.get();
+	}
+}
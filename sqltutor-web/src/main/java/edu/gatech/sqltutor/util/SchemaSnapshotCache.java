@@ -0,0 +1,143 @@
+/*
+ *   Copyright (c) 2015 Program Analysis Group, Georgia Tech
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package edu.gatech.sqltutor.util;
+
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+import com.google.common.util.concurrent.Striped;
+
+import edu.gatech.sqltutor.DatabaseTable;
+import edu.gatech.sqltutor.QueryResult;
+
+/**
+ * Snapshots of the tables and instance data of each schema, shared by all sessions.
+ * <p>
+ * Schemas only change when they are uploaded, deleted or altered by their
+ * admins, so each schema is read once and then served from its snapshot
+ * until it is invalidated.  Each invalidation gives the schema a new version,
+ * and snapshots of an older version are never served, even if their load
+ * completes after the invalidation.  Concurrent requests for the same schema
+ * wait on a single load.
+ * </p><p>
+ * At most {@link #getRowsPerTable()} rows are kept per table, tables with
+ * more rows are marked incomplete.  Snapshots are shared and must not be modified.
+ * </p>
+ */
+public class SchemaSnapshotCache {
+	public static final int DEFAULT_ROWS_PER_TABLE = 1000;
+
+	/** The tables of a schema and their rows. */
+	public static final class Snapshot {
+		private final long version;
+		private final List<DatabaseTable> tables;
+		private final Map<String, QueryResult> tableData;
+
+		public Snapshot(long version, List<DatabaseTable> tables, Map<String, QueryResult> tableData) {
+			this.version = version;
+			this.tables = Collections.unmodifiableList(tables);
+			this.tableData = Collections.unmodifiableMap(tableData);
+		}
+
+		public long getVersion() {
+			return version;
+		}
+
+		public List<DatabaseTable> getTables() {
+			return tables;
+		}
+
+		/** Returns the rows of each table by table name. */
+		public Map<String, QueryResult> getTableData() {
+			return tableData;
+		}
+	}
+
+	private final DatabaseManager databaseManager;
+	private final ConcurrentMap<String, Snapshot> snapshots = new ConcurrentHashMap<String, Snapshot>();
+	/** The current version of each invalidated schema, others are at version 0. */
+	private final ConcurrentMap<String, Long> versions = new ConcurrentHashMap<String, Long>();
+	private final AtomicLong lastVersion = new AtomicLong();
+	private final Striped<Lock> loadLocks = Striped.lock(64);
+	private volatile int rowsPerTable = DEFAULT_ROWS_PER_TABLE;
+
+	public SchemaSnapshotCache(DatabaseManager databaseManager) {
+		this.databaseManager = databaseManager;
+	}
+
+	/**
+	 * Returns the snapshot of a schema, reading it if there is no current one.
+	 * @throws SQLException if reading the schema fails
+	 */
+	public Snapshot getSnapshot(String schema) throws SQLException {
+		Snapshot snapshot = snapshots.get(schema);
+		if (snapshot != null && snapshot.getVersion() == getVersion(schema))
+			return snapshot;
+
+		final Lock lock = loadLocks.get(schema);
+		lock.lock();
+		try {
+			final long version = getVersion(schema);
+			snapshot = snapshots.get(schema);
+			if (snapshot != null && snapshot.getVersion() == version)
+				return snapshot;
+			snapshot = databaseManager.readSnapshot(schema, version, rowsPerTable);
+			snapshots.put(schema, snapshot);
+			return snapshot;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Discards the snapshot of a schema, including one being read. */
+	public void invalidate(String schema) {
+		versions.put(schema, lastVersion.incrementAndGet());
+		snapshots.remove(schema);
+	}
+
+	public void invalidateAll() {
+		for (String schema : snapshots.keySet())
+			invalidate(schema);
+	}
+
+	public long getVersion(String schema) {
+		final Long version = versions.get(schema);
+		return version != null ? version : 0L;
+	}
+
+	public int getRowsPerTable() {
+		return rowsPerTable;
+	}
+
+	/** Sets the maximum number of rows kept per table, discarding all snapshots. */
+	public void setRowsPerTable(int rowsPerTable) {
+		if (rowsPerTable <= 0)
+			throw new IllegalArgumentException("rowsPerTable must be positive: " + rowsPerTable);
+		this.rowsPerTable = rowsPerTable;
+		invalidateAll();
+	}
+
+	/** Returns the number of schemas with a snapshot. */
+	public int size() {
+		return snapshots.size();
+	}
+}
@@ -0,0 +1,246 @@
+/*
+ *   Copyright (c) 2015 Program Analysis Group, Georgia Tech
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package edu.gatech.sqltutor.util;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Attempt counters and the last presented question of each student in each
+ * tutorial, kept up to date as attempts and presentations are logged.
+ * <p>
+ * The progress of a student is read from the <code>log</code> and
+ * <code>log_question_presentation</code> tables once, when it is first needed,
+ * and is then only updated in memory, so the tutorial page never scans the
+ * logs.  Updates are counted here before their rows are queued to the
+ * {@link LogWriter}, so the counters include rows that are not written yet.
+ * </p><p>
+ * Students are evicted after {@link #EXPIRY_MINUTES} minutes without access,
+ * and are then read from the logs again.  The logs are only read once the rows
+ * queued before are written, see {@link DatabaseManager#awaitLogWritten()}, 
+ * and reading fails rather than miss rows that are still queued or spilled, 
+ * e.g. while the database is unavailable.  Concurrent requests for the same 
+ * student wait on a single read.
+ * </p>
+ */
+public class StudentProgressStore {
+	public static final long EXPIRY_MINUTES = 60L;
+
+	/** The attempts of a student at one question. */
+	public static final class QuestionProgress {
+		/** Attempts by parsed and correct flags. */
+		private final int[] attempts = new int[4];
+
+		private static int index(boolean parsed, boolean correct) {
+			return (parsed ? 2 : 0) + (correct ? 1 : 0);
+		}
+
+		public int getAttempts(boolean parsed, boolean correct) {
+			return attempts[index(parsed, correct)];
+		}
+
+		public int getAttempts() {
+			return attempts[0] + attempts[1] + attempts[2] + attempts[3];
+		}
+
+		public boolean isCorrect() {
+			return attempts[index(false, true)] + attempts[index(true, true)] > 0;
+		}
+	}
+
+	/** The progress of a student in one tutorial.  Guarded by itself. */
+	public static final class Progress {
+		private final Map<Integer, QuestionProgress> questions = new HashMap<Integer, QuestionProgress>();
+		private int mostRecentlyPresentedQuestion;
+
+		/**
+		 * Counts attempts, as read from the logs or as they are logged.
+		 */
+		public synchronized void addAttempts(int order, boolean parsed, boolean correct, int count) {
+			QuestionProgress question = questions.get(order);
+			if (question == null)
+				questions.put(order, question = new QuestionProgress());
+			question.attempts[QuestionProgress.index(parsed, correct)] += count;
+		}
+
+		/**
+		 * Forgets the attempts at deleted questions, and the last presented question if it is one of them.
+		 */
+		public synchronized void removeQuestions(Collection<Integer> orders) {
+			questions.keySet().removeAll(orders);
+			if (orders.contains(mostRecentlyPresentedQuestion))
+				mostRecentlyPresentedQuestion = 0;
+		}
+
+		public synchronized void setMostRecentlyPresentedQuestion(int order) {
+			this.mostRecentlyPresentedQuestion = order;
+		}
+
+		/** Returns the order of the question presented last, or 0 if none was. */
+		public synchronized int getMostRecentlyPresentedQuestion() {
+			return mostRecentlyPresentedQuestion;
+		}
+
+		public synchronized int getAttempts(int order, boolean parsed, boolean correct) {
+			final QuestionProgress question = questions.get(order);
+			return question != null ? question.getAttempts(parsed, correct) : 0;
+		}
+
+		/** Returns whether each attempted question was answered correctly, by question order. */
+		public synchronized Map<Integer, Boolean> getAttemptStatuses() {
+			final Map<Integer, Boolean> statuses = new HashMap<Integer, Boolean>();
+			for (Map.Entry<Integer, QuestionProgress> question : questions.entrySet())
+				statuses.put(question.getKey(), question.getValue().isCorrect());
+			return statuses;
+		}
+	}
+
+	private static final class Key {
+		private final String hashedEmail;
+		private final String tutorialName;
+		private final String adminCode;
+
+		public Key(String hashedEmail, String tutorialName, String adminCode) {
+			this.hashedEmail = hashedEmail;
+			this.tutorialName = tutorialName;
+			this.adminCode = adminCode;
+		}
+
+		public boolean isOf(String tutorialName, String adminCode) {
+			return Objects.equal(this.tutorialName, tutorialName) && Objects.equal(this.adminCode, adminCode);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) return true;
+			if (!(obj instanceof Key)) return false;
+			final Key that = (Key) obj;
+			return Objects.equal(hashedEmail, that.hashedEmail) && Objects.equal(tutorialName, that.tutorialName)
+					&& Objects.equal(adminCode, that.adminCode);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hashCode(hashedEmail, tutorialName, adminCode);
+		}
+	}
+
+	private final DatabaseManager databaseManager;
+	private final Cache<Key, Progress> progress = CacheBuilder.newBuilder()
+			.expireAfterAccess(EXPIRY_MINUTES, TimeUnit.MINUTES)
+			.recordStats()
+			.build();
+
+	public StudentProgressStore(DatabaseManager databaseManager) {
+		this.databaseManager = databaseManager;
+	}
+
+	/**
+	 * Returns the progress of a student in a tutorial, reading it from the logs if it is not kept.
+	 *
+	 * @param hashedEmail	the student's hashed email
+	 * @param tutorialName	the name of the tutorial
+	 * @param adminCode		the admin code of the tutorial
+	 * @return the shared progress, which is updated as the student's attempts are logged
+	 * @throws SQLException if reading the logs fails
+	 */
+	public Progress getProgress(final String hashedEmail, final String tutorialName, final String adminCode) throws SQLException {
+		try {
+			return progress.get(new Key(hashedEmail, tutorialName, adminCode), new Callable<Progress>() {
+				@Override
+				public Progress call() throws SQLException {
+					databaseManager.awaitLogWritten();
+					return databaseManager.readStudentProgress(hashedEmail, tutorialName, adminCode);
+				}
+			});
+		} catch (ExecutionException | UncheckedExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof SQLException)
+				throw (SQLException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new RuntimeException(cause);
+		}
+	}
+
+	/**
+	 * Counts an attempt.  Must be called before the attempt's row is queued, so
+	 * that a progress read from the logs meanwhile does not count it twice.
+	 *
+	 * @throws SQLException if the student's progress had to be read and that failed
+	 */
+	public void attempted(String hashedEmail, String tutorialName, String adminCode, int order, boolean parsed, boolean correct) throws SQLException {
+		getProgress(hashedEmail, tutorialName, adminCode).addAttempts(order, parsed, correct, 1);
+	}
+
+	/**
+	 * Records that a question was presented.
+	 *
+	 * @throws SQLException if the student's progress had to be read and that failed
+	 */
+	public void presented(String hashedEmail, String tutorialName, String adminCode, int order) throws SQLException {
+		getProgress(hashedEmail, tutorialName, adminCode).setMostRecentlyPresentedQuestion(order);
+	}
+
+	/**
+	 * Forgets deleted questions in the progress of all students in a tutorial.  The
+	 * progress is kept, since rows of other questions may not be written yet.
+	 *
+	 * @param orders the orders of the deleted questions
+	 */
+	public void removeQuestions(String tutorialName, String adminCode, Collection<Integer> orders) {
+		for (Map.Entry<Key, Progress> entry : progress.asMap().entrySet()) {
+			if (entry.getKey().isOf(tutorialName, adminCode))
+				entry.getValue().removeQuestions(orders);
+		}
+	}
+
+	/**
+	 * Discards the progress of all students in a tutorial, e.g. after it was deleted.
+	 */
+	public void invalidate(String tutorialName, String adminCode) {
+		for (Iterator<Key> it = progress.asMap().keySet().iterator(); it.hasNext(); ) {
+			if (it.next().isOf(tutorialName, adminCode))
+				it.remove();
+		}
+	}
+
+	public void invalidateAll() {
+		progress.invalidateAll();
+	}
+
+	/** Returns the hit, miss and eviction statistics of this store. */
+	public CacheStats getStats() {
+		return progress.stats();
+	}
+
+	/** Returns the approximate number of students and tutorials kept. */
+	public long size() {
+		return progress.size();
+	}
+}
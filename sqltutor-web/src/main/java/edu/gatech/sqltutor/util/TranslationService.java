@@ -0,0 +1,265 @@
+/*
+ *   Copyright (c) 2015 Program Analysis Group, Georgia Tech
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package edu.gatech.sqltutor.util;
+
+import java.io.InputStream;
+import java.io.Serializable;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.faces.bean.ApplicationScoped;
+import javax.faces.bean.ManagedBean;
+import javax.faces.bean.ManagedProperty;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import edu.gatech.sqltutor.SQLTutorException;
+import edu.gatech.sqltutor.Utils;
+import edu.gatech.sqltutor.rules.er.ERDiagram;
+import edu.gatech.sqltutor.rules.er.ERSerializer;
+import edu.gatech.sqltutor.rules.er.mapping.ERMapping;
+import edu.gatech.sqltutor.rules.lang.SymbolicFragmentTranslator;
+import edu.gatech.sqltutor.rules.lang.TranslationCache;
+import edu.gatech.sqltutor.rules.lang.TranslationSchema;
+
+/**
+ * Translates queries to natural language for all sessions.
+ * <p>
+ * The ER diagram, mapping and facts of each tutorial are loaded once and
+ * shared.  Each translation runs on a fresh translator in a bounded worker
+ * pool; when the pool and its queue are full, further translations are
+ * rejected immediately rather than piling up request threads.
+ * </p><p>
+ * Translations are cancelled if not complete within {@link #TIMEOUT_SECONDS}
+ * of being submitted, so callers may wait on the result or be notified 
+ * of it later without tying up a worker indefinitely.
+ * </p>
+ */
+@ManagedBean(name="translationService", eager=true)
+@ApplicationScoped
+public class TranslationService implements Serializable {
+	private static final long serialVersionUID = 1L;
+	private static final Logger log = LoggerFactory.getLogger(TranslationService.class);
+
+	// FIXME: hardcoded, need to fix this
+	private static final Set<String> TRANSLATABLE_TUTORIALS = ImmutableSet.of("company", "business_trip");
+
+	public static final int POOL_SIZE = Math.max(2, Runtime.getRuntime().availableProcessors());
+	public static final int QUEUE_CAPACITY = 32;
+	public static final int TIMEOUT_SECONDS = 20;
+
+	@ManagedProperty(value="#{databaseManager}")
+	private DatabaseManager databaseManager;
+
+	private transient ThreadPoolExecutor executor;
+	private transient ListeningExecutorService listeningExecutor;
+	private transient ScheduledExecutorService deadlines;
+	private transient TranslationCache translationCache;
+	private transient LoadingCache<String, TranslationSchema> schemas;
+
+	public TranslationService() {
+	}
+
+	@PostConstruct
+	public void startup() {
+		executor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY),
+				new ThreadFactoryBuilder().setNameFormat("translator-%d").setDaemon(true).build(),
+				new ThreadPoolExecutor.AbortPolicy());
+		listeningExecutor = MoreExecutors.listeningDecorator(executor);
+		deadlines = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setNameFormat("translation-deadline-%d").setDaemon(true).build());
+		translationCache = new TranslationCache();
+		schemas = CacheBuilder.newBuilder().build(new CacheLoader<String, TranslationSchema>() {
+			@Override
+			public TranslationSchema load(String tutorialName) throws Exception {
+				return loadSchema(tutorialName);
+			}
+		});
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		if (executor != null)
+			executor.shutdownNow();
+		if (deadlines != null)
+			deadlines.shutdownNow();
+	}
+
+	/**
+	 * Returns whether queries of the given tutorial can be translated.
+	 */
+	public boolean canTranslate(String tutorialName) {
+		return TRANSLATABLE_TUTORIALS.contains(tutorialName);
+	}
+
+	/**
+	 * Translates a query of the given tutorial, waiting for the result.
+	 *
+	 * @param tutorialName the tutorial the query is written against
+	 * @param query        the query to translate
+	 * @return the translation
+	 * @throws IllegalArgumentException if the tutorial cannot be translated
+	 * @throws RejectedExecutionException if too many translations are pending
+	 * @throws SQLTutorException if the translation fails or times out
+	 */
+	public String translate(String tutorialName, String query) throws SQLTutorException {
+		try {
+			return submit(tutorialName, query).get();
+		} catch (CancellationException e) {
+			throw new SQLTutorException("Translation timed out after " + TIMEOUT_SECONDS + " seconds.", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLTutorException("Interrupted while waiting for translation.", e);
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof SQLTutorException)
+				throw (SQLTutorException) cause;
+			if (cause instanceof RejectedExecutionException)
+				throw (RejectedExecutionException) cause;
+			throw new SQLTutorException(cause);
+		}
+	}
+
+	/**
+	 * Submits a query of the given tutorial for translation.  Equivalent queries 
+	 * that were translated before are answered from the cache without using the pool.
+	 * <p>
+	 * The returned future fails with a <code>RejectedExecutionException</code> if 
+	 * too many translations are pending, and is cancelled if the translation is 
+	 * not complete within {@link #TIMEOUT_SECONDS}.
+	 * </p>
+	 *
+	 * @param tutorialName the tutorial the query is written against
+	 * @param query        the query to translate
+	 * @return the future translation
+	 * @throws IllegalArgumentException if the tutorial cannot be translated
+	 */
+	public ListenableFuture<String> submit(String tutorialName, final String query) {
+		if (!canTranslate(tutorialName))
+			throw new IllegalArgumentException("No ER diagram for tutorial: " + tutorialName);
+
+		final SymbolicFragmentTranslator translator;
+		try {
+			translator = getSchema(tutorialName).newTranslator();
+		} catch (SQLTutorException e) {
+			return Futures.immediateFailedFuture(e);
+		}
+		final String cached = translationCache.getCachedTranslation(translator, query);
+		if (cached != null)
+			return Futures.immediateFuture(cached);
+
+		final ListenableFuture<String> future;
+		try {
+			future = listeningExecutor.submit(new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					return translationCache.getTranslation(translator, query);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			log.warn("Translation rejected, {} translations queued.", executor.getQueue().size());
+			return Futures.immediateFailedFuture(e);
+		}
+
+		final ScheduledFuture<?> deadline = deadlines.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (future.cancel(true))
+					log.warn("Translation timed out: {}", query);
+			}
+		}, TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		future.addListener(new Runnable() {
+			@Override
+			public void run() {
+				deadline.cancel(false);
+			}
+		}, MoreExecutors.directExecutor());
+		return future;
+	}
+
+	private TranslationSchema getSchema(String tutorialName) {
+		try {
+			return schemas.get(tutorialName);
+		} catch (ExecutionException | UncheckedExecutionException e) {
+			throw new SQLTutorException("Could not load the ER diagram of: " + tutorialName, e.getCause());
+		}
+	}
+
+	private TranslationSchema loadSchema(String tutorialName) throws Exception {
+		final ERSerializer serializer = new ERSerializer();
+		final ERDiagram erDiagram = (ERDiagram) deserialize(serializer, "/testdata/" + tutorialName + ".er.xml");
+		final ERMapping erMapping = (ERMapping) deserialize(serializer, "/testdata/" + tutorialName + ".mapping.xml");
+		log.info("Loaded ER diagram and mapping for tutorial: {}", tutorialName);
+		return new TranslationSchema(erDiagram, erMapping, databaseManager.getDevSchemaTables());
+	}
+
+	private Object deserialize(ERSerializer serializer, String resource) {
+		final InputStream in = TranslationService.class.getResourceAsStream(resource);
+		if (in == null)
+			throw new SQLTutorException("Resource not found: " + resource);
+		try {
+			return serializer.deserialize(in);
+		} finally {
+			Utils.tryClose(in);
+		}
+	}
+
+	/** Returns the number of translations waiting for a worker. */
+	public int getQueuedCount() {
+		return executor.getQueue().size();
+	}
+
+	/** Returns the number of translations currently running. */
+	public int getActiveCount() {
+		return executor.getActiveCount();
+	}
+
+	public TranslationCache getTranslationCache() {
+		return translationCache;
+	}
+
+	public DatabaseManager getDatabaseManager() {
+		return databaseManager;
+	}
+
+	public void setDatabaseManager(DatabaseManager databaseManager) {
+		this.databaseManager = databaseManager;
+	}
+}